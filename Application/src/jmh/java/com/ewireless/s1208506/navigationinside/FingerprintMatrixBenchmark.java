@@ -0,0 +1,70 @@
+package com.ewireless.s1208506.navigationinside;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Author: Gavin Waite
+ * Compares a full pass of the positioning algorithm over a List of LocData objects (as
+ * FingerprintMatcher.matchLinear() and the original PositioningFragment loop do) against the same
+ * pass over the packed FingerprintMatrix, at 1k, 100k and 1M reference points.
+ *
+ * The 1M point case needs a few hundred MB of heap for the LocData objects.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g"})
+public class FingerprintMatrixBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    public int points;
+
+    private static final int ACCESS_POINTS = 200;
+    private static final int SCANS = 64;
+
+    private List<LocData> dataB;
+    private FingerprintMatrix matrix;
+    private FingerprintMatrix.Scorer scorer;
+
+    private long[][] scanBSSIDs;
+    private int[][] scandBs;
+    private int next = 0;
+
+    @Setup
+    public void setup(){
+        SyntheticSurvey survey = new SyntheticSurvey(points, ACCESS_POINTS,
+                LocData.DEFAULT_MAX_ACCESS_POINTS, 4.0, SCANS, 1208506);
+        dataB = survey.points;
+        matrix = FingerprintMatrix.from(dataB);
+        scorer = matrix.newScorer();
+        scanBSSIDs = survey.scanBSSIDs;
+        scandBs = survey.scandBs;
+    }
+
+    @Benchmark
+    public FingerprintMatcher.Match listOfLocData(){
+        int scan = next++ & (SCANS - 1);
+        return FingerprintMatcher.matchLinear(dataB, scanBSSIDs[scan], scandBs[scan]);
+    }
+
+    @Benchmark
+    public int packedMatrix(){
+        int scan = next++ & (SCANS - 1);
+        return scorer.match(scanBSSIDs[scan], scandBs[scan]);
+    }
+}
@@ -0,0 +1,83 @@
+package com.ewireless.s1208506.navigationinside;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Author: Gavin Waite
+ * A full pass over the FingerprintMatrix on the calling thread against the same pass split across
+ * a ForkJoinPool of 1 to 8 threads, from 1k to 1M reference points.
+ *
+ * The point where parallel beats sequential at 2 or more threads is where
+ * ParallelMatcher.DEFAULT_THRESHOLD belongs on the device it is run on, and the 1 thread case
+ * shows the fixed cost of splitting.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g"})
+public class ParallelMatcherBenchmark {
+
+    @Param({"1000", "5000", "20000", "100000", "1000000"})
+    public int points;
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    private static final int ACCESS_POINTS = 200;
+    private static final int SCANS = 64;
+
+    private FingerprintMatrix matrix;
+    private FingerprintMatrix.Scorer scorer;
+    private ForkJoinPool pool;
+    private ParallelMatcher matcher;
+
+    private long[][] scanBSSIDs;
+    private int[][] scandBs;
+    private int next = 0;
+
+    @Setup
+    public void setup(){
+        SyntheticSurvey survey = new SyntheticSurvey(points, ACCESS_POINTS,
+                LocData.DEFAULT_MAX_ACCESS_POINTS, 4.0, SCANS, 1208506);
+        matrix = FingerprintMatrix.from(survey.points);
+        scorer = matrix.newScorer();
+        // A threshold of 0 always takes the parallel path
+        pool = new ForkJoinPool(threads);
+        matcher = new ParallelMatcher(matrix, pool, 0);
+        scanBSSIDs = survey.scanBSSIDs;
+        scandBs = survey.scandBs;
+    }
+
+    @TearDown
+    public void tearDown(){
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public int sequential(){
+        int scan = next++ & (SCANS - 1);
+        return scorer.match(scanBSSIDs[scan], scandBs[scan]);
+    }
+
+    @Benchmark
+    public int parallel(){
+        int scan = next++ & (SCANS - 1);
+        return matcher.match(scanBSSIDs[scan], scandBs[scan], null);
+    }
+}
@@ -0,0 +1,89 @@
+package com.ewireless.s1208506.navigationinside;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Author: Gavin Waite
+ * The time the ParticleFilter takes to move on to each scan of a walk, with 500, 2k and 10k
+ * particles, over a 10000 point synthetic survey (see SyntheticSurvey):
+ *   track    - ParticleFilter.update(), which scores only the cells holding a particle
+ *   gaussian - GaussianModel.match(), scoring the whole survey for every scan, for comparison
+ *
+ * The walk steps about 2 m between scans, as a user does at a scan every 1.5 s.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParticleFilterBenchmark {
+
+    @Param({"500", "2000", "10000"})
+    public int particles;
+
+    private static final int POINTS = 10000;
+    private static final int ACCESS_POINTS = 200;
+    private static final int APS_PER_POINT = 10;
+    private static final int SCANS = 256;
+    private static final long SCAN_INTERVAL = 1500;
+    // The size of the survey area in metres, north-south and east-west
+    private static final double HEIGHT = 0.01 * PositionEstimate.METRES_PER_DEGREE;
+    private static final double WIDTH = HEIGHT * Math.cos(Math.toRadians(55.92));
+
+    private GaussianModel model;
+    private ParticleFilter tracker;
+    private PositionEstimate estimate;
+    private ScanFrame[] scans;
+    private int next = 0;
+    private long time = 0;
+
+    @Setup
+    public void setup(){
+        SyntheticSurvey survey = new SyntheticSurvey(POINTS, ACCESS_POINTS, APS_PER_POINT, 4, 0, 1208506);
+        model = new GaussianModel();
+        for (LocData point : survey.points){
+            model.add(point);
+        }
+        tracker = new ParticleFilter(model, particles, 1208506);
+        estimate = new PositionEstimate();
+
+        // A walk in random directions, turning back at the edges
+        Random random = new Random(1208506);
+        scans = new ScanFrame[SCANS];
+        double x = 0.5;
+        double y = 0.5;
+        for (int scan = 0; scan < SCANS; scan++){
+            scans[scan] = survey.scan(x, y);
+            double heading = random.nextDouble() * 2 * Math.PI;
+            x = Math.abs(x + 2 * Math.sin(heading) / WIDTH);
+            y = Math.abs(y + 2 * Math.cos(heading) / HEIGHT);
+            x = x > 1 ? 2 - x : x;
+            y = y > 1 ? 2 - y : y;
+        }
+    }
+
+    @Benchmark
+    public boolean track(){
+        time += SCAN_INTERVAL;
+        return tracker.update(scans[next++ & (SCANS - 1)], time, estimate);
+    }
+
+    @Benchmark
+    public boolean gaussian(){
+        return model.match(scans[next++ & (SCANS - 1)], estimate);
+    }
+}
@@ -0,0 +1,97 @@
+package com.ewireless.s1208506.navigationinside;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Author: Gavin Waite
+ * The indoor positioning fix of PositioningFragment.getInsideLocation() - everything after the
+ * WiFi scan has arrived - against synthetic surveys of varying size, access point density and
+ * signal noise (see SyntheticSurvey).
+ *
+ * Throughput gives fixes per second and SampleTime the p50/p99 latency of a single fix. Run with
+ * the GC profiler (-prof gc) for the allocation rate, which should be about 0 B/op for the
+ * indexed and k-NN modes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g"})
+public class PositioningBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int points;
+
+    // Access points heard by each reference point
+    @Param({"5", "10"})
+    public int apsPerPoint;
+
+    // Standard deviation of the signal level noise in dB
+    @Param({"2", "6"})
+    public double noise;
+
+    private static final int ACCESS_POINTS = 200;
+    private static final int SCANS = 64;
+    private static final int K = 4;
+
+    private List<LocData> dataB;
+    private FingerprintIndex index;
+    private FingerprintMatrix.Scorer scorer;
+    private PositionEstimate estimate;
+
+    private long[] BSSIDs;
+    private int[] dBs;
+    private ScanFrame[] scans;
+    private int next = 0;
+
+    @Setup
+    public void setup(){
+        SyntheticSurvey survey = new SyntheticSurvey(points, ACCESS_POINTS, apsPerPoint, noise, SCANS, 1208506);
+        dataB = survey.points;
+        index = new FingerprintIndex();
+        index.rebuild(dataB);
+        scorer = FingerprintMatrix.from(dataB).newScorer();
+        estimate = new PositionEstimate();
+
+        // The fix starts from a ScanFrame, as handed over by the WifiScanner
+        scans = new ScanFrame[SCANS];
+        for (int scan = 0; scan < SCANS; scan++){
+            scans[scan] = new ScanFrame(survey.scanBSSIDs[scan], survey.scandBs[scan],
+                    survey.scanBSSIDs[scan].length);
+        }
+        BSSIDs = new long[FingerprintMatcher.WEIGHTS.length];
+        dBs = new int[FingerprintMatcher.WEIGHTS.length];
+    }
+
+    @Benchmark
+    public FingerprintMatcher.Match linear(){
+        scans[next++ & (SCANS - 1)].top(BSSIDs, dBs);
+        return FingerprintMatcher.matchLinear(dataB, BSSIDs, dBs);
+    }
+
+    @Benchmark
+    public FingerprintMatcher.Match indexed(){
+        scans[next++ & (SCANS - 1)].top(BSSIDs, dBs);
+        return FingerprintMatcher.matchIndexed(index, scorer, BSSIDs, dBs);
+    }
+
+    @Benchmark
+    public boolean knn(){
+        scans[next++ & (SCANS - 1)].top(BSSIDs, dBs);
+        return FingerprintMatcher.matchKnn(index, scorer, BSSIDs, dBs, K, estimate);
+    }
+}
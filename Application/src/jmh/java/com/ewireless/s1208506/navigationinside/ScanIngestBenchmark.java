@@ -0,0 +1,104 @@
+package com.ewireless.s1208506.navigationinside;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Author: Gavin Waite
+ * The WifiScanner turning a WiFi scan into the ScanFrame handed to the Fragments, for scans of 10
+ * to 80 access points:
+ *   pooled  - parsed into a reused frame from a ScanFramePool and sorted, as WifiScanner does now
+ *   fresh   - a String per access point for wifi_networks and new arrays and a new frame for
+ *             every scan, as it did before
+ * Each then takes the strongest access points, as the PositioningFragment does.
+ *
+ * Run with the GC profiler (-prof gc): gc.alloc.rate.norm is the bytes allocated per scan, which
+ * is 0 for pooled once the pool has its frames.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScanIngestBenchmark {
+
+    private static final int SCANS = 64;
+
+    @Param({"10", "40", "80"})
+    public int scanSize;
+
+    // The ScanResult fields the WifiScanner reads, as the WifiManager would give them
+    private String[][] SSIDs;
+    private String[][] BSSIDs;
+    private int[][] levels;
+    private int[][] frequencies;
+    private long[][] timestamps;
+
+    private final ScanFramePool pool = new ScanFramePool();
+    private final long[] topBSSIDs = new long[FingerprintMatcher.WEIGHTS.length];
+    private final int[] topLevels = new int[FingerprintMatcher.WEIGHTS.length];
+    private int next = 0;
+
+    @Setup
+    public void setup(){
+        Random random = new Random(1208506);
+        SSIDs = new String[SCANS][scanSize];
+        BSSIDs = new String[SCANS][scanSize];
+        levels = new int[SCANS][scanSize];
+        frequencies = new int[SCANS][scanSize];
+        timestamps = new long[SCANS][scanSize];
+        for (int scan = 0; scan < SCANS; scan++){
+            for (int ap = 0; ap < scanSize; ap++){
+                SSIDs[scan][ap] = "eduroam";
+                BSSIDs[scan][ap] = MacAddress.format(0x001122000000L + random.nextInt(1000));
+                levels[scan][ap] = -30 - random.nextInt(65);
+                frequencies[scan][ap] = random.nextBoolean() ? 2412 + 5 * random.nextInt(13) : 5180 + 20 * random.nextInt(8);
+                timestamps[scan][ap] = scan * 1500000L + random.nextInt(1000000);
+            }
+        }
+    }
+
+    @Benchmark
+    public int pooled(){
+        int scan = next++ & (SCANS - 1);
+        ScanFrame frame = pool.acquire();
+        for (int ap = 0; ap < scanSize; ap++){
+            frame.add(MacAddress.parse(BSSIDs[scan][ap]), levels[scan][ap], frequencies[scan][ap]);
+            frame.timestamp = Math.max(frame.timestamp, timestamps[scan][ap]);
+        }
+        frame.sort();
+        int count = frame.top(topBSSIDs, topLevels);
+        pool.release(frame);
+        return count;
+    }
+
+    @Benchmark
+    public int fresh(){
+        int scan = next++ & (SCANS - 1);
+        String[] networks = new String[scanSize];
+        long[] parsed = new long[scanSize];
+        int[] scanLevels = new int[scanSize];
+        for (int ap = 0; ap < scanSize; ap++){
+            networks[ap] = SSIDs[scan][ap] + ", " + BSSIDs[scan][ap] + ", " + String.valueOf(levels[scan][ap]);
+            parsed[ap] = MacAddress.parse(BSSIDs[scan][ap]);
+            scanLevels[ap] = levels[scan][ap];
+        }
+        ScanFrame frame = new ScanFrame(parsed, scanLevels, scanSize);
+        long[] top = new long[FingerprintMatcher.WEIGHTS.length];
+        int[] topdBs = new int[FingerprintMatcher.WEIGHTS.length];
+        return frame.top(top, topdBs) + networks.length;
+    }
+}
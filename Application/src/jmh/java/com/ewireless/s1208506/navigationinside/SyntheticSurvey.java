@@ -0,0 +1,133 @@
+package com.ewireless.s1208506.navigationinside;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Author: Gavin Waite
+ * A randomly generated fingerprint database and set of live scans for the benchmarks
+ *
+ * The access points and reference points are scattered over a square area. Each point hears its
+ * apsPerPoint strongest access points, with a signal level falling off linearly with distance
+ * plus Gaussian noise of the given standard deviation in dB. The live scans are taken at the
+ * positions of random reference points with fresh noise, so the noise controls how well the
+ * scans match the survey.
+ *
+ * The same seed always gives the same survey, so runs can be compared.
+ */
+public class SyntheticSurvey {
+
+    // Signal level at an access point, and the fall off in dB across the whole area
+    private static final int LEVEL_AT_AP = -30;
+    private static final int FALL_OFF = 120;
+    private static final int FLOOR_LEVEL = -100;
+
+    private static final long BSSID_BASE = 0x001122000000L;
+
+    public final List<LocData> points;
+    public final long[][] scanBSSIDs;
+    public final int[][] scandBs;
+
+    private final Random random;
+    private final double[] apX;
+    private final double[] apY;
+    private final double noise;
+
+    // Scratch space for the strongest access points heard at a position
+    private final int[] heardAps;
+    private final int[] heardLevels;
+
+    /**
+     * @param points       - the number of reference points
+     * @param accessPoints - the number of distinct access points in the area
+     * @param apsPerPoint  - the number of access points heard by each reference point
+     * @param noise        - the standard deviation of the signal level noise in dB
+     * @param scans        - the number of live scans to generate
+     * @param seed         - the seed of the random numbers
+     */
+    public SyntheticSurvey(int points, int accessPoints, int apsPerPoint, double noise, int scans, long seed){
+        random = new Random(seed);
+        this.noise = noise;
+        apX = new double[accessPoints];
+        apY = new double[accessPoints];
+        for (int ap = 0; ap < accessPoints; ap++){
+            apX[ap] = random.nextDouble();
+            apY[ap] = random.nextDouble();
+        }
+        heardAps = new int[Math.min(apsPerPoint, accessPoints)];
+        heardLevels = new int[heardAps.length];
+
+        this.points = new ArrayList<>(points);
+        double[] x = new double[points];
+        double[] y = new double[points];
+        for (int uid = 0; uid < points; uid++){
+            x[uid] = random.nextDouble();
+            y[uid] = random.nextDouble();
+            int count = hear(x[uid], y[uid], heardAps.length);
+            LocData point = new LocData();
+            point.uid = uid;
+            point.latitude = 55.92 + y[uid] * 0.01;
+            point.longitude = -3.17 + x[uid] * 0.01;
+            point.BSSIDs = new long[count];
+            point.dBs = new int[count];
+            for (int i = 0; i < count; i++){
+                point.BSSIDs[i] = BSSID_BASE + heardAps[i];
+                point.dBs[i] = heardLevels[i];
+            }
+            this.points.add(point);
+        }
+
+        int live = FingerprintMatcher.WEIGHTS.length;
+        scanBSSIDs = new long[scans][live];
+        scandBs = new int[scans][live];
+        for (int scan = 0; scan < scans && points > 0; scan++){
+            int at = random.nextInt(points);
+            int count = hear(x[at], y[at], Math.min(live, heardAps.length));
+            for (int i = 0; i < count; i++){
+                scanBSSIDs[scan][i] = BSSID_BASE + heardAps[i];
+                scandBs[scan][i] = heardLevels[i];
+            }
+        }
+    }
+
+    /**
+     * A live scan of the strongest access points at a position, with fresh noise
+     * @param x - the position across the area from west (0) to east (1)
+     * @param y - the position across the area from south (0) to north (1)
+     */
+    public ScanFrame scan(double x, double y){
+        int count = hear(x, y, heardAps.length);
+        ScanFrame frame = new ScanFrame(count);
+        for (int i = 0; i < count; i++){
+            frame.add(BSSID_BASE + heardAps[i], heardLevels[i], 0);
+        }
+        return frame;
+    }
+
+    /**
+     * Find the n strongest access points at a position, strongest first, into heardAps/Levels
+     * @return the number found
+     */
+    private int hear(double x, double y, int n){
+        int count = 0;
+        for (int ap = 0; ap < apX.length; ap++){
+            double distance = Math.hypot(apX[ap] - x, apY[ap] - y);
+            int level = (int) Math.round(LEVEL_AT_AP - FALL_OFF * distance + random.nextGaussian() * noise);
+            level = Math.max(FLOOR_LEVEL, Math.min(-1, level));
+            if (count == n && level <= heardLevels[n - 1]){
+                continue;
+            }
+            // Insertion into the sorted top n
+            int i = count < n ? count++ : n - 1;
+            while (i > 0 && heardLevels[i - 1] < level){
+                heardAps[i] = heardAps[i - 1];
+                heardLevels[i] = heardLevels[i - 1];
+                i--;
+            }
+            heardAps[i] = ap;
+            heardLevels[i] = level;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,72 @@
+package com.ewireless.s1208506.navigationinside;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Author: Gavin Waite
+ * The end of a training session in TrainingFragment.stopStopwatch() - placing each reading along
+ * the TrainingPath and keeping its strongest access points - for sessions of 10 to 1000 readings
+ * with scans of varying size.
+ *
+ * Throughput gives sessions per second and SampleTime the p50/p99 latency. Run with the GC
+ * profiler (-prof gc) for the allocation rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TrainingBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int readings;
+
+    // Access points in each WiFi scan
+    @Param({"10", "40"})
+    public int scanSize;
+
+    private TrainingPath path;
+    private List<TrainingReading> session;
+    private long endTime;
+
+    @Setup
+    public void setup(){
+        Random random = new Random(1208506);
+        path = new TrainingPath(55.9225, -3.1722, 55.9231, -3.1709);
+        session = new ArrayList<>(readings);
+        // A scan about every 1.5 seconds while walking
+        long time = 0;
+        for (int i = 0; i < readings; i++){
+            long[] BSSIDs = new long[scanSize];
+            int[] levels = new int[scanSize];
+            for (int ap = 0; ap < scanSize; ap++){
+                BSSIDs[ap] = 0x001122000000L + random.nextInt(200);
+                levels[ap] = -30 - random.nextInt(65);
+            }
+            session.add(new TrainingReading(time, new ScanFrame(BSSIDs, levels, scanSize)));
+            time += 1000 + random.nextInt(1000);
+        }
+        endTime = time;
+    }
+
+    @Benchmark
+    public List<LocData> interpolateSession(){
+        return path.toReferencePoints(session, endTime, LocData.DEFAULT_MAX_ACCESS_POINTS);
+    }
+}
@@ -0,0 +1,119 @@
+package com.ewireless.s1208506.navigationinside;
+
+import java.util.Arrays;
+
+/**
+ * Author: Gavin Waite
+ * Assigns a small dense integer id to each distinct 48-bit BSSID
+ *
+ * This is an open addressing hash table over primitive longs, so looking up the access points of
+ * a live scan does not box or allocate. The ids are handed out in order 0, 1, 2... and can be
+ * used directly as array indices by the structures built on top of it.
+ */
+public class BssidDictionary {
+
+    // Returned when a BSSID has not been seen before
+    public static final int MISSING = -1;
+
+    private long[] keys;
+    private int[] ids;
+    private long[] byId;
+    private int size;
+
+    public BssidDictionary(){
+        this(64);
+    }
+
+    public BssidDictionary(int expected){
+        int capacity = 16;
+        while (capacity < expected * 2){
+            capacity <<= 1;
+        }
+        keys = new long[capacity];
+        ids = new int[capacity];
+        byId = new long[Math.max(expected, 16)];
+    }
+
+    public int size(){
+        return size;
+    }
+
+    /**
+     * @return the id of the BSSID, or MISSING if it is NONE or has not been added
+     */
+    public int get(long BSSID){
+        if (BSSID == MacAddress.NONE){
+            return MISSING;
+        }
+        int mask = keys.length - 1;
+        int slot = hash(BSSID) & mask;
+        while (keys[slot] != MacAddress.NONE){
+            if (keys[slot] == BSSID){
+                return ids[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return MISSING;
+    }
+
+    /**
+     * @return the id of the BSSID, adding it to the dictionary if it is new, or MISSING for NONE
+     */
+    public int add(long BSSID){
+        if (BSSID == MacAddress.NONE){
+            return MISSING;
+        }
+        int id = get(BSSID);
+        if (id != MISSING){
+            return id;
+        }
+        if ((size + 1) * 2 > keys.length){
+            grow();
+        }
+        id = size++;
+        if (id == byId.length){
+            long[] bigger = new long[byId.length * 2];
+            System.arraycopy(byId, 0, bigger, 0, byId.length);
+            byId = bigger;
+        }
+        byId[id] = BSSID;
+        insert(BSSID, id);
+        return id;
+    }
+
+    /**
+     * @return the BSSID which was given the id
+     */
+    public long bssid(int id){
+        return byId[id];
+    }
+
+    public void clear(){
+        Arrays.fill(keys, MacAddress.NONE);
+        size = 0;
+    }
+
+    private void insert(long BSSID, int id){
+        int mask = keys.length - 1;
+        int slot = hash(BSSID) & mask;
+        while (keys[slot] != MacAddress.NONE){
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = BSSID;
+        ids[slot] = id;
+    }
+
+    private void grow(){
+        keys = new long[keys.length * 2];
+        ids = new int[keys.length];
+        for (int id = 0; id < size; id++){
+            insert(byId[id], id);
+        }
+    }
+
+    private static int hash(long BSSID){
+        // The low bytes of a MAC vary the most, mix them into the whole int
+        long h = BSSID * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
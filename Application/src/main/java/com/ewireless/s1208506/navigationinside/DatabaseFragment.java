@@ -1,35 +1,69 @@
 package com.ewireless.s1208506.navigationinside;
 
-import android.os.AsyncTask;
+import android.app.Activity;
+import android.content.Intent;
+import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.Nullable;
 import android.support.v4.app.Fragment;
-import android.text.method.ScrollingMovementMethod;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.BaseAdapter;
 import android.widget.Button;
+import android.widget.ListView;
 import android.widget.TextView;
+import android.widget.Toast;
 
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Author: Gavin Waite
  * An Android Fragment representing the debug tab of the navigation application
- * The full database is viewable in a scrollable TextView so that readings can be verified
- * and analysed. Buttons exist to allow the user to clear the database or refresh the TextView.
+ * The full database is viewable in a scrolling list so that readings can be verified and
+ * analysed. The list is read from the database a page at a time as it is scrolled (see
+ * PagedPoints), so a large survey opens as quickly as a small one. Buttons exist to allow the user
+ * to clear the database or refresh the list.
  * The database uses the Room API.
+ * The survey can also be exported to a file and imported on another device (see SurveyFile), with
+ * the file picked through the system's document picker.
  *
  * This tab would only be hidden by default in a final application but is useful for debugging
  * during the development phase
  */
-public class DatabaseFragment extends Fragment implements View.OnClickListener{
+public class DatabaseFragment extends Fragment implements View.OnClickListener, FingerprintModel.Listener,
+        FingerprintModel.TransferCallback, PagedPoints.Listener {
+
+    // Request codes for the document picker
+    private static final int REQUEST_IMPORT = 1;
+    private static final int REQUEST_EXPORT_CSV = 2;
+    private static final int REQUEST_EXPORT_BINARY = 3;
+
+    // The shared in-memory copy of the database
+    private FingerprintModel model;
+
+    // The pages of the table on display, read on their own thread
+    private PagedPoints pages;
+    private ExecutorService pageExecutor;
+    private PointAdapter adapter;
 
     // Handles to the UI elements
     private Button refreshBut;
     private Button clearBut;
-    private TextView databaseOutput;
+    private Button importBut;
+    private Button exportCsvBut;
+    private Button exportBinaryBut;
+    private TextView databaseTitle;
+    private ListView databaseList;
 
     @Nullable
     @Override
@@ -40,19 +74,55 @@ public class DatabaseFragment extends Fragment implements View.OnClickListener{
         // Acquire handles for the UI elements and perform initial set-up
         linkInterface(rootView);
 
-        // Load from the database into the local copy
+        // Display the database a page at a time, and follow any changes to it
+        model = ((MainActivity)getActivity()).fingerprintModel;
+        model.addListener(this);
+        pageExecutor = Executors.newSingleThreadExecutor();
+        final Handler handler = new Handler(Looper.getMainLooper());
+        pages = new PagedPoints(new DatabaseSource(model.getDatabase()), pageExecutor, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                handler.post(command);
+            }
+        }, this);
+        adapter = new PointAdapter();
+        databaseList.setAdapter(adapter);
         loadDatabase();
 
         return rootView;
     }
 
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        model.removeListener(this);
+        pageExecutor.shutdownNow();
+    }
+
+    /**
+     * Called by the FingerprintModel on the main thread whenever the reference points change
+     */
+    @Override
+    public void onModelChanged(FingerprintModel model){
+        loadDatabase();
+    }
+
+    /**
+     * Called by the PagedPoints on the main thread when the count or a page has been read
+     */
+    @Override
+    public void onPagesChanged(){
+        if (isAdded()){
+            adapter.notifyDataSetChanged();
+        }
+    }
+
     /**
-     * Perform the initialisation of the buttons and scrolling TextView
+     * Perform the initialisation of the buttons and scrolling list
      * Link the references to each element to this Fragment
      * Also sets up listeners for the two Buttons s that this Fragment can implement an onClick
      * Callback.
-     * The TextView is set to be scrollable in the layout file and here the Scrolling behaviour is
-     * implemented so that the user can drag the list to move it up or down.
+     * The list only creates views for the rows on screen and reuses them as it is scrolled.
      * @param rootView - the root View for the tab
      */
     private void linkInterface(View rootView){
@@ -62,12 +132,20 @@ public class DatabaseFragment extends Fragment implements View.OnClickListener{
         clearBut = (Button) rootView.findViewById(R.id.clear);
         clearBut.setOnClickListener(this);
 
-        databaseOutput = (TextView) rootView.findViewById(R.id.dbText);
-        databaseOutput.setMovementMethod(new ScrollingMovementMethod());
+        importBut = (Button) rootView.findViewById(R.id.importSurvey);
+        importBut.setOnClickListener(this);
+        exportCsvBut = (Button) rootView.findViewById(R.id.exportCsv);
+        exportCsvBut.setOnClickListener(this);
+        exportBinaryBut = (Button) rootView.findViewById(R.id.exportBinary);
+        exportBinaryBut.setOnClickListener(this);
+
+        databaseTitle = (TextView) rootView.findViewById(R.id.databaseText);
+
+        databaseList = (ListView) rootView.findViewById(R.id.dbList);
     }
 
     /**
-     * Provides the on-click functionality for the two buttons and links them to teh correct handler
+     * Provides the on-click functionality for the buttons and links them to teh correct handler
      */
     @Override
     public void onClick(View view) {
@@ -78,66 +156,198 @@ public class DatabaseFragment extends Fragment implements View.OnClickListener{
             case R.id.clear:
                 clearDatabase();
                 break;
+            case R.id.importSurvey:
+                pickDocument(Intent.ACTION_OPEN_DOCUMENT, null, REQUEST_IMPORT);
+                break;
+            case R.id.exportCsv:
+                pickDocument(Intent.ACTION_CREATE_DOCUMENT, "survey.csv", REQUEST_EXPORT_CSV);
+                break;
+            case R.id.exportBinary:
+                pickDocument(Intent.ACTION_CREATE_DOCUMENT, "survey.nifs", REQUEST_EXPORT_BINARY);
+                break;
             default:
                 // Do nothing
         }
     }
 
     /**
-     * The implementation of the Room database task: load
-     * Executes an asynchronous task as required by the Room API
-     *
-     * Queries the database for all entries and updates the UI
+     * Count the table again and drop the pages already read, which are read again as they are
+     * shown
      */
     private void loadDatabase(){
-        new LoadDatabaseTask().execute();
+        Log.d("DB","Displaying the db");
+        pages.refresh();
     }
 
-    private class LoadDatabaseTask extends AsyncTask<Void, Void, List<LocData>>{
+    /**
+     * Reads the pages of the table for the PagedPoints, on the page thread
+     */
+    private static class DatabaseSource implements PagedPoints.Source {
+        private final LocationDatabase db;
+
+        DatabaseSource(LocationDatabase db){
+            this.db = db;
+        }
+
         @Override
-        protected List<LocData> doInBackground(Void... params){
-            Log.d("DB","Starting background task");
-            return ((MainActivity)getActivity()).db.locDao().getAll();
+        public int count() {
+            return db.locDao().countEntries();
         }
 
         @Override
-        protected void onPostExecute(List<LocData> locations){
-            Log.d("DB","In post execute");
-
-            String databaseText= "";
-            for (LocData element : locations){
-                Log.d("DB", "Found an element");
-                databaseText += element.uid;
-                databaseText += "\n" + element.latitude + " : " + element.longitude;
-                databaseText += "\n" + element.BSSID_1 + " - " + element.dB_1;
-                databaseText += "\n" + element.BSSID_2 + " - " + element.dB_2;
-                databaseText += "\n" + element.BSSID_3 + " - " + element.dB_3;
-                databaseText += "\n\n";
-            }
+        public List<LocData> loadAfter(int afterUid, int limit) {
+            List<LocData> points = db.locDao().getPageAfter(afterUid, limit);
+            LocData.attachAccessPoints(points, db.locDao().getPageAccessPointsAfter(afterUid, limit));
+            return points;
+        }
+
+        @Override
+        public List<LocData> loadAt(int offset, int limit) {
+            List<LocData> points = db.locDao().getPageAt(offset, limit);
+            LocData.attachAccessPoints(points, db.locDao().getPageAccessPointsAt(offset, limit));
+            return points;
+        }
+    }
+
+    /**
+     * Shows a reference point per row, in the same form as the old single TextView, with a
+     * placeholder while its page is read
+     */
+    private class PointAdapter extends BaseAdapter {
+        private final StringBuilder text = new StringBuilder();
 
-            databaseOutput.setText(databaseText);
+        @Override
+        public int getCount() {
+            return pages.getCount();
+        }
+
+        @Override
+        public Object getItem(int position) {
+            return pages.get(position);
+        }
 
+        @Override
+        public long getItemId(int position) {
+            return position;
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            TextView row = (TextView) convertView;
+            if (row == null){
+                row = (TextView) LayoutInflater.from(parent.getContext())
+                        .inflate(R.layout.database_item, parent, false);
+            }
+            LocData element = pages.get(position);
+            if (element == null){
+                row.setText("Loading...");
+                return row;
+            }
+            text.setLength(0);
+            text.append(element.uid);
+            text.append("\n").append(element.latitude).append(" : ").append(element.longitude);
+            for (int i = 0; i < element.BSSIDs.length; i++){
+                text.append("\n").append(MacAddress.format(element.BSSIDs[i])).append(" - ").append(element.dBs[i]);
+            }
+            row.setText(text.toString());
+            return row;
         }
     }
 
     /**
-     * The implementation of the Room database task: clear
-     * Executes an asynchronous task as required by the Room API
+     * Clear the database via the shared FingerprintModel
+     * The delete is run in the background and the model then notifies this Fragment
      *
      * Deletes all entries from the database
      * This might be useful for demonstration purposes or if data is corrupted or no longer valid
      * (Consider that a location may change its WiFi infrastructure at a later date)
      */
     private void clearDatabase(){
-        new ClearDatabaseTask().execute();
+        model.clear();
     }
 
-    private class ClearDatabaseTask extends AsyncTask<Void, Void, Void>{
-        @Override
-        protected Void doInBackground(Void... args){
-            Log.d("DB","Nuking the db");
-            ((MainActivity)getActivity()).db.locDao().deleteAll();
-            return null;
+    /**
+     * Ask the user for a file to import from or export to, the result arrives in onActivityResult
+     * @param action      - ACTION_OPEN_DOCUMENT or ACTION_CREATE_DOCUMENT
+     * @param title       - the suggested name of a new file, or null
+     * @param requestCode - which of the three buttons was pressed
+     */
+    private void pickDocument(String action, String title, int requestCode){
+        Intent intent = new Intent(action);
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        intent.setType(title != null && title.endsWith(".csv") ? "text/csv" : "*/*");
+        if (title != null){
+            intent.putExtra(Intent.EXTRA_TITLE, title);
+        }
+        startActivityForResult(intent, requestCode);
+    }
+
+    /**
+     * Start the import or export once the user has picked the file
+     * The transfer runs on the FingerprintModel's database thread and reports back through the
+     * TransferCallback methods below
+     */
+    @Override
+    public void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (resultCode != Activity.RESULT_OK || data == null || data.getData() == null){
+            return;
+        }
+        Uri uri = data.getData();
+        try {
+            switch (requestCode) {
+                case REQUEST_IMPORT:
+                    InputStream in = getContext().getContentResolver().openInputStream(uri);
+                    setTransferring(true);
+                    model.importSurvey(in, this);
+                    break;
+                case REQUEST_EXPORT_CSV:
+                case REQUEST_EXPORT_BINARY:
+                    OutputStream out = getContext().getContentResolver().openOutputStream(uri);
+                    setTransferring(true);
+                    model.exportSurvey(out, requestCode == REQUEST_EXPORT_CSV
+                            ? SurveyFile.Format.CSV : SurveyFile.Format.BINARY, this);
+                    break;
+                default:
+                    // Do nothing
+            }
+        } catch (FileNotFoundException e){
+            Log.e("DB", "Could not open " + uri, e);
+            Toast.makeText(getContext(), "Could not open the file", Toast.LENGTH_LONG).show();
+        }
+    }
+
+    // Only one transfer at a time
+    private void setTransferring(boolean transferring){
+        importBut.setEnabled(!transferring);
+        exportCsvBut.setEnabled(!transferring);
+        exportBinaryBut.setEnabled(!transferring);
+        clearBut.setEnabled(!transferring);
+    }
+
+    @Override
+    public void onTransferProgress(int points){
+        if (isAdded()){
+            databaseTitle.setText("Database (" + points + " points)");
+        }
+    }
+
+    @Override
+    public void onTransferFinished(int points){
+        if (isAdded()){
+            setTransferring(false);
+            databaseTitle.setText("Database");
+            Toast.makeText(getContext(), "Transferred " + points + " points", Toast.LENGTH_LONG).show();
+        }
+    }
+
+    @Override
+    public void onTransferFailed(int points, Exception e){
+        if (isAdded()){
+            setTransferring(false);
+            databaseTitle.setText("Database");
+            Toast.makeText(getContext(), "Transfer failed after " + points + " points: " + e.getMessage(),
+                    Toast.LENGTH_LONG).show();
         }
     }
 }
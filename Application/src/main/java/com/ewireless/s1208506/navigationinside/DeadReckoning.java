@@ -0,0 +1,259 @@
+package com.ewireless.s1208506.navigationinside;
+
+/**
+ * Author: Gavin Waite
+ * Pedestrian dead reckoning: turns the accelerometer and gyroscope samples of a phone carried by
+ * a walking user into steps, each with a length and a heading, so that the position can be carried
+ * on between the slow WiFi scans
+ *
+ * The samples are buffered in a SampleRing per sensor and processed in time order by process().
+ *  - Gravity is the accelerometer low-passed over GRAVITY_TIME, so the phone may be held at any
+ *    angle. The acceleration along it, less g and lightly smoothed, rises and falls once a step.
+ *  - A step is counted when that acceleration rises above STEP_THRESHOLD and falls back below 0,
+ *    at least MIN_STEP_INTERVAL after the last. Its length follows the Weinberg estimate from the
+ *    largest and smallest acceleration of the step, K * (max - min)^(1/4).
+ *  - The heading is the gyroscope's rate of turn about gravity, integrated. It is in radians
+ *    clockwise from the way the phone faced when started, not from north, as there is no compass;
+ *    the ParticleFilter works out how that lines up with the survey from the scans.
+ *
+ * Times are the sensor timestamps in nanoseconds, steps are reported in milliseconds.
+ * Not thread safe, the InertialSensors add and process the samples on its sensor thread.
+ */
+public class DeadReckoning {
+
+    /**
+     * Receives each step as it is detected
+     */
+    public interface Listener {
+        /**
+         * @param time    - when the step was made, in milliseconds
+         * @param length  - its length in metres
+         * @param heading - the direction of the step in radians, clockwise from the start
+         */
+        void onStep(long time, double length, double heading);
+    }
+
+    // Samples held per sensor, 10 s at 50 Hz so a whole hardware batch fits
+    static final int RING_CAPACITY = 512;
+    // The time constants of the gravity estimate and of the step signal, in seconds
+    static final double GRAVITY_TIME = 1.0;
+    static final double SMOOTHING_TIME = 0.04;
+    // The acceleration along gravity, in m/s^2, that starts a step
+    static final double STEP_THRESHOLD = 1.0;
+    // Steps closer together than this (in ns) are one step, no one walks at over 4 steps a second
+    static final long MIN_STEP_INTERVAL = 250000000L;
+    // The Weinberg step length constant, and the shortest and longest step it may give, in metres
+    static final double WEINBERG_K = 0.45;
+    static final double MIN_LENGTH = 0.3;
+    static final double MAX_LENGTH = 1.2;
+    // A gap between samples longer than this (in ns) is not integrated across
+    static final long MAX_SAMPLE_GAP = 500000000L;
+
+    private static final double GRAVITY = 9.80665;
+    private static final double NANOS = 1e-9;
+
+    private final SampleRing accelerations = new SampleRing(RING_CAPACITY);
+    private final SampleRing rotations = new SampleRing(RING_CAPACITY);
+    private boolean useGyroscope = true;
+    private Listener listener;
+
+    // The gravity estimate, or none yet
+    private boolean hasGravity = false;
+    private double gravityX;
+    private double gravityY;
+    private double gravityZ;
+    private long lastAcceleration;
+    private double vertical;
+
+    // The step being made: whether the threshold has been crossed, the largest and smallest
+    // acceleration and when the peak was
+    private boolean rising = false;
+    private double peak;
+    private double valley;
+    private long peakTime;
+    private long lastStep = Long.MIN_VALUE / 2;
+
+    private long lastRotation;
+    private boolean hasRotation = false;
+    private double heading = 0;
+
+    private int steps = 0;
+    private double distance = 0;
+
+    public void setListener(Listener listener){
+        this.listener = listener;
+    }
+
+    /**
+     * Whether gyroscope samples are expected. Without one the accelerometer samples are processed
+     * as they come rather than waiting for rotations to line up with, and every step is reported
+     * with the same heading.
+     */
+    public void setGyroscope(boolean useGyroscope){
+        this.useGyroscope = useGyroscope;
+    }
+
+    /**
+     * Buffer an accelerometer sample, in m/s^2 including gravity
+     */
+    public void addAcceleration(long time, float x, float y, float z){
+        accelerations.add(time, x, y, z);
+    }
+
+    /**
+     * Buffer a gyroscope sample, in rad/s counter-clockwise about each axis
+     */
+    public void addRotation(long time, float x, float y, float z){
+        rotations.add(time, x, y, z);
+    }
+
+    /**
+     * Process the buffered samples in time order, reporting any steps to the Listener
+     * While the gyroscope is used, samples later than the last of the other sensor are kept for
+     * the next call, as its batch may not have been delivered yet, unless their ring is half full
+     */
+    public void process(){
+        int half = accelerations.capacity() / 2;
+        while (true){
+            boolean haveAcceleration = accelerations.size() > 0;
+            boolean haveRotation = rotations.size() > 0;
+            if (haveAcceleration && (!useGyroscope || (haveRotation
+                    ? accelerations.time() <= rotations.time() : accelerations.size() > half))){
+                processAcceleration();
+            }
+            else if (haveRotation && (haveAcceleration || rotations.size() > half)){
+                processRotation();
+            }
+            else {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Forget the buffered samples and the heading, e.g. when the sensors are stopped
+     */
+    public void reset(){
+        accelerations.clear();
+        rotations.clear();
+        hasGravity = false;
+        hasRotation = false;
+        rising = false;
+        heading = 0;
+    }
+
+    /**
+     * @return the heading in radians clockwise from the start, after the last processed sample
+     */
+    public double getHeading(){
+        return heading;
+    }
+
+    public int getSteps(){
+        return steps;
+    }
+
+    /**
+     * @return the total length of the steps in metres
+     */
+    public double getDistance(){
+        return distance;
+    }
+
+    /**
+     * @return the number of samples lost as processing fell behind
+     */
+    public long getDropped(){
+        return accelerations.getDropped() + rotations.getDropped();
+    }
+
+    private void processAcceleration(){
+        long time = accelerations.time();
+        double x = accelerations.x();
+        double y = accelerations.y();
+        double z = accelerations.z();
+        accelerations.remove();
+
+        long gap = time - lastAcceleration;
+        lastAcceleration = time;
+        if (!hasGravity || gap <= 0 || gap > MAX_SAMPLE_GAP){
+            gravityX = x;
+            gravityY = y;
+            gravityZ = z;
+            hasGravity = true;
+            vertical = 0;
+            rising = false;
+            return;
+        }
+        double seconds = gap * NANOS;
+        double alpha = seconds / (GRAVITY_TIME + seconds);
+        gravityX += alpha * (x - gravityX);
+        gravityY += alpha * (y - gravityY);
+        gravityZ += alpha * (z - gravityZ);
+        double norm = Math.sqrt(gravityX * gravityX + gravityY * gravityY + gravityZ * gravityZ);
+        if (norm == 0){
+            return;
+        }
+        double along = (x * gravityX + y * gravityY + z * gravityZ) / norm - GRAVITY;
+        vertical += seconds / (SMOOTHING_TIME + seconds) * (along - vertical);
+
+        valley = Math.min(valley, vertical);
+        if (!rising){
+            if (vertical > STEP_THRESHOLD){
+                rising = true;
+                peak = vertical;
+                peakTime = time;
+            }
+        }
+        else if (vertical > peak){
+            peak = vertical;
+            peakTime = time;
+        }
+        else if (vertical < 0){
+            rising = false;
+            if (peakTime - lastStep >= MIN_STEP_INTERVAL){
+                step(peakTime, peak - Math.min(valley, 0));
+                lastStep = peakTime;
+                valley = vertical;
+            }
+        }
+    }
+
+    private void step(long time, double range){
+        double length = Math.max(MIN_LENGTH, Math.min(MAX_LENGTH, WEINBERG_K * Math.sqrt(Math.sqrt(range))));
+        steps++;
+        distance += length;
+        if (listener != null){
+            listener.onStep(time / 1000000, length, heading);
+        }
+    }
+
+    private void processRotation(){
+        long time = rotations.time();
+        double x = rotations.x();
+        double y = rotations.y();
+        double z = rotations.z();
+        rotations.remove();
+
+        long gap = time - lastRotation;
+        lastRotation = time;
+        if (!hasRotation || !hasGravity || gap <= 0 || gap > MAX_SAMPLE_GAP){
+            hasRotation = true;
+            return;
+        }
+        double norm = Math.sqrt(gravityX * gravityX + gravityY * gravityY + gravityZ * gravityZ);
+        if (norm == 0){
+            return;
+        }
+        // Turning counter-clockwise about the upward gravity reading is turning left, so the
+        // heading clockwise from the start falls
+        double rate = (x * gravityX + y * gravityY + z * gravityZ) / norm;
+        heading -= rate * gap * NANOS;
+        if (heading > Math.PI){
+            heading -= 2 * Math.PI;
+        }
+        else if (heading < -Math.PI){
+            heading += 2 * Math.PI;
+        }
+    }
+}
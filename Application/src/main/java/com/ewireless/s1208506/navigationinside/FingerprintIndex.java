@@ -0,0 +1,126 @@
+package com.ewireless.s1208506.navigationinside;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Author: Gavin Waite
+ * An inverted index over the reference points keyed by WiFi access point BSSID
+ *
+ * Each BSSID maps to the positions of every reference point which heard that access point in its
+ * training scan. Given a live scan, the index can then return only the reference points which
+ * share at least one access point with it, so that the positioning algorithm does not have to
+ * walk the full database on every scan.
+ *
+ * The index keeps the reference points in the order they were added (the database order) so that
+ * ties are broken in the same way as a plain walk through the list would.
+ */
+public class FingerprintIndex {
+
+    // The reference points in database order
+    private List<LocData> points = new ArrayList<>();
+
+    // BSSID -> dense id, and id -> positions in points[] of the reference points with that BSSID
+    private BssidDictionary dictionary = new BssidDictionary();
+    private int[][] postings = new int[64][];
+    private int[] postingSizes = new int[64];
+
+    /**
+     * Discard the current contents and index the given list of reference points
+     * @param locations - the full list of reference points, in database order
+     */
+    public void rebuild(List<LocData> locations){
+        clear();
+        for (LocData location : locations){
+            add(location);
+        }
+    }
+
+    /**
+     * Incrementally add a single new reference point to the index
+     * @param location - the newly recorded reference point
+     */
+    public void add(LocData location){
+        int position = points.size();
+        points.add(location);
+        for (long BSSID : location.BSSIDs){
+            addPosting(BSSID, position);
+        }
+    }
+
+    /**
+     * Remove every reference point from the index, e.g. after the database has been cleared
+     */
+    public void clear(){
+        points = new ArrayList<>();
+        dictionary.clear();
+        postings = new int[64][];
+        postingSizes = new int[64];
+    }
+
+    public int size(){
+        return points.size();
+    }
+
+    public LocData get(int position){
+        return points.get(position);
+    }
+
+    public List<LocData> getPoints(){
+        return points;
+    }
+
+    /**
+     * Find every reference point which shares at least one access point with the live scan
+     * @param BSSIDs - the BSSIDs of the live scan, MacAddress.NONE entries are ignored
+     * @param result - cleared and then filled with the positions of the candidate reference
+     *                 points, iterable in ascending order
+     */
+    public void candidates(long[] BSSIDs, BitSet result){
+        result.clear();
+        for (long BSSID : BSSIDs){
+            int id = dictionary.get(BSSID);
+            if (id == BssidDictionary.MISSING){
+                continue;
+            }
+            int[] positions = postings[id];
+            for (int i = 0; i < postingSizes[id]; i++){
+                result.set(positions[i]);
+            }
+        }
+    }
+
+    private void addPosting(long BSSID, int position){
+        int id = dictionary.add(BSSID);
+        if (id == BssidDictionary.MISSING){
+            return;
+        }
+        if (id == postings.length){
+            int[][] biggerPostings = new int[id * 2][];
+            System.arraycopy(postings, 0, biggerPostings, 0, id);
+            postings = biggerPostings;
+            int[] biggerSizes = new int[id * 2];
+            System.arraycopy(postingSizes, 0, biggerSizes, 0, id);
+            postingSizes = biggerSizes;
+        }
+        int[] positions = postings[id];
+        int count = postingSizes[id];
+        if (positions == null){
+            positions = new int[4];
+            postings[id] = positions;
+        }
+        // A point may list the same BSSID twice, only index it once
+        if (count > 0 && positions[count - 1] == position){
+            return;
+        }
+        if (count == positions.length){
+            int[] bigger = new int[count * 2];
+            System.arraycopy(positions, 0, bigger, 0, count);
+            positions = bigger;
+            postings[id] = positions;
+        }
+        positions[count] = position;
+        postingSizes[id] = count + 1;
+    }
+}
@@ -0,0 +1,210 @@
+package com.ewireless.s1208506.navigationinside;
+
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Author: Gavin Waite
+ * The indoor positioning algorithm, separated from the PositioningFragment so that it can be run
+ * and tested without the Android UI.
+ *
+ * The live scan is described by the BSSIDs (as 48-bit longs, see MacAddress) and signal levels of
+ * its (up to) 3 strongest access points. Each reference point is scored on how closely the signal
+ * levels in its stored fingerprint, of any length, match those of the live scan, and the highest
+ * scoring reference point is taken as the user's location.
+ *
+ * matchLinear() walks every reference point in the database. matchIndexed() uses a
+ * FingerprintIndex to only score the reference points which share an access point with the live
+ * scan, scoring them from the packed FingerprintMatrix, and returns exactly the same result.
+ * Given a ParallelMatcher rather than a Scorer, large surveys are scored across several cores.
+ */
+public class FingerprintMatcher {
+
+    // The relative importance of the strongest WiFi networks of the live scan in the decision
+    // algorithm, the number of weights is the number of live access points which are used
+    public static final float[] WEIGHTS = {1.0f, 0.6f, 0.3f};
+
+    // Initial value of the best score, below that of any reference point
+    private static final int NO_SCORE = -1000;
+
+    /**
+     * The result of a match - the closest reference point, its score and its error in dB
+     */
+    public static class Match {
+        public final LocData point;
+        public final int score;
+        public final int error;
+
+        public Match(LocData point, int score, int error){
+            this.point = point;
+            this.score = score;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Walk through all reference points and look for the closest match
+     * @param dataB   - the reference points in database order
+     * @param BSSIDs  - the BSSIDs of the 3 strongest access points in the live scan (or NONE)
+     * @param dBs     - the matching signal levels of the live scan
+     * @return the best matching point, or null if there are no reference points
+     */
+    public static Match matchLinear(List<LocData> dataB, long[] BSSIDs, int[] dBs){
+        int[] error = new int[1];
+        int bestScore = NO_SCORE;
+        LocData closestPoint = null;
+        int primaryError = 0;
+
+        for (LocData refPoint : dataB){
+            int refPoint_score = score(refPoint, BSSIDs, dBs, error);
+            // If the point is the new best then save it and continue looking
+            if (refPoint_score > bestScore){
+                bestScore = refPoint_score;
+                closestPoint = refPoint;
+                primaryError = error[0];
+            }
+        }
+
+        if (closestPoint == null){
+            return null;
+        }
+        return new Match(closestPoint, bestScore, primaryError);
+    }
+
+    /**
+     * Score only the reference points which share at least one access point with the live scan
+     *
+     * The candidates are found with the FingerprintIndex and scored from the FingerprintMatrix,
+     * whose rows must be the same reference points in the same order.
+     * A reference point without any shared access point always scores 0 with no error. Only if no
+     * candidate scores above 0 could such a point win the linear walk, in which case the first
+     * point in database order scoring 0 is returned to keep the two methods identical.
+     * @param index   - the index of the reference points
+     * @param scorer  - a Scorer of the matrix of the same reference points
+     * @param BSSIDs  - the BSSIDs of the 3 strongest access points in the live scan (or NONE)
+     * @param dBs     - the matching signal levels of the live scan
+     * @return the best matching point, or null if there are no reference points
+     */
+    public static Match matchIndexed(FingerprintIndex index, FingerprintMatrix.Scorer scorer,
+                                     long[] BSSIDs, int[] dBs){
+        scorer.setK(0);
+        scorer.setScan(BSSIDs, dBs);
+        BitSet candidates = scorer.candidates;
+        index.candidates(BSSIDs, candidates);
+        scorer.scoreCandidates(candidates, 0, index.size());
+        return closest(index, candidates, scorer.bestRow, scorer.bestScore, scorer.bestError);
+    }
+
+    /**
+     * As matchIndexed() above, but with the candidates scored across several cores once there
+     * are enough reference points for that to pay off
+     * @param matcher - a ParallelMatcher of the matrix of the same reference points
+     */
+    public static Match matchIndexed(FingerprintIndex index, ParallelMatcher matcher,
+                                     long[] BSSIDs, int[] dBs){
+        matcher.setK(0);
+        BitSet candidates = matcher.candidates;
+        index.candidates(BSSIDs, candidates);
+        matcher.match(BSSIDs, dBs, candidates);
+        return closest(index, candidates, matcher.bestRow, matcher.bestScore, matcher.bestError);
+    }
+
+    // The best of the scored candidates, or the first reference point sharing no access points
+    private static Match closest(FingerprintIndex index, BitSet candidates,
+                                 int bestPosition, int bestScore, int primaryError){
+        // A reference point sharing no access points scores 0, compare against the first of them
+        int firstUnmatched = candidates.nextClearBit(0);
+        if (firstUnmatched < index.size()){
+            if (bestPosition < 0 || bestScore < 0 || (bestScore == 0 && firstUnmatched < bestPosition)){
+                bestScore = 0;
+                bestPosition = firstUnmatched;
+                primaryError = 0;
+            }
+        }
+
+        if (bestPosition < 0){
+            return null;
+        }
+        return new Match(index.get(bestPosition), bestScore, primaryError);
+    }
+
+    /**
+     * The k-nearest-neighbour mode: rather than snapping to the single best reference point, the
+     * k best scoring candidates are kept in a bounded heap during the same pass and the estimate
+     * is their score weighted centroid. Only reference points sharing an access point with the
+     * live scan are considered. O(n log k) with no allocation per candidate.
+     * @param index    - the index of the reference points
+     * @param scorer   - a Scorer of the matrix of the same reference points
+     * @param BSSIDs   - the BSSIDs of the strongest access points in the live scan (or NONE)
+     * @param dBs      - the matching signal levels of the live scan
+     * @param k        - the number of neighbours
+     * @param estimate - receives the estimated position
+     * @return false if no reference point shares an access point with the live scan
+     */
+    public static boolean matchKnn(FingerprintIndex index, FingerprintMatrix.Scorer scorer,
+                                   long[] BSSIDs, int[] dBs, int k, PositionEstimate estimate){
+        scorer.setK(k);
+        scorer.setScan(BSSIDs, dBs);
+        BitSet candidates = scorer.candidates;
+        index.candidates(BSSIDs, candidates);
+        scorer.scoreCandidates(candidates, 0, index.size());
+        if (!estimate.setWeightedCentroid(scorer.getTopK(), scorer.getMatrix())){
+            return false;
+        }
+        estimate.error = scorer.bestError;
+        return true;
+    }
+
+    /**
+     * As matchKnn() above, with the candidates scored across several cores
+     * @param matcher - a ParallelMatcher of the matrix of the same reference points
+     */
+    public static boolean matchKnn(FingerprintIndex index, ParallelMatcher matcher,
+                                   long[] BSSIDs, int[] dBs, int k, PositionEstimate estimate){
+        matcher.setK(k);
+        BitSet candidates = matcher.candidates;
+        index.candidates(BSSIDs, candidates);
+        matcher.match(BSSIDs, dBs, candidates);
+        if (!estimate.setWeightedCentroid(matcher.getTopK(), matcher.getMatrix())){
+            return false;
+        }
+        estimate.error = matcher.bestError;
+        return true;
+    }
+
+    /**
+     * Score a single reference point against the live scan
+     * Each of the strongest live access points that also appears anywhere in the fingerprint of
+     * the reference point adds its weighted closeness in dB to the score
+     * @param refPoint - the reference point
+     * @param BSSIDs   - the live BSSIDs, strongest first
+     * @param dBs      - the live signal levels
+     * @param error    - single element array which receives the dB error of the point
+     * @return the score, higher is a closer match
+     */
+    static int score(LocData refPoint, long[] BSSIDs, int[] dBs, int[] error){
+        long[] refBSSIDs = refPoint.BSSIDs;
+        int[] refdBs = refPoint.dBs;
+
+        int refPoint_score = 0;
+        int refPointError = 0;
+
+        int live = Math.min(BSSIDs.length, WEIGHTS.length);
+        for (int i = 0; i < live; i++){
+            if (BSSIDs[i] == MacAddress.NONE || dBs[i] == 0){
+                continue;
+            }
+            for (int j = 0; j < refBSSIDs.length; j++){
+                if (BSSIDs[i] == refBSSIDs[j]){
+                    int difference = Math.abs(refdBs[j] - dBs[i]);
+                    refPoint_score += (int) (WEIGHTS[i]*(100 - difference));
+                    refPointError += difference;
+                    break;
+                }
+            }
+        }
+
+        error[0] = refPointError;
+        return refPoint_score;
+    }
+}
@@ -0,0 +1,301 @@
+package com.ewireless.s1208506.navigationinside;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Author: Gavin Waite
+ * A read-optimised, column-wise copy of the reference points for the positioning algorithm
+ *
+ * Rather than a List of LocData objects, each with its own arrays, the reference points are held
+ * in a handful of parallel primitive arrays. Row r is the r-th reference point added:
+ *  - uids[r], latitudes[r], longitudes[r]
+ *  - its access points are apIds[offsets[r]] to apIds[offsets[r+1] - 1], strongest first, with
+ *    the matching signal levels in dBs[]
+ * The BSSIDs are dictionary encoded into small ints (see BssidDictionary) and the signal levels
+ * stored as bytes, so a full pass over the survey reads a few compact arrays in order.
+ *
+ * Scoring is done by a Scorer, which owns its scratch space so that it allocates nothing per scan
+ * and can be reused for every scan. It gives exactly the same result as
+ * FingerprintMatcher.matchLinear() on the same reference points.
+ */
+public class FingerprintMatrix {
+
+    private final BssidDictionary dictionary = new BssidDictionary();
+
+    private int rows = 0;
+    private int[] uids;
+    private double[] latitudes;
+    private double[] longitudes;
+    private int[] offsets;
+
+    private int entries = 0;
+    private int[] apIds;
+    private byte[] dBs;
+
+    public FingerprintMatrix(){
+        this(64, 64 * LocData.DEFAULT_MAX_ACCESS_POINTS);
+    }
+
+    /**
+     * @param expectedRows    - the number of reference points to size the arrays for
+     * @param expectedEntries - the total number of access points over all reference points
+     */
+    public FingerprintMatrix(int expectedRows, int expectedEntries){
+        uids = new int[Math.max(expectedRows, 1)];
+        latitudes = new double[uids.length];
+        longitudes = new double[uids.length];
+        offsets = new int[uids.length + 1];
+        apIds = new int[Math.max(expectedEntries, 1)];
+        dBs = new byte[apIds.length];
+    }
+
+    /**
+     * Build a matrix from reference points with their fingerprints attached, e.g. from
+     * LocDao.getAll() and LocData.attachAccessPoints()
+     */
+    public static FingerprintMatrix from(List<LocData> points){
+        int expectedEntries = 0;
+        for (LocData point : points){
+            expectedEntries += point.BSSIDs.length;
+        }
+        FingerprintMatrix matrix = new FingerprintMatrix(points.size(), expectedEntries);
+        for (LocData point : points){
+            matrix.add(point);
+        }
+        return matrix;
+    }
+
+    /**
+     * Append a reference point as the next row
+     */
+    public void add(LocData point){
+        if (rows == uids.length){
+            int capacity = rows * 2;
+            uids = Arrays.copyOf(uids, capacity);
+            latitudes = Arrays.copyOf(latitudes, capacity);
+            longitudes = Arrays.copyOf(longitudes, capacity);
+            offsets = Arrays.copyOf(offsets, capacity + 1);
+        }
+        int needed = entries + point.BSSIDs.length;
+        if (needed > apIds.length){
+            int capacity = Math.max(needed, apIds.length * 2);
+            apIds = Arrays.copyOf(apIds, capacity);
+            dBs = Arrays.copyOf(dBs, capacity);
+        }
+
+        uids[rows] = point.uid;
+        latitudes[rows] = point.latitude;
+        longitudes[rows] = point.longitude;
+        for (int i = 0; i < point.BSSIDs.length; i++){
+            int id = dictionary.add(point.BSSIDs[i]);
+            // The NONE padding of a point with fewer access points is not stored, as it would
+            // match the MISSING ids of a live scan
+            if (id == BssidDictionary.MISSING){
+                continue;
+            }
+            apIds[entries] = id;
+            // Signal levels are between about -100 and 0 dBm, clamp anything else into a byte
+            dBs[entries] = (byte) Math.max(Byte.MIN_VALUE, Math.min(Byte.MAX_VALUE, point.dBs[i]));
+            entries++;
+        }
+        rows++;
+        offsets[rows] = entries;
+    }
+
+    public void clear(){
+        dictionary.clear();
+        rows = 0;
+        entries = 0;
+    }
+
+    public int size(){
+        return rows;
+    }
+
+    public int uid(int row){
+        return uids[row];
+    }
+
+    public double latitude(int row){
+        return latitudes[row];
+    }
+
+    public double longitude(int row){
+        return longitudes[row];
+    }
+
+    public BssidDictionary getDictionary(){
+        return dictionary;
+    }
+
+    // Raw access to the packed access points, for writing a FingerprintSnapshot
+
+    int entries(){
+        return entries;
+    }
+
+    int offset(int row){
+        return offsets[row];
+    }
+
+    int apId(int entry){
+        return apIds[entry];
+    }
+
+    byte dB(int entry){
+        return dBs[entry];
+    }
+
+    /**
+     * @return a new Scorer for this matrix, to be kept and reused by a single thread
+     */
+    public Scorer newScorer(){
+        return new Scorer();
+    }
+
+    /**
+     * Scores the rows of the matrix against one live scan at a time without allocating
+     * The best row found so far, its score and its error are left in the public fields
+     */
+    public class Scorer {
+        private final int[] liveIds = new int[FingerprintMatcher.WEIGHTS.length];
+        private final int[] livedBs = new int[FingerprintMatcher.WEIGHTS.length];
+
+        // Scratch space for the candidate rows of FingerprintMatcher.matchIndexed()
+        final BitSet candidates = new BitSet();
+
+        // The best match since the last setScan(), bestRow is -1 if no rows have been scored
+        public int bestRow;
+        public int bestScore;
+        public int bestError;
+
+        // The error in dB of the row passed to the last call of score()
+        public int lastError;
+
+        // If set, the k best rows since the last setScan() are also kept here
+        private TopKHeap topK;
+
+        /**
+         * Also keep the k best rows rather than only the best, for the k-nearest-neighbour mode
+         * @param k - the number of rows to keep, 0 to only keep the best
+         */
+        public void setK(int k){
+            if (k <= 0){
+                topK = null;
+            }
+            else if (topK == null || topK.capacity() != k){
+                topK = new TopKHeap(k);
+            }
+        }
+
+        public FingerprintMatrix getMatrix(){
+            return FingerprintMatrix.this;
+        }
+
+        /**
+         * @return the k best rows since the last setScan(), or null if setK() has not been used
+         */
+        public TopKHeap getTopK(){
+            return topK;
+        }
+
+        /**
+         * Set the live scan to score against and forget the previous best match
+         * @param BSSIDs - the live BSSIDs, strongest first
+         * @param levels - the live signal levels
+         */
+        public void setScan(long[] BSSIDs, int[] levels){
+            for (int i = 0; i < liveIds.length; i++){
+                // An access point which is in no reference point can never match, nor can one
+                // with no signal level
+                if (i < BSSIDs.length && levels[i] != 0){
+                    liveIds[i] = dictionary.get(BSSIDs[i]);
+                    livedBs[i] = levels[i];
+                }
+                else {
+                    liveIds[i] = BssidDictionary.MISSING;
+                    livedBs[i] = 0;
+                }
+            }
+            bestRow = -1;
+            bestScore = Integer.MIN_VALUE;
+            bestError = 0;
+            if (topK != null){
+                topK.clear();
+            }
+        }
+
+        /**
+         * Score a single row, as FingerprintMatcher.score() does for a LocData
+         * @return the score, with the error in lastError
+         */
+        public int score(int row){
+            float[] weights = FingerprintMatcher.WEIGHTS;
+            int[] ids = liveIds;
+            int start = offsets[row];
+            int end = offsets[row + 1];
+            int rowScore = 0;
+            int rowError = 0;
+            // Read the access points of the row once, each live access point only counts its
+            // first match (MISSING ids are never stored, so the live ones never match)
+            int matched = 0;
+            for (int k = start; k < end; k++){
+                int id = apIds[k];
+                for (int i = 0; i < ids.length; i++){
+                    if (ids[i] == id && (matched & (1 << i)) == 0){
+                        matched |= 1 << i;
+                        int difference = Math.abs(dBs[k] - livedBs[i]);
+                        rowScore += (int) (weights[i]*(100 - difference));
+                        rowError += difference;
+                    }
+                }
+            }
+            lastError = rowError;
+            return rowScore;
+        }
+
+        /**
+         * Score every row from (inclusive) to (exclusive), keeping the first best (and the k best
+         * if setK() has been used)
+         */
+        public void scoreRange(int from, int to){
+            for (int row = from; row < to; row++){
+                keep(row, score(row));
+            }
+        }
+
+        /**
+         * Score only the rows from (inclusive) to (exclusive) which are set in candidates, keeping
+         * the first best as scoreRange() does
+         */
+        public void scoreCandidates(BitSet candidates, int from, int to){
+            for (int row = candidates.nextSetBit(from); row >= 0 && row < to;
+                 row = candidates.nextSetBit(row + 1)){
+                keep(row, score(row));
+            }
+        }
+
+        private void keep(int row, int rowScore){
+            if (rowScore > bestScore){
+                bestScore = rowScore;
+                bestRow = row;
+                bestError = lastError;
+            }
+            if (topK != null){
+                topK.offer(row, rowScore);
+            }
+        }
+
+        /**
+         * Score the whole matrix against the live scan
+         * @return the best row, or -1 if the matrix is empty
+         */
+        public int match(long[] BSSIDs, int[] levels){
+            setScan(BSSIDs, levels);
+            scoreRange(0, rows);
+            return bestRow;
+        }
+    }
+}
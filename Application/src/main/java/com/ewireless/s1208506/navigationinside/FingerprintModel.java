@@ -0,0 +1,762 @@
+package com.ewireless.s1208506.navigationinside;
+
+import android.arch.persistence.room.InvalidationTracker;
+import android.arch.persistence.room.Room;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Author: Gavin Waite
+ * The single, process-wide, in-memory copy of the reference point database
+ *
+ * The full LocData table is loaded once when the app starts and is then kept in a FingerprintIndex
+ * and a FingerprintMatrix for the positioning algorithm, and combined into a GaussianModel. A
+ * database too large for that is instead loaded a region at a time around the user (see
+ * RegionLoader and updateRegion()). Writes made through this class are applied to the database and
+ * then patched into the in-memory copy, so a WiFi scan never has to wait on SQLite to produce a
+ * fix. Room's InvalidationTracker is also observed so that if the table changes any other way the
+ * copy is reloaded.
+ *
+ * Until the first load finishes, fixes come from a FingerprintSnapshot of the database written to
+ * a file after the last load or training session, which is memory mapped when the app starts.
+ *
+ * All database I/O happens in order on a single background thread. The in-memory copy is only
+ * read and modified on the main thread, and Listeners are told of changes there.
+ */
+public class FingerprintModel {
+
+    /**
+     * Callback for the Fragments to be told that the reference points have changed
+     */
+    public interface Listener {
+        void onModelChanged(FingerprintModel model);
+    }
+
+    /**
+     * Callback for the result of matchFromDatabase(), on the main thread
+     */
+    public interface MatchCallback {
+        void onMatch(FingerprintMatcher.Match match);
+    }
+
+    /**
+     * Callback for the progress of a training session being written by insertSession()
+     * Each method is called on the main thread
+     */
+    public interface SessionCallback {
+        void onSessionProgress(int written, int total);
+        void onSessionCommitted(int count, long millis);
+        void onSessionFailed(Exception e);
+    }
+
+    /**
+     * Callback for the progress of exportSurvey() and importSurvey()
+     * Each method is called on the main thread with the number of reference points done so far
+     */
+    public interface TransferCallback {
+        void onTransferProgress(int points);
+        void onTransferFinished(int points);
+        void onTransferFailed(int points, Exception e);
+    }
+
+    // Number of reference points written between progress reports
+    private static final int SESSION_BATCH_SIZE = 50;
+    // Number of reference points imported in each transaction, and so held in memory at once
+    private static final int IMPORT_BATCH_SIZE = 500;
+    // Number of reference points exported between progress reports
+    private static final int EXPORT_REPORT_INTERVAL = 5000;
+
+    // Above this many reference points only those around the user are kept in memory
+    private static final int FULL_LOAD_LIMIT = 5000;
+    // The ring of RegionLoader tiles loaded around the user's tile
+    private static final int REGION_RING = 1;
+
+    private static final String SNAPSHOT_FILE = "fingerprints.snapshot";
+
+    private static FingerprintModel instance;
+
+    /**
+     * @return the single shared model, creating the database on first use
+     */
+    public static synchronized FingerprintModel getInstance(Context context){
+        if (instance == null){
+            instance = new FingerprintModel(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private final LocationDatabase db;
+    private final FingerprintIndex index = new FingerprintIndex();
+    private final FingerprintMatrix matrix = new FingerprintMatrix();
+    private final GaussianModel gaussian = new GaussianModel();
+    private final List<Listener> listeners = new ArrayList<>();
+
+    private final ExecutorService dbExecutor = Executors.newSingleThreadExecutor();
+    // Cold start fixes are read on their own thread so they do not wait behind the initial load
+    private final ExecutorService queryExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // Snapshots are written on their own thread so they never hold up a load or a write
+    private final ExecutorService snapshotExecutor = Executors.newSingleThreadExecutor();
+    private final AtomicBoolean snapshotPending = new AtomicBoolean(false);
+    // The table to write if it has just been read, or null for the snapshot thread to read it
+    private volatile List<LocData> snapshotSource;
+    private final File snapshotFile;
+    // Only used on the main thread, and dropped once the database is loaded
+    private FingerprintSnapshot snapshot;
+
+    private boolean loaded = false;
+    private boolean loading = false;
+    private boolean regional = false;
+
+    // Number of rows the database will hold once all queued writes have been made
+    // Only touched on the database thread
+    private int expectedCount = 0;
+
+    // For large databases, the tiles around the user's last position and whether they are in use
+    // Only touched on the database thread
+    private final RegionLoader region;
+    private boolean loadRegions = false;
+    private boolean hasPosition = false;
+    private double lastLatitude;
+    private double lastLongitude;
+
+    private FingerprintModel(Context context){
+        // .allowMainThreadQueries() allows for small tasks such as counting the entries in the
+        // database to be performed on the main thread rather than a dedicated Asynchronous Task
+        // Although normally discouraged, this will be used sparingly.
+        // Existing databases are upgraded in place rather than losing the collected survey
+        db = Room.databaseBuilder(context, LocationDatabase.class, "locations")
+                .allowMainThreadQueries()
+                .addMigrations(LocationDatabase.MIGRATION_1_2, LocationDatabase.MIGRATION_2_3,
+                        LocationDatabase.MIGRATION_3_4, LocationDatabase.MIGRATION_4_5,
+                        LocationDatabase.MIGRATION_5_6)
+                .build();
+
+        snapshotFile = new File(context.getFilesDir(), SNAPSHOT_FILE);
+        openSnapshot();
+
+        region = new RegionLoader(new RegionLoader.Source() {
+            @Override
+            public List<LocData> load(double minLatitude, double maxLatitude,
+                                      double minLongitude, double maxLongitude) {
+                List<LocData> points = db.locDao().getInBox(minLatitude, maxLatitude, minLongitude, maxLongitude);
+                LocData.attachAccessPoints(points, db.locDao().getAccessPointsInBox(
+                        minLatitude, maxLatitude, minLongitude, maxLongitude));
+                return points;
+            }
+        }, REGION_RING);
+
+        db.getInvalidationTracker().addObserver(new InvalidationTracker.Observer("locdata") {
+            @Override
+            public void onInvalidated(@NonNull Set<String> tables) {
+                // Queue behind any of our own writes so that expectedCount is up to date
+                dbExecutor.execute(checkForExternalChange);
+            }
+        });
+    }
+
+    public LocationDatabase getDatabase(){
+        return db;
+    }
+
+    /**
+     * @return the index of the reference points, only to be used on the main thread
+     */
+    public FingerprintIndex getIndex(){
+        return index;
+    }
+
+    /**
+     * @return the packed copy of the reference points, in the same order as the index and only
+     * to be used on the main thread
+     */
+    public FingerprintMatrix getMatrix(){
+        return matrix;
+    }
+
+    /**
+     * @return the reference points combined into per-location signal statistics, only to be used
+     * on the main thread
+     */
+    public GaussianModel getGaussianModel(){
+        return gaussian;
+    }
+
+    public List<LocData> getPoints(){
+        return index.getPoints();
+    }
+
+    public int size(){
+        return index.size();
+    }
+
+    /**
+     * @return the snapshot of the database from the last run, while the database itself is still
+     * loading, otherwise null. Only to be used on the main thread.
+     */
+    public FingerprintSnapshot getSnapshot(){
+        return snapshot;
+    }
+
+    public boolean isLoaded(){
+        return loaded;
+    }
+
+    /**
+     * @return true if the database is too large to hold in memory, so only the reference points
+     * around the last position given to updateRegion() are held
+     */
+    public boolean isRegional(){
+        return regional;
+    }
+
+    public void addListener(Listener listener){
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener){
+        listeners.remove(listener);
+    }
+
+    /**
+     * Load the table into memory if it has not been already, all of it if it is small enough
+     */
+    public void load(){
+        if (loaded || loading){
+            return;
+        }
+        reload();
+    }
+
+    /**
+     * Tell the model where the user is, from the outdoor location or the last indoor fix
+     * For a large database, the reference points around the position are loaded in the
+     * background, and those now out of range dropped
+     */
+    public void updateRegion(final double latitude, final double longitude){
+        dbExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                hasPosition = true;
+                lastLatitude = latitude;
+                lastLongitude = longitude;
+                if (loadRegions && region.moveTo(latitude, longitude)){
+                    final List<LocData> points = region.getPoints();
+                    Log.d("DB", "Moved region, holding " + points.size() + " locations");
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            replaceAll(points);
+                            notifyListeners();
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Match a live scan straight from the database, for when the in-memory copy is not ready yet
+     * Only the reference points sharing an access point with the scan are read, through the
+     * BSSID index. The best of them is returned, which is the same point as the in-memory
+     * matchIndexed() whenever any of them scores above 0.
+     * @param BSSIDs   - the BSSIDs of the strongest access points in the live scan (or NONE)
+     * @param dBs      - the matching signal levels of the live scan
+     * @param callback - given the best matching point, or null if none heard any of the BSSIDs
+     */
+    public void matchFromDatabase(final long[] BSSIDs, final int[] dBs, final MatchCallback callback){
+        queryExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long[] heard = new long[BSSIDs.length];
+                int count = 0;
+                for (long BSSID : BSSIDs){
+                    if (BSSID != MacAddress.NONE){
+                        heard[count++] = BSSID;
+                    }
+                }
+                heard = Arrays.copyOf(heard, count);
+                List<LocData> candidates = new ArrayList<>();
+                if (count > 0){
+                    candidates = db.locDao().getCandidates(heard);
+                    LocData.attachAccessPoints(candidates, db.locDao().getCandidateAccessPoints(heard));
+                }
+                final FingerprintMatcher.Match match = FingerprintMatcher.matchLinear(candidates, BSSIDs, dBs);
+                Log.d("DB", "Cold match read " + candidates.size() + " candidates");
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onMatch(match);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Insert a new reference point into the database and the in-memory copy
+     * Its uid is set to the one assigned by the database
+     */
+    public void insert(LocData entry){
+        insertSession(Collections.singletonList(entry), null);
+    }
+
+    /**
+     * Insert all the reference points of a training session into the database in a single
+     * transaction on the database thread, then add them to the in-memory copy
+     * Their uids are set to the ones assigned by the database, which are never reused
+     * @param points   - the new reference points
+     * @param callback - told of the progress and result on the main thread, or null
+     */
+    public void insertSession(final List<LocData> points, final SessionCallback callback){
+        dbExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Log.d("DB","Adding " + points.size() + " to db");
+                final long start = SystemClock.elapsedRealtime();
+                try {
+                    db.runInTransaction(new Runnable() {
+                        @Override
+                        public void run() {
+                            for (int from = 0; from < points.size(); from += SESSION_BATCH_SIZE){
+                                int to = Math.min(from + SESSION_BATCH_SIZE, points.size());
+                                db.locDao().insertWithAccessPoints(points.subList(from, to));
+                                postProgress(callback, to, points.size());
+                            }
+                        }
+                    });
+                } catch (final RuntimeException e){
+                    // Nothing was written, so leave the points ready to be inserted again
+                    Log.e("DB", "Failed to add the session", e);
+                    for (LocData point : points){
+                        point.uid = 0;
+                    }
+                    if (callback != null){
+                        mainHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                callback.onSessionFailed(e);
+                            }
+                        });
+                    }
+                    return;
+                }
+                expectedCount += points.size();
+                if (!loadRegions){
+                    scheduleSnapshot(null);
+                }
+                final long millis = SystemClock.elapsedRealtime() - start;
+
+                // When only a region is held, only the new points inside it are added
+                final List<LocData> held = new ArrayList<>(points.size());
+                for (LocData point : points){
+                    if (!loadRegions || region.add(point)){
+                        held.add(point);
+                    }
+                }
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (LocData point : held){
+                            index.add(point);
+                            matrix.add(point);
+                            gaussian.add(point);
+                        }
+                        notifyListeners();
+                        if (callback != null){
+                            callback.onSessionCommitted(points.size(), millis);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void postProgress(final SessionCallback callback, final int written, final int total){
+        if (callback == null){
+            return;
+        }
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onSessionProgress(written, total);
+            }
+        });
+    }
+
+    /**
+     * Write every reference point in the database to a survey file on the database thread
+     * The table is read through a Cursor rather than getAll(), so memory use does not grow with
+     * the size of the survey. The stream is closed once done.
+     * @param out      - where to write the survey, e.g. a file picked by the user
+     * @param format   - CSV or BINARY, see SurveyFile
+     * @param callback - told of the progress and result on the main thread
+     */
+    public void exportSurvey(final OutputStream out, final SurveyFile.Format format,
+                             final TransferCallback callback){
+        dbExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                int written = 0;
+                Cursor cursor = null;
+                try {
+                    SurveyFile.Writer writer = SurveyFile.newWriter(out, format);
+                    cursor = db.locDao().getFingerprintCursor();
+                    // The cursor has a row per access point, which are gathered into each point
+                    LocData point = null;
+                    long[] BSSIDs = new long[LocData.DEFAULT_MAX_ACCESS_POINTS];
+                    int[] dBs = new int[LocData.DEFAULT_MAX_ACCESS_POINTS];
+                    int count = 0;
+                    while (cursor.moveToNext()){
+                        int uid = cursor.getInt(0);
+                        if (point == null || uid != point.uid){
+                            if (point != null){
+                                writePoint(writer, point, BSSIDs, dBs, count);
+                                if (++written % EXPORT_REPORT_INTERVAL == 0){
+                                    postTransferProgress(callback, written);
+                                }
+                            }
+                            point = new LocData();
+                            point.uid = uid;
+                            point.latitude = cursor.getDouble(1);
+                            point.longitude = cursor.getDouble(2);
+                            point.building = cursor.getInt(3);
+                            point.floor = cursor.getInt(4);
+                            count = 0;
+                        }
+                        if (!cursor.isNull(5)){
+                            if (count == BSSIDs.length){
+                                BSSIDs = Arrays.copyOf(BSSIDs, count * 2);
+                                dBs = Arrays.copyOf(dBs, count * 2);
+                            }
+                            BSSIDs[count] = cursor.getLong(5);
+                            dBs[count] = cursor.getInt(6);
+                            count++;
+                        }
+                    }
+                    if (point != null){
+                        writePoint(writer, point, BSSIDs, dBs, count);
+                        written++;
+                    }
+                    writer.close();
+                } catch (IOException | RuntimeException e){
+                    Log.e("DB", "Failed to export the survey", e);
+                    closeQuietly(out);
+                    postTransferFailed(callback, written, e);
+                    return;
+                } finally {
+                    if (cursor != null){
+                        cursor.close();
+                    }
+                }
+                Log.d("DB", "Exported " + written + " locations");
+                postTransferFinished(callback, written);
+            }
+        });
+    }
+
+    private static void writePoint(SurveyFile.Writer writer, LocData point, long[] BSSIDs, int[] dBs,
+                                   int count) throws IOException {
+        point.BSSIDs = Arrays.copyOf(BSSIDs, count);
+        point.dBs = Arrays.copyOf(dBs, count);
+        writer.write(point);
+    }
+
+    /**
+     * Add the reference points of a survey file to the database on the database thread
+     * The file is read a batch at a time and each batch is written in its own transaction, so
+     * memory use does not grow with the size of the survey. If the import fails part way the
+     * batches already written are kept. The in-memory copy is reloaded afterwards.
+     * @param in       - the survey, in either SurveyFile format, it is closed once done
+     * @param callback - told of the progress and result on the main thread
+     */
+    public void importSurvey(final InputStream in, final TransferCallback callback){
+        dbExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                int imported = 0;
+                Exception failure = null;
+                try {
+                    SurveyFile.Reader reader = SurveyFile.newReader(in);
+                    List<LocData> batch = new ArrayList<>(IMPORT_BATCH_SIZE);
+                    LocData point;
+                    do {
+                        point = reader.read();
+                        if (point != null){
+                            batch.add(point);
+                        }
+                        if (batch.size() == IMPORT_BATCH_SIZE || (point == null && !batch.isEmpty())){
+                            db.locDao().insertWithAccessPoints(batch);
+                            imported += batch.size();
+                            expectedCount += batch.size();
+                            batch.clear();
+                            postTransferProgress(callback, imported);
+                        }
+                    } while (point != null);
+                    reader.close();
+                } catch (IOException | RuntimeException e){
+                    Log.e("DB", "Failed to import the survey", e);
+                    closeQuietly(in);
+                    failure = e;
+                }
+                Log.d("DB", "Imported " + imported + " locations");
+
+                // Whether or not it finished, load what is now in the database
+                final int count = imported;
+                final Exception e = failure;
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        reload();
+                        if (e == null){
+                            callback.onTransferFinished(count);
+                        }
+                        else {
+                            callback.onTransferFailed(count, e);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void postTransferProgress(final TransferCallback callback, final int points){
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onTransferProgress(points);
+            }
+        });
+    }
+
+    private void postTransferFinished(final TransferCallback callback, final int points){
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onTransferFinished(points);
+            }
+        });
+    }
+
+    private void postTransferFailed(final TransferCallback callback, final int points, final Exception e){
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onTransferFailed(points, e);
+            }
+        });
+    }
+
+    private static void closeQuietly(Closeable closeable){
+        try {
+            closeable.close();
+        } catch (IOException e){
+            // Already failed, nothing more to do
+        }
+    }
+
+    /**
+     * Delete every reference point from the database and the in-memory copy
+     */
+    public void clear(){
+        dbExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Log.d("DB","Nuking the db");
+                db.runInTransaction(new Runnable() {
+                    @Override
+                    public void run() {
+                        db.locDao().deleteAllAccessPoints();
+                        db.locDao().deleteAll();
+                    }
+                });
+                expectedCount = 0;
+                loadRegions = false;
+                region.clear();
+                deleteSnapshot();
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        snapshot = null;
+                        index.clear();
+                        matrix.clear();
+                        gaussian.clear();
+                        regional = false;
+                        notifyListeners();
+                    }
+                });
+            }
+        });
+    }
+
+    private void reload(){
+        loading = true;
+        dbExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final int count = db.locDao().countEntries();
+                expectedCount = count;
+                loadRegions = count > FULL_LOAD_LIMIT;
+                region.clear();
+
+                final List<LocData> locations;
+                if (!loadRegions){
+                    Log.d("DB","Loading the full db");
+                    locations = db.locDao().getAll();
+                    LocData.attachAccessPoints(locations, db.locDao().getAllAccessPoints());
+                    scheduleSnapshot(locations);
+                }
+                else if (hasPosition){
+                    Log.d("DB","Loading the region around the last position");
+                    region.moveTo(lastLatitude, lastLongitude);
+                    locations = region.getPoints();
+                }
+                else {
+                    // Nothing can be loaded until the first updateRegion()
+                    locations = new ArrayList<>();
+                }
+                if (loadRegions){
+                    // Too large to snapshot, so the next start waits for the region instead
+                    deleteSnapshot();
+                }
+                final boolean regionalLoad = loadRegions;
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        replaceAll(locations);
+                        regional = regionalLoad;
+                        loaded = true;
+                        snapshot = null;
+                        loading = false;
+                        Log.d("DB_Load", "Found " + count + " locations, holding " + locations.size());
+                        notifyListeners();
+                    }
+                });
+            }
+        });
+    }
+
+    // Map the snapshot from the last run, if there is a good one, while the database loads
+    private void openSnapshot(){
+        queryExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!snapshotFile.exists()){
+                    return;
+                }
+                final FingerprintSnapshot opened;
+                try {
+                    long start = SystemClock.elapsedRealtime();
+                    opened = FingerprintSnapshot.open(snapshotFile);
+                    Log.d("DB", "Opened snapshot of " + opened.size() + " locations in "
+                            + (SystemClock.elapsedRealtime() - start) + " ms");
+                } catch (IOException e){
+                    // It is rewritten after the next load
+                    Log.e("DB", "Could not open the snapshot", e);
+                    return;
+                }
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!loaded){
+                            snapshot = opened;
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Rewrite the snapshot file in the background
+     * Several requests made while one is waiting are written once, from the latest of them
+     * @param locations - the full table with its fingerprints if already read, otherwise null to
+     *                    read it again
+     */
+    private void scheduleSnapshot(List<LocData> locations){
+        snapshotSource = locations;
+        if (!snapshotPending.compareAndSet(false, true)){
+            return;
+        }
+        snapshotExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                snapshotPending.set(false);
+                List<LocData> points = snapshotSource;
+                if (points == null){
+                    points = db.locDao().getAll();
+                    LocData.attachAccessPoints(points, db.locDao().getAllAccessPoints());
+                }
+                try {
+                    FingerprintSnapshot.write(FingerprintMatrix.from(points), snapshotFile);
+                    Log.d("DB", "Wrote snapshot of " + points.size() + " locations");
+                } catch (IOException e){
+                    Log.e("DB", "Could not write the snapshot", e);
+                }
+            }
+        });
+    }
+
+    private void deleteSnapshot(){
+        snapshotExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                snapshotFile.delete();
+            }
+        });
+    }
+
+    // Replace the in-memory copy, on the main thread
+    private void replaceAll(List<LocData> locations){
+        index.rebuild(locations);
+        matrix.clear();
+        gaussian.clear();
+        for (LocData location : locations){
+            matrix.add(location);
+            gaussian.add(location);
+        }
+    }
+
+    /**
+     * Run on the database thread when Room reports that the table has changed. Our own writes
+     * leave the row count as expected, anything else triggers a full reload.
+     */
+    private final Runnable checkForExternalChange = new Runnable() {
+        @Override
+        public void run() {
+            if (db.locDao().countEntries() != expectedCount){
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        reload();
+                    }
+                });
+            }
+        }
+    };
+
+    private void notifyListeners(){
+        for (Listener listener : new ArrayList<>(listeners)){
+            listener.onModelChanged(this);
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package com.ewireless.s1208506.navigationinside;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Author: Gavin Waite
+ * A compact binary copy of a FingerprintMatrix on disk, which can be memory mapped and scored
+ * straight away when the app starts, before the Room database has been loaded
+ *
+ * File layout, little endian, every section aligned to its element size:
+ *   header (32 bytes) - MAGIC, VERSION, rows, dictionary size, entries, padding, CRC32 of the rest
+ *   long[dictionary]  - the BSSID of each dictionary id
+ *   double[rows]      - latitudes
+ *   double[rows]      - longitudes
+ *   int[rows]         - uids
+ *   int[rows + 1]     - offsets of each row's access points
+ *   int[entries]      - access point dictionary ids
+ *   byte[entries]     - access point signal levels
+ *
+ * The sections are read through views of the mapped buffer, so opening a snapshot reads nothing
+ * but the header and the checksum pass. Scoring gives the same result as a Scorer of the matrix
+ * the snapshot was written from.
+ */
+public class FingerprintSnapshot {
+
+    public static final int MAGIC = 0x4E494650; // "NIFP"
+    public static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+
+    private final int rows;
+    private final int dictionarySize;
+    private final LongBuffer dictionary;
+    private final DoubleBuffer latitudes;
+    private final DoubleBuffer longitudes;
+    private final IntBuffer uids;
+    private final IntBuffer offsets;
+    private final IntBuffer apIds;
+    private final ByteBuffer dBs;
+
+    // Scratch space for the live scan, so a snapshot is only to be scored by a single thread
+    private final int[] liveIds = new int[FingerprintMatcher.WEIGHTS.length];
+    private final int[] livedBs = new int[FingerprintMatcher.WEIGHTS.length];
+
+    private FingerprintSnapshot(ByteBuffer buffer) throws IOException {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION){
+            throw new IOException("Not a fingerprint snapshot");
+        }
+        rows = buffer.getInt(8);
+        dictionarySize = buffer.getInt(12);
+        int entries = buffer.getInt(16);
+        long checksum = buffer.getLong(24);
+        if (rows < 0 || dictionarySize < 0 || entries < 0
+                || buffer.capacity() != size(rows, dictionarySize, entries)){
+            throw new IOException("Fingerprint snapshot is truncated");
+        }
+
+        // Copied out in chunks, CRC32.update(ByteBuffer) needs a newer Android than this app
+        CRC32 crc = new CRC32();
+        ByteBuffer payload = buffer.duplicate();
+        payload.position(HEADER_SIZE);
+        byte[] chunk = new byte[64 * 1024];
+        while (payload.hasRemaining()){
+            int length = Math.min(chunk.length, payload.remaining());
+            payload.get(chunk, 0, length);
+            crc.update(chunk, 0, length);
+        }
+        if (crc.getValue() != checksum){
+            throw new IOException("Fingerprint snapshot checksum does not match");
+        }
+
+        int position = HEADER_SIZE;
+        dictionary = section(buffer, position, dictionarySize * 8).asLongBuffer();
+        position += dictionarySize * 8;
+        latitudes = section(buffer, position, rows * 8).asDoubleBuffer();
+        position += rows * 8;
+        longitudes = section(buffer, position, rows * 8).asDoubleBuffer();
+        position += rows * 8;
+        uids = section(buffer, position, rows * 4).asIntBuffer();
+        position += rows * 4;
+        offsets = section(buffer, position, (rows + 1) * 4).asIntBuffer();
+        position += (rows + 1) * 4;
+        apIds = section(buffer, position, entries * 4).asIntBuffer();
+        position += entries * 4;
+        dBs = section(buffer, position, entries);
+    }
+
+    /**
+     * Map a snapshot file and check it is complete and uncorrupted
+     * @throws IOException if the file cannot be read or is not a valid snapshot
+     */
+    public static FingerprintSnapshot open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            return new FingerprintSnapshot(buffer);
+        } finally {
+            // The mapping stays valid once the file is closed
+            raf.close();
+        }
+    }
+
+    /**
+     * Open a snapshot already held in memory, e.g. one just written by toBytes()
+     */
+    public static FingerprintSnapshot wrap(byte[] bytes) throws IOException {
+        return new FingerprintSnapshot(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Write a snapshot of the matrix, replacing the file only once it has been fully written so
+     * that a snapshot being read is never seen half written
+     */
+    public static void write(FingerprintMatrix matrix, File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(toBytes(matrix));
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)){
+            temp.delete();
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    /**
+     * @return the snapshot of the matrix in the file format above
+     */
+    public static byte[] toBytes(FingerprintMatrix matrix){
+        int rows = matrix.size();
+        BssidDictionary bssids = matrix.getDictionary();
+        int entries = matrix.entries();
+        ByteBuffer buffer = ByteBuffer.allocate((int) size(rows, bssids.size(), entries));
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(rows).putInt(bssids.size()).putInt(entries).putInt(0);
+        buffer.putLong(0); // the checksum, filled in below
+        for (int id = 0; id < bssids.size(); id++){
+            buffer.putLong(bssids.bssid(id));
+        }
+        for (int row = 0; row < rows; row++){
+            buffer.putDouble(matrix.latitude(row));
+        }
+        for (int row = 0; row < rows; row++){
+            buffer.putDouble(matrix.longitude(row));
+        }
+        for (int row = 0; row < rows; row++){
+            buffer.putInt(matrix.uid(row));
+        }
+        for (int row = 0; row <= rows; row++){
+            buffer.putInt(row < rows ? matrix.offset(row) : entries);
+        }
+        for (int k = 0; k < entries; k++){
+            buffer.putInt(matrix.apId(k));
+        }
+        for (int k = 0; k < entries; k++){
+            buffer.put(matrix.dB(k));
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), HEADER_SIZE, buffer.capacity() - HEADER_SIZE);
+        buffer.putLong(24, crc.getValue());
+        return buffer.array();
+    }
+
+    private static long size(int rows, int dictionarySize, int entries){
+        return HEADER_SIZE + 8L * dictionarySize + 16L * rows + 4L * rows + 4L * (rows + 1)
+                + 4L * entries + entries;
+    }
+
+    private static ByteBuffer section(ByteBuffer buffer, int position, int length){
+        ByteBuffer section = buffer.duplicate();
+        section.position(position);
+        section.limit(position + length);
+        return section.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public int size(){
+        return rows;
+    }
+
+    public int uid(int row){
+        return uids.get(row);
+    }
+
+    public double latitude(int row){
+        return latitudes.get(row);
+    }
+
+    public double longitude(int row){
+        return longitudes.get(row);
+    }
+
+    /**
+     * Score every reference point in the snapshot against the live scan, as
+     * FingerprintMatrix.Scorer.match() does
+     * @param BSSIDs - the live BSSIDs, strongest first
+     * @param levels - the live signal levels
+     * @return the best reference point, as a LocData without its fingerprint, or null if the
+     * snapshot is empty
+     */
+    public FingerprintMatcher.Match match(long[] BSSIDs, int[] levels){
+        for (int i = 0; i < liveIds.length; i++){
+            if (i < BSSIDs.length && levels[i] != 0){
+                liveIds[i] = find(BSSIDs[i]);
+                livedBs[i] = levels[i];
+            }
+            else {
+                liveIds[i] = BssidDictionary.MISSING;
+                livedBs[i] = 0;
+            }
+        }
+
+        float[] weights = FingerprintMatcher.WEIGHTS;
+        int bestRow = -1;
+        int bestScore = Integer.MIN_VALUE;
+        int bestError = 0;
+        int end = offsets.get(0);
+        for (int row = 0; row < rows; row++){
+            int start = end;
+            end = offsets.get(row + 1);
+            int rowScore = 0;
+            int rowError = 0;
+            // Each live access point only counts its first match, as in Scorer.score()
+            int matched = 0;
+            for (int k = start; k < end; k++){
+                int id = apIds.get(k);
+                // Snapshots written before the matrix dropped the NONE padding of short points
+                // hold it as MISSING, which must not match the MISSING live ids
+                if (id < 0){
+                    continue;
+                }
+                for (int i = 0; i < liveIds.length; i++){
+                    if (liveIds[i] == id && (matched & (1 << i)) == 0){
+                        matched |= 1 << i;
+                        int difference = Math.abs(dBs.get(k) - livedBs[i]);
+                        rowScore += (int) (weights[i]*(100 - difference));
+                        rowError += difference;
+                    }
+                }
+            }
+            if (rowScore > bestScore){
+                bestScore = rowScore;
+                bestRow = row;
+                bestError = rowError;
+            }
+        }
+
+        if (bestRow < 0){
+            return null;
+        }
+        LocData point = new LocData();
+        point.uid = uid(bestRow);
+        point.latitude = latitude(bestRow);
+        point.longitude = longitude(bestRow);
+        return new FingerprintMatcher.Match(point, bestScore, bestError);
+    }
+
+    // The dictionary id of a BSSID, by a walk through the dictionary which is only a few thousand
+    // entries even for a large site
+    private int find(long BSSID){
+        if (BSSID == MacAddress.NONE){
+            return BssidDictionary.MISSING;
+        }
+        for (int id = 0; id < dictionarySize; id++){
+            if (dictionary.get(id) == BSSID){
+                return id;
+            }
+        }
+        return BssidDictionary.MISSING;
+    }
+}
@@ -0,0 +1,449 @@
+package com.ewireless.s1208506.navigationinside;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Author: Gavin Waite
+ * A probabilistic alternative to the nearest point search, which scores a live scan by how likely
+ * it is to have been heard at each location rather than by its distance in dB from single scans
+ *
+ * The reference points are grouped into cells CELL_SIZE metres square on each building floor, so
+ * that the repeated scans of a location are combined rather than each standing alone. For each
+ * access point heard in a cell the mean and variance of its signal level are kept, along with the
+ * chance it is heard there at all. A live scan is then scored by the log-likelihood of its signal
+ * levels under those Gaussians, and of the access points it did and did not hear, and the most
+ * likely cell is taken as the user's location. A single noisy scan only shifts the statistics of
+ * its cell a little, rather than becoming a reference point of its own.
+ *
+ * The log of each Gaussian is read from a table indexed by the cell's standard deviation (rounded
+ * to the dB) and the difference from its mean, and the presence terms of each access point are
+ * worked out whenever the model changes, so scoring a scan is a table lookup and a few additions
+ * for each cell sharing each live access point, with no logs or exponentials. The access points
+ * are laid out grouped by BSSID, as in a FingerprintIndex, so only the cells which heard a live
+ * access point are touched.
+ * A tracker which only needs some of the cells, e.g. the ParticleFilter, can instead score them
+ * one at a time with setScan() and logLikelihood(), which read only the access points of the cell.
+ *
+ * Only the strongest access points of each scan are stored (see LocData), so one missing from a
+ * reference point may just have been weaker than the rest. The presence chance is smoothed for
+ * this and never reaches 0 or 1.
+ * Not thread safe, the FingerprintModel only uses it on the main thread.
+ */
+public class GaussianModel {
+
+    // The size of a cell in metres
+    public static final double CELL_SIZE = 3.0;
+
+    // The standard deviations the log tables cover in dB, anything outside is clamped
+    static final int MIN_SIGMA = 2;
+    static final int MAX_SIGMA = 15;
+    // The signal level spread assumed for a cell with few scans, blended with what was measured
+    // as though it came from PRIOR_SCANS extra scans
+    static final double PRIOR_SIGMA = 6.0;
+    static final double PRIOR_SCANS = 2.0;
+    // Differences from the mean beyond this many dB all score the same
+    static final int MAX_DIFFERENCE = 63;
+    // The log-likelihood of a live access point which was never heard in the cell, as if it were
+    // heard there 1 time in 20 at a level anywhere in a 100 dB range
+    static final double LOG_UNHEARD = Math.log(0.05 / 100);
+    // The access points of a scan are not independent, so the log-likelihoods are scaled down
+    // when weighing the cells against each other for the spread of a match
+    static final double SPREAD_SCALE = 0.3;
+    // Cells less likely than the best by more than this, once scaled, add nothing to the spread
+    private static final double SPREAD_CUTOFF = 12;
+    // The log-likelihood per access point heard of a scan which fits its cell well, and how many
+    // metres each unit below it adds to the spread. Guessed from the SyntheticBuilding, where scans
+    // from inside score about -4.5 each and scans from outside the walls about -6
+    static final double GOOD_FIT = -4.5;
+    static final double METRES_PER_FIT = 10;
+
+    // LOG_DENSITY[(sigma - MIN_SIGMA) * (MAX_DIFFERENCE + 1) + difference] is the log of the
+    // Gaussian density at that many dB from the mean
+    private static final float[] LOG_DENSITY = new float[(MAX_SIGMA - MIN_SIGMA + 1) * (MAX_DIFFERENCE + 1)];
+    static {
+        for (int sigma = MIN_SIGMA; sigma <= MAX_SIGMA; sigma++){
+            for (int difference = 0; difference <= MAX_DIFFERENCE; difference++){
+                double z = (double) difference / sigma;
+                LOG_DENSITY[(sigma - MIN_SIGMA) * (MAX_DIFFERENCE + 1) + difference] =
+                        (float) (-0.5 * z * z - Math.log(sigma) - 0.5 * Math.log(2 * Math.PI));
+            }
+        }
+    }
+
+    // The running statistics of one access point in one cell
+    private static class Statistics {
+        int heard;
+        double mean;
+        // Sum of squared differences from the mean, as in Welford's method
+        double squares;
+
+        void add(int level){
+            heard++;
+            double delta = level - mean;
+            mean += delta / heard;
+            squares += delta * (level - mean);
+        }
+    }
+
+    // The reference points combined into one cell, while the model is being built
+    private static class Cell {
+        double latitudeSum;
+        double longitudeSum;
+        int scans;
+        int firstUid;
+        long row;
+        long column;
+        final Map<Integer, Statistics> accessPoints = new HashMap<>();
+    }
+
+    private final BssidDictionary dictionary = new BssidDictionary();
+    // In the order they were first added to
+    private final Map<String, Cell> cells = new LinkedHashMap<>();
+    private boolean changed = false;
+
+    // The packed form scored against, rebuilt from the cells when the model has changed
+    private int cellCount = 0;
+    private double[] cellLatitudes = new double[0];
+    private double[] cellLongitudes = new double[0];
+    private int[] cellScans = new int[0];
+    private int[] cellUids = new int[0];
+    private long[] cellRows = new long[0];
+    private long[] cellColumns = new long[0];
+    // The log-likelihood of hearing none of the access points of each cell
+    private float[] cellBase = new float[0];
+    // The entries of access point id a are apOffsets[a] to apOffsets[a+1] - 1
+    private int[] apOffsets = new int[1];
+    private int[] entryCells = new int[0];
+    private int[] entryMeans = new int[0];
+    // The start of the LOG_DENSITY row for the entry's standard deviation
+    private int[] entryRows = new int[0];
+    // What hearing the access point adds over not hearing it, less LOG_UNHEARD
+    private float[] entryBonus = new float[0];
+
+    // The entries of cell c are cellEntries[cellOffsets[c]] to cellEntries[cellOffsets[c+1] - 1]
+    private int[] cellOffsets = new int[1];
+    private int[] cellEntries = new int[0];
+    private int[] entryAps = new int[0];
+    private int generation = 0;
+
+    // Scratch space for the score of each cell
+    private float[] scores = new float[0];
+
+    // The live scan set by setScan(), as the level of each access point id (0 if not heard)
+    private int[] liveLevels = new int[0];
+    private int[] liveIds = new int[ScanFrame.DEFAULT_CAPACITY];
+    private int liveCount = 0;
+    private int liveHeard = 0;
+
+    /**
+     * Combine a reference point into the cell it lies in
+     */
+    public void add(LocData point){
+        String key = cellKey(point);
+        Cell cell = cells.get(key);
+        if (cell == null){
+            cell = new Cell();
+            cell.firstUid = point.uid;
+            cell.row = row(point.latitude);
+            cell.column = column(point.longitude, rowScale(cell.row));
+            cells.put(key, cell);
+        }
+        cell.latitudeSum += point.latitude;
+        cell.longitudeSum += point.longitude;
+        cell.scans++;
+        for (int i = 0; i < point.BSSIDs.length; i++){
+            int id = dictionary.add(point.BSSIDs[i]);
+            if (id == BssidDictionary.MISSING || point.dBs[i] == 0){
+                continue;
+            }
+            Statistics statistics = cell.accessPoints.get(id);
+            if (statistics == null){
+                statistics = new Statistics();
+                cell.accessPoints.put(id, statistics);
+            }
+            statistics.add(point.dBs[i]);
+        }
+        changed = true;
+    }
+
+    public void clear(){
+        dictionary.clear();
+        cells.clear();
+        changed = true;
+    }
+
+    /**
+     * @return the number of cells the reference points have been combined into
+     */
+    public int size(){
+        return cells.size();
+    }
+
+    /**
+     * @return the number of access points heard in a live scan which were heard in the survey,
+     * e.g. for the IndoorDetector to tell whether the user is in the surveyed building
+     */
+    public int countKnown(ScanFrame scan){
+        int known = 0;
+        for (int i = 0; i < scan.size; i++){
+            if (scan.levels[i] != 0 && dictionary.get(scan.BSSIDs[i]) != BssidDictionary.MISSING){
+                known++;
+            }
+        }
+        return known;
+    }
+
+    /**
+     * Find the cell the live scan was most likely heard in
+     * The estimate is the centroid of the reference points in the cell, its count the number of
+     * them, its uid the first of them and its score the log-likelihood of the scan, rounded
+     * Its spread is how far the cells lie from it in metres, each weighted by how likely the scan
+     * is there compared with the best, widened by how poorly the scan fits even the best cell. So
+     * a scan heard from outside the building, which fits many cells about as badly as the best or
+     * hears access points the survey never did, has a wide spread.
+     * @param scan     - the live scan, with every access point heard
+     * @param estimate - receives the estimated position
+     * @return false if there are no reference points
+     */
+    public boolean match(ScanFrame scan, PositionEstimate estimate){
+        pack();
+        if (cellCount == 0){
+            return false;
+        }
+        System.arraycopy(cellBase, 0, scores, 0, cellCount);
+        int heard = 0;
+        for (int i = 0; i < scan.size; i++){
+            int level = scan.levels[i];
+            if (level == 0){
+                continue;
+            }
+            heard++;
+            // An access point which is in no cell scores LOG_UNHEARD in every cell, added below
+            int id = dictionary.get(scan.BSSIDs[i]);
+            if (id == BssidDictionary.MISSING){
+                continue;
+            }
+            for (int k = apOffsets[id]; k < apOffsets[id + 1]; k++){
+                int difference = Math.min(Math.abs(level - entryMeans[k]), MAX_DIFFERENCE);
+                scores[entryCells[k]] += entryBonus[k] + LOG_DENSITY[entryRows[k] + difference];
+            }
+        }
+
+        int best = 0;
+        for (int c = 1; c < cellCount; c++){
+            if (scores[c] > scores[best]){
+                best = c;
+            }
+        }
+        estimate.latitude = cellLatitudes[best];
+        estimate.longitude = cellLongitudes[best];
+        double fit = heard > 0 ? (scores[best] + heard * LOG_UNHEARD) / heard : GOOD_FIT;
+        estimate.spread = spread(best) + METRES_PER_FIT * Math.max(0, GOOD_FIT - fit);
+        estimate.uid = cellUids[best];
+        estimate.score = (int) Math.round(scores[best] + heard * LOG_UNHEARD);
+        estimate.error = 0;
+        estimate.count = cellScans[best];
+        return true;
+    }
+
+    // The RMS distance in metres of the cells from the best, weighted by their scaled likelihood
+    private double spread(int best){
+        double lonScale = Math.cos(Math.toRadians(cellLatitudes[best]));
+        double cutoff = scores[best] - SPREAD_CUTOFF / SPREAD_SCALE;
+        double totalWeight = 0;
+        double sumSquares = 0;
+        for (int c = 0; c < cellCount; c++){
+            if (scores[c] < cutoff){
+                continue;
+            }
+            double weight = Math.exp(SPREAD_SCALE * (scores[c] - scores[best]));
+            double dy = (cellLatitudes[c] - cellLatitudes[best]) * PositionEstimate.METRES_PER_DEGREE;
+            double dx = (cellLongitudes[c] - cellLongitudes[best]) * PositionEstimate.METRES_PER_DEGREE * lonScale;
+            totalWeight += weight;
+            sumSquares += weight * (dx * dx + dy * dy);
+        }
+        return Math.sqrt(sumSquares / totalWeight);
+    }
+
+    /**
+     * Set the live scan for logLikelihood(), for scoring only some of the cells
+     * @param scan - the live scan, with every access point heard
+     */
+    public void setScan(ScanFrame scan){
+        pack();
+        for (int i = 0; i < liveCount; i++){
+            liveLevels[liveIds[i]] = 0;
+        }
+        liveCount = 0;
+        liveHeard = 0;
+        for (int i = 0; i < scan.size; i++){
+            int level = scan.levels[i];
+            if (level == 0){
+                continue;
+            }
+            liveHeard++;
+            int id = dictionary.get(scan.BSSIDs[i]);
+            if (id == BssidDictionary.MISSING){
+                continue;
+            }
+            if (liveCount == liveIds.length){
+                liveIds = Arrays.copyOf(liveIds, liveCount * 2);
+            }
+            liveIds[liveCount++] = id;
+            liveLevels[id] = level;
+        }
+    }
+
+    /**
+     * @return the log-likelihood of the scan given to setScan() being heard in a cell, as match()
+     * scores it, reading only the access points of that cell
+     */
+    public float logLikelihood(int cell){
+        float score = cellBase[cell];
+        for (int i = cellOffsets[cell]; i < cellOffsets[cell + 1]; i++){
+            int k = cellEntries[i];
+            int level = liveLevels[entryAps[k]];
+            if (level != 0){
+                int difference = Math.min(Math.abs(level - entryMeans[k]), MAX_DIFFERENCE);
+                score += entryBonus[k] + LOG_DENSITY[entryRows[k] + difference];
+            }
+        }
+        return (float) (score + liveHeard * LOG_UNHEARD);
+    }
+
+    // The packed cells, numbered 0 to size() - 1, only valid since the last pack()
+
+    public double cellLatitude(int cell){
+        return cellLatitudes[cell];
+    }
+
+    public double cellLongitude(int cell){
+        return cellLongitudes[cell];
+    }
+
+    public int cellUid(int cell){
+        return cellUids[cell];
+    }
+
+    // The row and column of the grid of CELL_SIZE squares the cell is on, see row() and column()
+
+    public long cellRow(int cell){
+        return cellRows[cell];
+    }
+
+    public long cellColumn(int cell){
+        return cellColumns[cell];
+    }
+
+    /**
+     * Pack the cells for scoring, if anything has been added since they were last packed
+     * @return a number which changes each time the cells are packed again, so that anything
+     * holding cell numbers knows to look them up again
+     */
+    public int pack(){
+        if (!changed){
+            return generation;
+        }
+        changed = false;
+        generation++;
+        cellCount = cells.size();
+        cellLatitudes = new double[cellCount];
+        cellLongitudes = new double[cellCount];
+        cellScans = new int[cellCount];
+        cellUids = new int[cellCount];
+        cellRows = new long[cellCount];
+        cellColumns = new long[cellCount];
+        cellBase = new float[cellCount];
+        scores = new float[cellCount];
+
+        // Count the entries of each access point, to lay them out grouped by access point
+        apOffsets = new int[dictionary.size() + 1];
+        List<Cell> ordered = new ArrayList<>(cells.values());
+        for (Cell cell : ordered){
+            for (Integer id : cell.accessPoints.keySet()){
+                apOffsets[id + 1]++;
+            }
+        }
+        for (int a = 0; a < dictionary.size(); a++){
+            apOffsets[a + 1] += apOffsets[a];
+        }
+        int entries = apOffsets[dictionary.size()];
+        entryCells = new int[entries];
+        entryMeans = new int[entries];
+        entryRows = new int[entries];
+        entryBonus = new float[entries];
+        entryAps = new int[entries];
+        cellOffsets = new int[cellCount + 1];
+        cellEntries = new int[entries];
+        liveLevels = new int[dictionary.size()];
+        liveCount = 0;
+
+        int[] next = Arrays.copyOf(apOffsets, dictionary.size());
+        for (int c = 0; c < cellCount; c++){
+            Cell cell = ordered.get(c);
+            cellLatitudes[c] = cell.latitudeSum / cell.scans;
+            cellLongitudes[c] = cell.longitudeSum / cell.scans;
+            cellScans[c] = cell.scans;
+            cellUids[c] = cell.firstUid;
+            cellRows[c] = cell.row;
+            cellColumns[c] = cell.column;
+            double base = 0;
+            int filled = cellOffsets[c];
+            for (Map.Entry<Integer, Statistics> accessPoint : cell.accessPoints.entrySet()){
+                Statistics statistics = accessPoint.getValue();
+                // Smoothed so that an access point is never certain to be heard or missed
+                double present = (statistics.heard + 1.0) / (cell.scans + 2.0);
+                double variance = (statistics.squares + PRIOR_SCANS * PRIOR_SIGMA * PRIOR_SIGMA)
+                        / (statistics.heard - 1 + PRIOR_SCANS);
+                int sigma = (int) Math.round(Math.sqrt(variance));
+                sigma = Math.max(MIN_SIGMA, Math.min(MAX_SIGMA, sigma));
+
+                int k = next[accessPoint.getKey()]++;
+                cellEntries[filled++] = k;
+                entryAps[k] = accessPoint.getKey();
+                entryCells[k] = c;
+                entryMeans[k] = (int) Math.round(statistics.mean);
+                entryRows[k] = (sigma - MIN_SIGMA) * (MAX_DIFFERENCE + 1);
+                entryBonus[k] = (float) (Math.log(present) - Math.log(1 - present) - LOG_UNHEARD);
+                base += Math.log(1 - present);
+            }
+            cellBase[c] = (float) base;
+            cellOffsets[c + 1] = filled;
+        }
+        return generation;
+    }
+
+    // Cells are numbered by their distance in metres north of the equator and east of the
+    // meridian, with the east-west size taken at the middle of the cell's row
+    private static String cellKey(LocData point){
+        long row = row(point.latitude);
+        long column = column(point.longitude, rowScale(row));
+        return point.building + ":" + point.floor + ":" + row + ":" + column;
+    }
+
+    /**
+     * @return the row of CELL_SIZE squares a latitude lies in, counted north from the equator
+     */
+    static long row(double latitude){
+        return (long) Math.floor(latitude * PositionEstimate.METRES_PER_DEGREE / CELL_SIZE);
+    }
+
+    /**
+     * @return how much narrower a degree of longitude is than one of latitude along a row
+     */
+    static double rowScale(long row){
+        return Math.cos(Math.toRadians((row + 0.5) * CELL_SIZE / PositionEstimate.METRES_PER_DEGREE));
+    }
+
+    /**
+     * @return the column of CELL_SIZE squares a longitude lies in, on a row of the given scale
+     */
+    static long column(double longitude, double rowScale){
+        return (long) Math.floor(longitude * PositionEstimate.METRES_PER_DEGREE * rowScale / CELL_SIZE);
+    }
+}
@@ -0,0 +1,146 @@
+package com.ewireless.s1208506.navigationinside;
+
+/**
+ * Author: Gavin Waite
+ * Decides whether the user is inside a surveyed building or outside it, so the PositioningFragment
+ * can switch between WiFi and FusedLocationProvider positioning without the user pressing a button
+ *
+ * Three kinds of evidence are weighed up as they arrive:
+ *  - the accuracy of each outdoor Location: a tight fix needs a view of the sky, while a rough one
+ *    comes from the network or a GPS struggling through a roof
+ *  - how many access points of each scan are in the survey: inside they nearly all are, outside
+ *    the building only a few of its access points reach
+ *  - how confident each indoor match is: once the user leaves the survey the matches spread out
+ *    or there are none
+ * Each adds to or takes from a running total of evidence for being inside, held within +/- LIMIT.
+ * The user is taken to be inside once the total reaches ENTER and outside again once it falls to
+ * EXIT, so evidence which hovers around the middle, e.g. in a doorway, does not flip the mode back
+ * and forth. LIMIT bounds how long it takes to change mode after a long time in the other.
+ *
+ * The Location accuracies only arrive outdoors and the matches only indoors, as the other
+ * positioning is stopped, but the scans are weighed in both.
+ * Not thread safe, the PositioningFragment only uses it on the main thread.
+ */
+public class IndoorDetector {
+
+    // The evidence for being inside at which the mode switches in and out, and its limits
+    static final double ENTER = 3;
+    static final double EXIT = -3;
+    static final double LIMIT = 5;
+
+    // Location accuracies in metres: GPS under open sky, a fair fix, and a poor fix
+    static final double GOOD_LOCATION = 10;
+    static final double FAIR_LOCATION = 20;
+    static final double POOR_LOCATION = 40;
+    // Access points of a scan in the survey for the scan to look like it was inside, many or some
+    static final int MANY_KNOWN = 5;
+    static final int SOME_KNOWN = 3;
+    // The spread of an indoor match in metres, confident or not
+    static final double GOOD_MATCH = 8;
+    static final double POOR_MATCH = 20;
+    // The spread of a single reference point match with no error, and how much each dB of error
+    // adds to it: a few dB either way is a few metres
+    static final double POINT_SPREAD = GaussianModel.CELL_SIZE;
+    static final double METRES_PER_DB = 0.5;
+
+    private boolean inside = false;
+    private double evidence = 0;
+
+    public boolean isInside(){
+        return inside;
+    }
+
+    /**
+     * @return the evidence for being inside, positive for inside and negative for outside
+     */
+    public double getEvidence(){
+        return evidence;
+    }
+
+    /**
+     * Set the mode, e.g. by hand, with just enough evidence for it to stay so
+     */
+    public void setInside(boolean inside){
+        this.inside = inside;
+        evidence = inside ? ENTER : EXIT;
+    }
+
+    /**
+     * Weigh an outdoor Location
+     * @param accuracy - its accuracy in metres
+     * @return true if the mode has changed
+     */
+    public boolean onLocation(double accuracy){
+        if (accuracy <= GOOD_LOCATION){
+            return weigh(-1.5);
+        }
+        if (accuracy <= FAIR_LOCATION){
+            return weigh(-0.5);
+        }
+        return weigh(accuracy > POOR_LOCATION ? 0.5 : 0);
+    }
+
+    /**
+     * Weigh a scan
+     * @param heard - the number of access points heard
+     * @param known - the number of them in the survey
+     * @return true if the mode has changed
+     */
+    public boolean onScan(int heard, int known){
+        if (heard == 0){
+            // Nothing heard at all says nothing, the WiFi may be off
+            return false;
+        }
+        if (known >= MANY_KNOWN){
+            return weigh(1);
+        }
+        if (known >= SOME_KNOWN){
+            return weigh(0.5);
+        }
+        return weigh(known == 0 ? -1 : -0.5);
+    }
+
+    /**
+     * Weigh an indoor match
+     * @param found    - false if no reference point matched the scan
+     * @param accuracy - the spread of the match in metres
+     * @return true if the mode has changed
+     */
+    public boolean onMatch(boolean found, double accuracy){
+        if (!found){
+            return weigh(-1);
+        }
+        if (accuracy <= GOOD_MATCH){
+            return weigh(0.5);
+        }
+        return weigh(accuracy > POOR_MATCH ? -0.5 : 0);
+    }
+
+    /**
+     * The spread in metres to weigh a single reference point match with, as it gives none itself
+     * Outside the building the strongest access points heard are faint or not in the survey at
+     * all, so even the closest reference point is a poor match.
+     * @param score - the score of the match, 0 or less if it shares none of the scan's access points
+     * @param error - its error in dB
+     * @return the spread, infinite if the match shares no access point
+     */
+    public static double matchSpread(int score, int error){
+        if (score <= 0){
+            return Double.POSITIVE_INFINITY;
+        }
+        return POINT_SPREAD + METRES_PER_DB * error;
+    }
+
+    private boolean weigh(double weight){
+        evidence = Math.max(-LIMIT, Math.min(LIMIT, evidence + weight));
+        if (!inside && evidence >= ENTER){
+            inside = true;
+            return true;
+        }
+        if (inside && evidence <= EXIT){
+            inside = false;
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,278 @@
+package com.ewireless.s1208506.navigationinside;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorEventListener2;
+import android.hardware.SensorManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+
+/**
+ * Author: Gavin Waite
+ * Feeds the device accelerometer and gyroscope into a DeadReckoning and passes the steps it finds
+ * back to the Listener, so the PositioningFragment can move the user on between WiFi scans
+ *
+ * The sensors are asked for at 50 Hz but batched: the samples are held in the sensor hub's hardware
+ * FIFO and delivered MAX_REPORT_LATENCY_US at a time, so the CPU can sleep in between instead of
+ * waking 100 times a second. The latency is about the time between scans when walking (see
+ * ScanScheduler), so the steps of a batch mostly arrive after the scan they came before. Before a
+ * scan is used the caller asks for the FIFO to be emptied with flush(), and the steps are handed
+ * over with their times, so the ParticleFilter can make the ones before the scan first. Devices
+ * without a FIFO deliver each sample as it comes, which works the same but costs more battery.
+ *
+ * The samples are delivered to and processed on a sensor thread of this class's own, never the
+ * main thread, and the steps are handed to the Listener on the Executor it was given.
+ */
+public class InertialSensors implements SensorEventListener {
+
+    // 50 Hz, enough for steps of up to 4 a second
+    static final int SAMPLING_PERIOD_US = 20000;
+    static final int MAX_REPORT_LATENCY_US = (int) (ScanScheduler.MOVING_INTERVAL * 1000);
+
+    private final SensorManager sensorManager;
+    private final Sensor accelerometer;
+    private final Sensor gyroscope;
+    private final HandlerThread thread = new HandlerThread("InertialSensors");
+    private final Handler handler;
+    private final Executor executor;
+    // The listener registered for the samples, one which also hears flushes complete if batched
+    private final SensorEventListener sensorListener;
+
+    // Only used on the sensor thread
+    private final DeadReckoning reckoning = new DeadReckoning();
+    private boolean processPending = false;
+    // The sensors still to empty their FIFO for the flush under way, and who to tell once they have
+    private int flushing = 0;
+    private Runnable flushed;
+
+    // Set to write every sample to a SensorLog, for replaying later
+    private volatile SensorLog.Writer recorder;
+    private boolean started = false;
+
+    /**
+     * @param context  - to get the SensorManager from
+     * @param listener - receives the steps
+     * @param executor - the thread the steps are handed to the listener on
+     */
+    public InertialSensors(Context context, final DeadReckoning.Listener listener, final Executor executor){
+        this.executor = executor;
+        sensorManager = (SensorManager) context.getApplicationContext().getSystemService(Context.SENSOR_SERVICE);
+        accelerometer = sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+        gyroscope = sensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE);
+        reckoning.setGyroscope(gyroscope != null);
+        reckoning.setListener(new DeadReckoning.Listener() {
+            @Override
+            public void onStep(final long time, final double length, final double heading) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onStep(time, length, heading);
+                    }
+                });
+            }
+        });
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        sensorListener = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT ? new FlushListener() : this;
+    }
+
+    /**
+     * @return true if the device can detect steps at all
+     */
+    public boolean isAvailable(){
+        return accelerometer != null;
+    }
+
+    /**
+     * Write every sample to the log from now on, or stop with null
+     * The log given before is closed on the sensor thread, once no more samples can be written to it
+     */
+    public void setRecorder(SensorLog.Writer recorder){
+        final SensorLog.Writer last = this.recorder;
+        this.recorder = recorder;
+        if (last != null && last != recorder){
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        last.close();
+                    } catch (IOException e){
+                        Log.e("PDR", "Could not close the sensor log", e);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Start detecting steps
+     * @return false if there is no accelerometer to detect them with
+     */
+    public boolean start(){
+        if (!isAvailable()){
+            return false;
+        }
+        if (started){
+            return true;
+        }
+        started = true;
+        register(accelerometer);
+        if (gyroscope != null){
+            register(gyroscope);
+        }
+        Log.d("PDR", "Started dead reckoning");
+        return true;
+    }
+
+    /**
+     * Stop detecting steps, the heading starts again from the way the phone faces on start()
+     */
+    public void stop(){
+        if (!started){
+            return;
+        }
+        started = false;
+        sensorManager.unregisterListener(sensorListener);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                reckoning.reset();
+                // Nothing more is coming, so a flush under way is as done as it will be
+                if (flushing > 0){
+                    flushing = 0;
+                    executor.execute(flushed);
+                }
+            }
+        });
+    }
+
+    /**
+     * Stop for good, closing any log being recorded, and end the sensor thread
+     */
+    public void quit(){
+        stop();
+        setRecorder(null);
+        // Once the work already posted, such as closing the log, is done
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                thread.quit();
+            }
+        });
+    }
+
+    /**
+     * Empty the sensors' FIFOs and process the samples, so every step made up to now is handed
+     * to the Listener, e.g. before a scan is used
+     * If a flush is already under way, done is run once it completes in its place
+     * @param done - run on the Executor once the steps up to now have been handed over
+     * @return false if the samples are not batched, so the steps are in already and done is not run
+     */
+    public boolean flush(final Runnable done){
+        if (!started || sensorListener == this){
+            return false;
+        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                flushed = done;
+                if (flushing == 0){
+                    flushing = gyroscope != null ? 2 : 1;
+                    if (!sensorManager.flush(sensorListener)){
+                        flushing = 0;
+                        executor.execute(done);
+                    }
+                }
+            }
+        });
+        return true;
+    }
+
+    private void register(Sensor sensor){
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT){
+            sensorManager.registerListener(sensorListener, sensor, SAMPLING_PERIOD_US, MAX_REPORT_LATENCY_US, handler);
+        }
+        else {
+            sensorManager.registerListener(this, sensor, SAMPLING_PERIOD_US, handler);
+        }
+    }
+
+    /**
+     * Also hears when each sensor has emptied its FIFO after flush(), on the sensor thread
+     * Kept apart so that devices older than KitKat, without SensorEventListener2, never load it
+     */
+    private class FlushListener implements SensorEventListener2 {
+        @Override
+        public void onSensorChanged(SensorEvent event){
+            InertialSensors.this.onSensorChanged(event);
+        }
+
+        @Override
+        public void onAccuracyChanged(Sensor sensor, int accuracy){
+            InertialSensors.this.onAccuracyChanged(sensor, accuracy);
+        }
+
+        @Override
+        public void onFlushCompleted(Sensor sensor){
+            if (flushing == 0 || --flushing > 0){
+                return;
+            }
+            // The samples of the flush have all been delivered before this, so process them now
+            // rather than when processRun comes round
+            reckoning.process();
+            executor.execute(flushed);
+        }
+    }
+
+    /**
+     * Called on the sensor thread for every sample, a whole batch at a time
+     * The sample is only buffered, the batch is processed once after it has been delivered
+     */
+    @Override
+    public void onSensorChanged(SensorEvent event){
+        float[] values = event.values;
+        boolean acceleration = event.sensor.getType() == Sensor.TYPE_ACCELEROMETER;
+        if (acceleration){
+            reckoning.addAcceleration(event.timestamp, values[0], values[1], values[2]);
+        }
+        else {
+            reckoning.addRotation(event.timestamp, values[0], values[1], values[2]);
+        }
+
+        SensorLog.Writer log = recorder;
+        if (log != null){
+            try {
+                log.write(event.timestamp, acceleration ? SensorLog.ACCELEROMETER : SensorLog.GYROSCOPE,
+                        values[0], values[1], values[2]);
+            } catch (IOException e){
+                Log.e("PDR", "Could not record the sample, recording stopped", e);
+                recorder = null;
+            }
+        }
+
+        if (!processPending){
+            processPending = true;
+            handler.post(processRun);
+        }
+    }
+
+    private final Runnable processRun = new Runnable() {
+        @Override
+        public void run() {
+            processPending = false;
+            reckoning.process();
+        }
+    };
+
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy){
+        // Auto-generated method stub
+    }
+}
@@ -0,0 +1,39 @@
+package com.ewireless.s1208506.navigationinside;
+
+import android.arch.persistence.room.ColumnInfo;
+import android.arch.persistence.room.Entity;
+import android.arch.persistence.room.ForeignKey;
+import android.arch.persistence.room.Index;
+import android.arch.persistence.room.PrimaryKey;
+
+/**
+ * Author: Gavin Waite
+ * The Room API Database Entity for a single WiFi access point heard at a reference point
+ * https://developer.android.com/training/data-storage/room/index.html
+ *
+ * Each LocData reference point owns any number of these rows, one per access point in its
+ * fingerprint, rather than a fixed 3 columns. They are deleted along with their reference point.
+ * The (BSSID, pointUid) index lets the reference points that heard any of a set of access points
+ * be found without reading the rest of the table (see LocDao.getCandidates()).
+ */
+@Entity(tableName = "locaccesspoint",
+        foreignKeys = @ForeignKey(entity = LocData.class,
+                parentColumns = "uid",
+                childColumns = "pointUid",
+                onDelete = ForeignKey.CASCADE),
+        indices = {@Index("pointUid"), @Index({"BSSID", "pointUid"})})
+public class LocAccessPoint {
+    // Simply used to guarantee the uniqueness of each row
+    @PrimaryKey(autoGenerate = true)
+    public int id;
+
+    // The uid of the LocData reference point this reading belongs to
+    @ColumnInfo
+    public int pointUid;
+
+    // The access point as a 48-bit long (see MacAddress) and its signal level
+    @ColumnInfo
+    public long BSSID;
+    @ColumnInfo
+    public int dB;
+}
@@ -3,7 +3,10 @@ package com.ewireless.s1208506.navigationinside;
 import android.arch.persistence.room.Dao;
 import android.arch.persistence.room.Insert;
 import android.arch.persistence.room.Query;
+import android.arch.persistence.room.Transaction;
+import android.database.Cursor;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -12,26 +15,116 @@ import java.util.List;
  * https://developer.android.com/training/data-storage/room/index.html
  *
  * Further queries could be added as this application was extended to more locations
- * The database may become very large so to save loading and analysing overhead, then instead of
- * loading the full database each time with getAll(), a subset could be returned based on relative
- * latitude and longitude to the last known location. Therefore only the relevant reference points
- * would be returned.
+ * The database may become very large so to save loading and analysing overhead, rather than
+ * loading the full database each time with getAll(), the reference points around the last known
+ * location can be loaded with getInBox(), which uses the latitude/longitude index on locdata.
  */
 @Dao
-public interface LocDao {
+public abstract class LocDao {
     // USed to acquire the reference points to perform analysis and positioning
-    @Query("SELECT * FROM locdata")
-    List<LocData> getAll();
+    @Query("SELECT * FROM locdata ORDER BY uid")
+    public abstract List<LocData> getAll();
 
-    // Returns the integer number of entries for calculating the new UID for the next point
+    // The access points of every reference point, grouped by point and strongest first, so that
+    // they can be attached to the results of getAll() in a single pass
+    @Query("SELECT * FROM locaccesspoint ORDER BY pointUid, dB DESC")
+    public abstract List<LocAccessPoint> getAllAccessPoints();
+
+    // The reference points within a latitude/longitude box, using the latitude/longitude index
+    @Query("SELECT * FROM locdata WHERE latitude BETWEEN :minLatitude AND :maxLatitude "
+            + "AND longitude BETWEEN :minLongitude AND :maxLongitude ORDER BY uid")
+    public abstract List<LocData> getInBox(double minLatitude, double maxLatitude,
+                                           double minLongitude, double maxLongitude);
+
+    // The access points of the reference points in the same box, ordered as getAllAccessPoints()
+    @Query("SELECT locaccesspoint.* FROM locaccesspoint "
+            + "INNER JOIN locdata ON locdata.uid = locaccesspoint.pointUid "
+            + "WHERE latitude BETWEEN :minLatitude AND :maxLatitude "
+            + "AND longitude BETWEEN :minLongitude AND :maxLongitude "
+            + "ORDER BY pointUid, dB DESC")
+    public abstract List<LocAccessPoint> getAccessPointsInBox(double minLatitude, double maxLatitude,
+                                                              double minLongitude, double maxLongitude);
+
+    // The reference points which heard any of the given access points, found through the
+    // (BSSID, pointUid) index, for a fix before the in-memory copy has loaded
+    @Query("SELECT * FROM locdata WHERE uid IN "
+            + "(SELECT pointUid FROM locaccesspoint WHERE BSSID IN (:BSSIDs)) ORDER BY uid")
+    public abstract List<LocData> getCandidates(long[] BSSIDs);
+
+    // The access points of the same reference points, ordered as getAllAccessPoints()
+    @Query("SELECT * FROM locaccesspoint WHERE pointUid IN "
+            + "(SELECT pointUid FROM locaccesspoint WHERE BSSID IN (:BSSIDs)) ORDER BY pointUid, dB DESC")
+    public abstract List<LocAccessPoint> getCandidateAccessPoints(long[] BSSIDs);
+
+    // Every reference point joined with its access points, one row per access point (or a single
+    // row with a null BSSID for a point without any), grouped by point and strongest first
+    // Read a window at a time by the Cursor, so the whole table can be exported in constant memory
+    @Query("SELECT locdata.uid, latitude, longitude, building, floor, BSSID, dB FROM locdata "
+            + "LEFT JOIN locaccesspoint ON locaccesspoint.pointUid = locdata.uid "
+            + "ORDER BY locdata.uid, dB DESC")
+    public abstract Cursor getFingerprintCursor();
+
+    // The full fingerprint of a single reference point, strongest first
+    @Query("SELECT * FROM locaccesspoint WHERE pointUid = :uid ORDER BY dB DESC")
+    public abstract List<LocAccessPoint> getAccessPoints(int uid);
+
+    // A page of the reference points for the Database tab, the page after a known uid, read
+    // through the primary key (see PagedPoints)
+    @Query("SELECT * FROM locdata WHERE uid > :afterUid ORDER BY uid LIMIT :limit")
+    public abstract List<LocData> getPageAfter(int afterUid, int limit);
+
+    // The access points of the same page, ordered as getAllAccessPoints()
+    @Query("SELECT * FROM locaccesspoint WHERE pointUid IN "
+            + "(SELECT uid FROM locdata WHERE uid > :afterUid ORDER BY uid LIMIT :limit) "
+            + "ORDER BY pointUid, dB DESC")
+    public abstract List<LocAccessPoint> getPageAccessPointsAfter(int afterUid, int limit);
+
+    // A page of the reference points by its position, for when the page before is not known
+    @Query("SELECT * FROM locdata ORDER BY uid LIMIT :limit OFFSET :offset")
+    public abstract List<LocData> getPageAt(int offset, int limit);
+
+    // The access points of the same page, ordered as getAllAccessPoints()
+    @Query("SELECT * FROM locaccesspoint WHERE pointUid IN "
+            + "(SELECT uid FROM locdata ORDER BY uid LIMIT :limit OFFSET :offset) "
+            + "ORDER BY pointUid, dB DESC")
+    public abstract List<LocAccessPoint> getPageAccessPointsAt(int offset, int limit);
+
+    // Returns the integer number of entries, to check the in-memory copy is up to date
     @Query("SELECT COUNT(uid) FROM locdata")
-    int countEntries();
+    public abstract int countEntries();
 
-    // Inserts a reference point with the WiFi readings and interpolated location
+    // Inserts a batch of reference points, e.g. a whole training session, and returns the uid
+    // assigned to each in order
     @Insert
-    void insertOne(LocData data);
+    public abstract long[] insertAll(List<LocData> data);
+
+    // Inserts the WiFi readings of a reference point
+    @Insert
+    public abstract void insertAccessPoints(List<LocAccessPoint> accessPoints);
+
+    /**
+     * Inserts reference points along with all of their access points in a single transaction,
+     * using one prepared statement per table rather than one transaction per row
+     * @param points - the new reference points, their uids are set to the ones assigned
+     */
+    @Transaction
+    public void insertWithAccessPoints(List<LocData> points){
+        long[] uids = insertAll(points);
+        for (int i = 0; i < uids.length; i++){
+            points.get(i).uid = (int) uids[i];
+        }
+        List<LocAccessPoint> accessPoints = new ArrayList<>();
+        for (LocData point : points){
+            accessPoints.addAll(point.toAccessPoints());
+        }
+        insertAccessPoints(accessPoints);
+    }
 
     // Clears the entire database
     @Query("DELETE FROM locdata")
-    void deleteAll();
+    public abstract void deleteAll();
+
+    // Clears every access point, used alongside deleteAll()
+    @Query("DELETE FROM locaccesspoint")
+    public abstract void deleteAllAccessPoints();
 }
@@ -2,18 +2,34 @@ package com.ewireless.s1208506.navigationinside;
 
 import android.arch.persistence.room.ColumnInfo;
 import android.arch.persistence.room.Entity;
+import android.arch.persistence.room.Ignore;
+import android.arch.persistence.room.Index;
 import android.arch.persistence.room.PrimaryKey;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Author: Gavin Waite
  * The Room API Database Entity definition. This defines the columns of each record/entry in the
  * database and their types
  * https://developer.android.com/training/data-storage/room/index.html
+ *
+ * The WiFi fingerprint of each reference point is stored separately as LocAccessPoint rows. Once
+ * loaded into memory these are held in the BSSIDs and dBs arrays of the reference point.
+ * The latitude/longitude are indexed so that only the reference points around the user need to be
+ * loaded (see LocDao.getInBox() and RegionLoader). The building/floor are not set by training yet,
+ * only carried through survey files and used to keep floors apart in the GaussianModel.
  */
-@Entity(tableName = "locdata")
+@Entity(tableName = "locdata",
+        indices = {@Index({"latitude", "longitude"}), @Index({"building", "floor"})})
 public class LocData {
+    // The number of access points kept for each reference point unless otherwise configured
+    public static final int DEFAULT_MAX_ACCESS_POINTS = 10;
+
     // Simply used to order the entries and guarantee their uniqueness
-    @PrimaryKey
+    // Assigned by SQLite when the point is inserted (leave it as 0), and never reused
+    @PrimaryKey(autoGenerate = true)
     public int uid;
 
     // The interpolated location of the reference point
@@ -22,22 +38,18 @@ public class LocData {
     @ColumnInfo
     public double longitude;
 
-    // The 3 strongest WiFi access points from the scan at the reference point
-    // This could be extended to have more access points to tune the positioning algorithm further
-    @ColumnInfo
-    public String BSSID_1;
-    @ColumnInfo
-    public int dB_1;
-
+    // Which building and floor of the site the reference point is on, 0 if not known
     @ColumnInfo
-    public String BSSID_2;
+    public int building;
     @ColumnInfo
-    public int dB_2;
+    public int floor;
 
-    @ColumnInfo
-    public String BSSID_3;
-    @ColumnInfo
-    public int dB_3;
+    // The strongest WiFi access points from the scan at the reference point, strongest first
+    // The BSSIDs are 48-bit longs (see MacAddress). These are stored in the LocAccessPoint table
+    @Ignore
+    public long[] BSSIDs = new long[0];
+    @Ignore
+    public int[] dBs = new int[0];
 
     // EMF Support was dropped as it was found to be inaccurate compared to WiFi strength and was
     // dependent on device orientation
@@ -47,5 +59,44 @@ public class LocData {
 //    public float emfY;
 //    @ColumnInfo(name = "emfZ")
 //    public float emfZ;
-}
 
+    /**
+     * @return the fingerprint of this reference point as rows for the LocAccessPoint table
+     */
+    public List<LocAccessPoint> toAccessPoints(){
+        List<LocAccessPoint> rows = new ArrayList<>(BSSIDs.length);
+        for (int i = 0; i < BSSIDs.length; i++){
+            LocAccessPoint row = new LocAccessPoint();
+            row.pointUid = uid;
+            row.BSSID = BSSIDs[i];
+            row.dB = dBs[i];
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    /**
+     * Fill in the in-memory fingerprints of the reference points from their LocAccessPoint rows
+     * @param points       - the reference points, ordered by uid
+     * @param accessPoints - all of their access points, ordered by pointUid and then strongest first
+     */
+    public static void attachAccessPoints(List<LocData> points, List<LocAccessPoint> accessPoints){
+        int row = 0;
+        for (LocData point : points){
+            // Skip any rows whose reference point no longer exists
+            while (row < accessPoints.size() && accessPoints.get(row).pointUid < point.uid){
+                row++;
+            }
+            int first = row;
+            while (row < accessPoints.size() && accessPoints.get(row).pointUid == point.uid){
+                row++;
+            }
+            point.BSSIDs = new long[row - first];
+            point.dBs = new int[row - first];
+            for (int i = first; i < row; i++){
+                point.BSSIDs[i - first] = accessPoints.get(i).BSSID;
+                point.dBs[i - first] = accessPoints.get(i).dB;
+            }
+        }
+    }
+}
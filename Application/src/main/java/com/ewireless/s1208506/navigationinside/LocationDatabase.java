@@ -1,7 +1,11 @@
 package com.ewireless.s1208506.navigationinside;
 
+import android.arch.persistence.db.SupportSQLiteDatabase;
+import android.arch.persistence.db.SupportSQLiteStatement;
 import android.arch.persistence.room.Database;
 import android.arch.persistence.room.RoomDatabase;
+import android.arch.persistence.room.migration.Migration;
+import android.database.Cursor;
 
 /**
  * Author: Gavin Waite
@@ -11,10 +15,131 @@ import android.arch.persistence.room.RoomDatabase;
  *
  * The @Database annotation defines the database settings to use LocData for each entry in the table
  * It also links the Database Access Object (DAO) which is defined in a separate file
+ *
+ * Version history
+ * 1 - BSSIDs stored as Strings
+ * 2 - BSSIDs stored as 48-bit integers (see MacAddress)
+ * 3 - Access points moved out of locdata into the locaccesspoint table, any number per point
+ * 4 - locdata uids are assigned by SQLite (AUTOINCREMENT) rather than by the app
+ * 5 - building and floor columns, indexes on latitude/longitude and building/floor
+ * 6 - index on locaccesspoint (BSSID, pointUid)
  */
-@Database(entities = {LocData.class}, version = 1)
+@Database(entities = {LocData.class, LocAccessPoint.class}, version = 6)
 public abstract class LocationDatabase extends RoomDatabase {
 
     public abstract LocDao locDao();
 
+    /**
+     * Converts the String BSSID columns of version 1 into integers
+     * SQLite cannot parse a MAC address itself, so the rows are copied across through Java
+     */
+    public static final Migration MIGRATION_1_2 = new Migration(1, 2) {
+        @Override
+        public void migrate(SupportSQLiteDatabase database) {
+            database.execSQL("CREATE TABLE `locdata_new` (`uid` INTEGER NOT NULL, "
+                    + "`latitude` REAL NOT NULL, `longitude` REAL NOT NULL, "
+                    + "`BSSID_1` INTEGER NOT NULL, `dB_1` INTEGER NOT NULL, "
+                    + "`BSSID_2` INTEGER NOT NULL, `dB_2` INTEGER NOT NULL, "
+                    + "`BSSID_3` INTEGER NOT NULL, `dB_3` INTEGER NOT NULL, PRIMARY KEY(`uid`))");
+
+            SupportSQLiteStatement insert = database.compileStatement(
+                    "INSERT INTO `locdata_new` VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)");
+            Cursor rows = database.query("SELECT uid, latitude, longitude, BSSID_1, dB_1, "
+                    + "BSSID_2, dB_2, BSSID_3, dB_3 FROM locdata");
+            try {
+                while (rows.moveToNext()) {
+                    insert.bindLong(1, rows.getInt(0));
+                    insert.bindDouble(2, rows.getDouble(1));
+                    insert.bindDouble(3, rows.getDouble(2));
+                    for (int ap = 0; ap < 3; ap++) {
+                        // "NA" and any malformed entries become MacAddress.NONE
+                        insert.bindLong(4 + 2 * ap, MacAddress.parse(rows.getString(3 + 2 * ap)));
+                        insert.bindLong(5 + 2 * ap, rows.getInt(4 + 2 * ap));
+                    }
+                    insert.executeInsert();
+                }
+            } finally {
+                rows.close();
+            }
+
+            database.execSQL("DROP TABLE locdata");
+            database.execSQL("ALTER TABLE `locdata_new` RENAME TO `locdata`");
+        }
+    };
+
+    /**
+     * Moves the 3 fixed access point columns of each reference point into locaccesspoint rows,
+     * dropping the padding entries, and then rebuilds locdata without those columns
+     * The rows are staged in a plain table first so that no foreign key exists while the old
+     * locdata table is dropped
+     */
+    public static final Migration MIGRATION_2_3 = new Migration(2, 3) {
+        @Override
+        public void migrate(SupportSQLiteDatabase database) {
+            database.execSQL("CREATE TABLE `ap_migration` AS "
+                    + "SELECT uid AS pointUid, BSSID_1 AS BSSID, dB_1 AS dB FROM locdata WHERE BSSID_1 != 0 "
+                    + "UNION ALL SELECT uid, BSSID_2, dB_2 FROM locdata WHERE BSSID_2 != 0 "
+                    + "UNION ALL SELECT uid, BSSID_3, dB_3 FROM locdata WHERE BSSID_3 != 0");
+
+            database.execSQL("CREATE TABLE `locdata_new` (`uid` INTEGER NOT NULL, "
+                    + "`latitude` REAL NOT NULL, `longitude` REAL NOT NULL, PRIMARY KEY(`uid`))");
+            database.execSQL("INSERT INTO `locdata_new` SELECT uid, latitude, longitude FROM locdata");
+            database.execSQL("DROP TABLE locdata");
+            database.execSQL("ALTER TABLE `locdata_new` RENAME TO `locdata`");
+
+            database.execSQL("CREATE TABLE `locaccesspoint` ("
+                    + "`id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, `pointUid` INTEGER NOT NULL, "
+                    + "`BSSID` INTEGER NOT NULL, `dB` INTEGER NOT NULL, "
+                    + "FOREIGN KEY(`pointUid`) REFERENCES `locdata`(`uid`) "
+                    + "ON UPDATE NO ACTION ON DELETE CASCADE)");
+            database.execSQL("CREATE INDEX `index_locaccesspoint_pointUid` "
+                    + "ON `locaccesspoint` (`pointUid`)");
+            database.execSQL("INSERT INTO `locaccesspoint` (pointUid, BSSID, dB) "
+                    + "SELECT pointUid, BSSID, dB FROM `ap_migration` ORDER BY pointUid, dB DESC");
+            database.execSQL("DROP TABLE `ap_migration`");
+        }
+    };
+
+    /**
+     * Rebuilds locdata with an AUTOINCREMENT uid, keeping the existing uids
+     * Foreign keys are only switched on once the database has been opened, so dropping the old
+     * table does not cascade to the access points, which keep referring to the same uids
+     */
+    public static final Migration MIGRATION_3_4 = new Migration(3, 4) {
+        @Override
+        public void migrate(SupportSQLiteDatabase database) {
+            database.execSQL("CREATE TABLE `locdata_new` (`uid` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, "
+                    + "`latitude` REAL NOT NULL, `longitude` REAL NOT NULL)");
+            database.execSQL("INSERT INTO `locdata_new` SELECT uid, latitude, longitude FROM locdata");
+            database.execSQL("DROP TABLE locdata");
+            database.execSQL("ALTER TABLE `locdata_new` RENAME TO `locdata`");
+        }
+    };
+
+    /**
+     * Adds the building and floor columns, unknown (0) for the existing reference points, and the
+     * indexes used to load only part of the database
+     */
+    public static final Migration MIGRATION_4_5 = new Migration(4, 5) {
+        @Override
+        public void migrate(SupportSQLiteDatabase database) {
+            database.execSQL("ALTER TABLE `locdata` ADD COLUMN `building` INTEGER NOT NULL DEFAULT 0");
+            database.execSQL("ALTER TABLE `locdata` ADD COLUMN `floor` INTEGER NOT NULL DEFAULT 0");
+            database.execSQL("CREATE INDEX `index_locdata_latitude_longitude` "
+                    + "ON `locdata` (`latitude`, `longitude`)");
+            database.execSQL("CREATE INDEX `index_locdata_building_floor` "
+                    + "ON `locdata` (`building`, `floor`)");
+        }
+    };
+
+    /**
+     * Adds the index used to find the reference points which heard an access point
+     */
+    public static final Migration MIGRATION_5_6 = new Migration(5, 6) {
+        @Override
+        public void migrate(SupportSQLiteDatabase database) {
+            database.execSQL("CREATE INDEX `index_locaccesspoint_BSSID_pointUid` "
+                    + "ON `locaccesspoint` (`BSSID`, `pointUid`)");
+        }
+    };
 }
@@ -114,6 +114,8 @@ public class LocationModel {
                 public void onSuccess(Location location) {
                     if (location != null) {
                         lastLocation = location;
+                        // Lets a large database load the region around the user straight away
+                        ma.fingerprintModel.updateRegion(location.getLatitude(), location.getLongitude());
                     }
                     // location can occasionally be null on a fresh device
                 }
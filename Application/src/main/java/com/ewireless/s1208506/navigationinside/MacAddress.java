@@ -0,0 +1,68 @@
+package com.ewireless.s1208506.navigationinside;
+
+/**
+ * Author: Gavin Waite
+ * Conversion between the "aa:bb:cc:dd:ee:ff" String form of a WiFi BSSID and a 48-bit long
+ *
+ * The BSSIDs are parsed once as the scan results arrive and are then stored, indexed and compared
+ * as longs, which avoids a character-by-character String comparison for every access point of
+ * every reference point.
+ */
+public final class MacAddress {
+
+    // Used where no access point was found (previously stored as "NA")
+    public static final long NONE = 0L;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private MacAddress(){
+    }
+
+    /**
+     * Parse a BSSID String into its 48-bit value
+     * @param BSSID - colon (or dash) separated hex, e.g. "00:11:22:aa:bb:cc"
+     * @return the 48-bit value, or NONE if the String is missing or not a MAC address
+     */
+    public static long parse(String BSSID){
+        if (BSSID == null || BSSID.length() != 17){
+            return NONE;
+        }
+        long value = 0;
+        for (int i = 0; i < 17; i++){
+            char c = BSSID.charAt(i);
+            if (i % 3 == 2){
+                if (c != ':' && c != '-'){
+                    return NONE;
+                }
+                continue;
+            }
+            int digit = Character.digit(c, 16);
+            if (digit < 0){
+                return NONE;
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    /**
+     * Format a 48-bit BSSID back into the usual lower-case String form for display
+     * @param BSSID - the 48-bit value
+     * @return e.g. "00:11:22:aa:bb:cc", or "NA" for NONE
+     */
+    public static String format(long BSSID){
+        if (BSSID == NONE){
+            return "NA";
+        }
+        char[] out = new char[17];
+        for (int octet = 0; octet < 6; octet++){
+            int b = (int) (BSSID >>> (8 * (5 - octet))) & 0xff;
+            out[octet * 3] = HEX[b >>> 4];
+            out[octet * 3 + 1] = HEX[b & 0xf];
+            if (octet < 5){
+                out[octet * 3 + 2] = ':';
+            }
+        }
+        return new String(out);
+    }
+}
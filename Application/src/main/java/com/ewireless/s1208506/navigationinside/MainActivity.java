@@ -1,9 +1,12 @@
 package com.ewireless.s1208506.navigationinside;
 
 import android.Manifest;
-import android.arch.persistence.room.Room;
+import android.content.Context;
 import android.content.pm.PackageManager;
+import android.net.wifi.WifiManager;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.design.widget.TabLayout;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.Toolbar;
@@ -13,11 +16,17 @@ import android.os.Bundle;
 import android.view.Menu;
 import android.view.MenuItem;
 
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+
 /**
  * Author: Gavin Waite
  * The Main Activity for the app
  * Handles the checking of permissions required for the app
- * Also initialises the Room database using the Room API
+ * Also initialises the Room database using the Room API, and the WiFi scanning shared by the tabs
  * Sets up the Tabbed interface design
  */
 public class MainActivity extends AppCompatActivity {
@@ -31,6 +40,13 @@ public class MainActivity extends AppCompatActivity {
     // Local copy of the database
     public LocationDatabase db;
 
+    // The in-memory reference points, shared by all of the tabs
+    public FingerprintModel fingerprintModel;
+
+    // The WiFi scans, shared by all of the tabs, and an Executor for the tabs to receive them on
+    public ScanDispatcher scanDispatcher;
+    public Executor mainThread;
+
     /**
      * Called on initial launch of the app - performs initial setup
      */
@@ -42,8 +58,9 @@ public class MainActivity extends AppCompatActivity {
         Toolbar toolbar = (Toolbar) findViewById(R.id.toolbar);
         setSupportActionBar(toolbar);
 
-        setupTabs();
         setupDatabase();
+        setupScanning();
+        setupTabs();
 
     }
 
@@ -63,12 +80,50 @@ public class MainActivity extends AppCompatActivity {
 
     /**
      * Initialise the database for indoor positioning Reference points using the Room API
+     * The database belongs to the process-wide FingerprintModel, which is loaded into memory here
+     * so that the reference points are ready by the time the first WiFi scan arrives
      */
     private void setupDatabase(){
-        // .allowMainThreadQueries() allows for small tasks such as counting the entries in the
-        // database to be performed on the main thread rather than a dedicated Asynchronous Task
-        // Although normally discouraged, this will be used sparingly.
-        db = Room.databaseBuilder(getApplicationContext(), LocationDatabase.class, "locations").allowMainThreadQueries().build();
+        fingerprintModel = FingerprintModel.getInstance(this);
+        db = fingerprintModel.getDatabase();
+        fingerprintModel.load();
+    }
+
+    /**
+     * Connect the process-wide ScanDispatcher to the device's WiFi on first launch
+     * The tabs subscribe to it for scans rather than each running their own WifiScanner
+     */
+    private void setupScanning(){
+        final Handler handler = new Handler(Looper.getMainLooper());
+        mainThread = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                handler.post(command);
+            }
+        };
+        scanDispatcher = ScanDispatcher.getInstance();
+        if (scanDispatcher.getSource() == null){
+            WifiManager wifiManager = (WifiManager) getApplicationContext().getSystemService(Context.WIFI_SERVICE);
+            scanDispatcher.setSource(new WifiScanner(this, wifiManager));
+        }
+    }
+
+    /**
+     * A new file to record the sensors or scans of a walk to, for replaying through the positioning
+     * in the unit tests once copied off the device, e.g. with adb pull
+     * The files are kept in the app's own external storage, so no permission is needed
+     * @param prefix - what is being recorded, e.g. "sensors"
+     * @param suffix - the file extension
+     * @return the file, named for the time it was started
+     */
+    public File newRecording(String prefix, String suffix){
+        File directory = getExternalFilesDir(null);
+        if (directory == null){
+            // The external storage is not mounted, so keep it with the app's private files
+            directory = getFilesDir();
+        }
+        String started = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
+        return new File(directory, prefix + "-" + started + "." + suffix);
     }
 
     /**
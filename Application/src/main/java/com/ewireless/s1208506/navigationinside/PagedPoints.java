@@ -0,0 +1,146 @@
+package com.ewireless.s1208506.navigationinside;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * Author: Gavin Waite
+ * A window onto the reference point table for the Database tab, read a page at a time as the list
+ * is scrolled rather than all at once
+ *
+ * A page is normally read by keyset, the page after the last uid of the page before (see
+ * LocDao.getPageAfter()), which reads only its own rows through the primary key. A page whose
+ * previous page is not held, e.g. after a fast scroll, is read by its offset instead. Only the
+ * most recently used MAX_PAGES pages are kept.
+ *
+ * The pages are read with the background Executor and handed back with the main one, and the
+ * class must only be used from the main one.
+ */
+public class PagedPoints {
+
+    /**
+     * Reads the reference points, with their fingerprints, ordered by uid
+     */
+    public interface Source {
+        int count();
+        List<LocData> loadAfter(int afterUid, int limit);
+        List<LocData> loadAt(int offset, int limit);
+    }
+
+    /**
+     * Told on the main thread when the count or a page has been read, so the list can redraw
+     */
+    public interface Listener {
+        void onPagesChanged();
+    }
+
+    public static final int PAGE_SIZE = 50;
+    public static final int MAX_PAGES = 8;
+
+    private final Source source;
+    private final Executor background;
+    private final Executor main;
+    private final Listener listener;
+
+    private int count = 0;
+    // Most recently used last
+    private final Map<Integer, List<LocData>> pages = new LinkedHashMap<>(16, 0.75f, true);
+    private final Set<Integer> loading = new HashSet<>();
+    // Pages read before the last refresh() are dropped when they arrive
+    private int generation = 0;
+
+    public PagedPoints(Source source, Executor background, Executor main, Listener listener){
+        this.source = source;
+        this.background = background;
+        this.main = main;
+        this.listener = listener;
+    }
+
+    /**
+     * Forget every page and count the table again, e.g. after it has changed
+     */
+    public void refresh(){
+        final int expected = ++generation;
+        pages.clear();
+        loading.clear();
+        background.execute(new Runnable() {
+            @Override
+            public void run() {
+                final int total = source.count();
+                main.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (expected == generation){
+                            count = total;
+                            listener.onPagesChanged();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @return the number of reference points in the table, as of the last refresh()
+     */
+    public int getCount(){
+        return count;
+    }
+
+    /**
+     * @return the reference point at a position in uid order, or null if its page is still being
+     * read, in which case the Listener is told once it has been
+     */
+    public LocData get(int position){
+        int page = position / PAGE_SIZE;
+        List<LocData> points = pages.get(page);
+        if (points == null){
+            load(page);
+            return null;
+        }
+        int row = position % PAGE_SIZE;
+        // The table may have shrunk since it was counted
+        return row < points.size() ? points.get(row) : null;
+    }
+
+    public int getPagesHeld(){
+        return pages.size();
+    }
+
+    private void load(final int page){
+        if (!loading.add(page)){
+            return;
+        }
+        final int expected = generation;
+        // Where the previous page is held, start from its last uid rather than counting rows
+        List<LocData> previous = page > 0 ? pages.get(page - 1) : null;
+        final int afterUid = previous != null && previous.size() == PAGE_SIZE
+                ? previous.get(PAGE_SIZE - 1).uid : -1;
+        background.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<LocData> points = afterUid >= 0
+                        ? source.loadAfter(afterUid, PAGE_SIZE)
+                        : source.loadAt(page * PAGE_SIZE, PAGE_SIZE);
+                main.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (expected != generation){
+                            return;
+                        }
+                        loading.remove(page);
+                        pages.put(page, points);
+                        while (pages.size() > MAX_PAGES){
+                            pages.remove(pages.keySet().iterator().next());
+                        }
+                        listener.onPagesChanged();
+                    }
+                });
+            }
+        });
+    }
+}
@@ -0,0 +1,203 @@
+package com.ewireless.s1208506.navigationinside;
+
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Author: Gavin Waite
+ * Scores the rows of a FingerprintMatrix across several cores, for campus sized surveys
+ *
+ * The rows are split into a fixed number of contiguous chunks, each scored on a ForkJoinPool by
+ * its own Scorer (kept and reused between scans). The best row and the k best rows of each chunk
+ * are then merged, in chunk order, so the result is exactly that of a single Scorer walking the
+ * rows in order - the first best row wins.
+ *
+ * Splitting the work has a fixed cost of a few tens of microseconds, so when fewer rows than the
+ * threshold are to be scored - counting only the candidate rows, if given - they are simply
+ * scored on the calling thread.
+ *
+ * As with a Scorer, one ParallelMatcher is to be used by a single thread at a time, and the
+ * matrix must not be changed while a match is running.
+ */
+public class ParallelMatcher {
+
+    // Number of rows to score below which the sequential path is used. This is a guess, not a
+    // measurement on a phone: ParallelMatcherBenchmark put the cost of splitting at 15-20 us a scan
+    // on one core, which would put the crossover at a few thousand rows with 2 or more cores, and
+    // it is set well above that to be safe
+    public static final int DEFAULT_THRESHOLD = 20000;
+
+    // Chunks per thread, so that a slow thread holds up the result less
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    private static ForkJoinPool sharedPool;
+
+    private static synchronized ForkJoinPool getSharedPool(){
+        if (sharedPool == null){
+            sharedPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        }
+        return sharedPool;
+    }
+
+    private final FingerprintMatrix matrix;
+    private final ForkJoinPool pool;
+    private final int threshold;
+
+    private final FingerprintMatrix.Scorer[] scorers;
+    private TopKHeap topK;
+
+    // Scratch space for the candidate rows of FingerprintMatcher.matchIndexed()
+    final BitSet candidates = new BitSet();
+
+    // The best match of the last call to match(), bestRow is -1 if no rows were scored
+    public int bestRow;
+    public int bestScore;
+    public int bestError;
+
+    /**
+     * A matcher on a pool shared by the whole app, with one thread per core
+     */
+    public ParallelMatcher(FingerprintMatrix matrix){
+        this(matrix, getSharedPool(), DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * @param matrix    - the reference points to score
+     * @param pool      - the pool to score the chunks on
+     * @param threshold - the number of rows to score below which to score on the calling thread
+     */
+    public ParallelMatcher(FingerprintMatrix matrix, ForkJoinPool pool, int threshold){
+        this.matrix = matrix;
+        this.pool = pool;
+        this.threshold = threshold;
+        scorers = new FingerprintMatrix.Scorer[pool.getParallelism() * CHUNKS_PER_THREAD];
+        for (int i = 0; i < scorers.length; i++){
+            scorers[i] = matrix.newScorer();
+        }
+    }
+
+    public FingerprintMatrix getMatrix(){
+        return matrix;
+    }
+
+    /**
+     * Also keep the k best rows rather than only the best, as Scorer.setK()
+     * @param k - the number of rows to keep, 0 to only keep the best
+     */
+    public void setK(int k){
+        for (FingerprintMatrix.Scorer scorer : scorers){
+            scorer.setK(k);
+        }
+        if (k <= 0){
+            topK = null;
+        }
+        else if (topK == null || topK.capacity() != k){
+            topK = new TopKHeap(k);
+        }
+    }
+
+    /**
+     * @return the k best rows of the last match(), or null if setK() has not been used
+     */
+    public TopKHeap getTopK(){
+        return topK;
+    }
+
+    /**
+     * Score the rows of the matrix against the live scan
+     * @param BSSIDs     - the live BSSIDs, strongest first
+     * @param levels     - the live signal levels
+     * @param candidates - only score the rows set in here, or null to score every row
+     * @return the best row, or -1 if no rows were scored
+     */
+    public int match(long[] BSSIDs, int[] levels, BitSet candidates){
+        int rows = matrix.size();
+        // The candidates of a fix are usually a few hundred rows however large the survey
+        int scoring = candidates == null ? rows : candidates.cardinality();
+        if (scoring < threshold){
+            FingerprintMatrix.Scorer scorer = scorers[0];
+            scorer.setScan(BSSIDs, levels);
+            scoreChunk(scorer, candidates, 0, rows);
+            bestRow = scorer.bestRow;
+            bestScore = scorer.bestScore;
+            bestError = scorer.bestError;
+            if (topK != null){
+                topK.clear();
+                merge(scorer.getTopK());
+            }
+            return bestRow;
+        }
+
+        for (FingerprintMatrix.Scorer scorer : scorers){
+            scorer.setScan(BSSIDs, levels);
+        }
+        pool.invoke(new ChunkTask(candidates, rows, 0, scorers.length));
+
+        // Merge in chunk order, only a strictly better score replaces an earlier chunk's best
+        bestRow = -1;
+        bestScore = Integer.MIN_VALUE;
+        bestError = 0;
+        if (topK != null){
+            topK.clear();
+        }
+        for (FingerprintMatrix.Scorer scorer : scorers){
+            if (scorer.bestRow >= 0 && scorer.bestScore > bestScore){
+                bestRow = scorer.bestRow;
+                bestScore = scorer.bestScore;
+                bestError = scorer.bestError;
+            }
+            if (topK != null){
+                merge(scorer.getTopK());
+            }
+        }
+        return bestRow;
+    }
+
+    private void merge(TopKHeap chunk){
+        for (int i = 0; i < chunk.size(); i++){
+            topK.offer(chunk.row(i), chunk.score(i));
+        }
+    }
+
+    private static void scoreChunk(FingerprintMatrix.Scorer scorer, BitSet candidates, int from, int to){
+        if (candidates == null){
+            scorer.scoreRange(from, to);
+        }
+        else {
+            scorer.scoreCandidates(candidates, from, to);
+        }
+    }
+
+    /**
+     * Scores chunks first to last of the rows, splitting in half until a single chunk is left
+     */
+    private class ChunkTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final BitSet candidates;
+        private final int rows;
+        private final int first;
+        private final int last;
+
+        ChunkTask(BitSet candidates, int rows, int first, int last){
+            this.candidates = candidates;
+            this.rows = rows;
+            this.first = first;
+            this.last = last;
+        }
+
+        @Override
+        protected void compute() {
+            if (last - first == 1){
+                int from = (int) ((long) rows * first / scorers.length);
+                int to = (int) ((long) rows * last / scorers.length);
+                scoreChunk(scorers[first], candidates, from, to);
+                return;
+            }
+            int middle = (first + last) >>> 1;
+            invokeAll(new ChunkTask(candidates, rows, first, middle),
+                    new ChunkTask(candidates, rows, middle, last));
+        }
+    }
+}
@@ -0,0 +1,558 @@
+package com.ewireless.s1208506.navigationinside;
+
+import java.util.Arrays;
+
+/**
+ * Author: Gavin Waite
+ * Tracks the user from scan to scan, rather than working out each fix from scratch, so that the
+ * position moves as far as the user could have walked and no further
+ *
+ * The possible positions of the user are held as a cloud of particles. On each scan every particle
+ * is moved by a random walk, spread by how far the user could have walked since the last scan, and
+ * weighted by the likelihood of the scan in the GaussianModel cell it has landed in. The estimate is
+ * the weighted centre of the cloud, and the cloud is then resampled in proportion to the weights
+ * with a low-variance systematic resampler. Only the cells holding a particle are scored, each
+ * once however many particles it holds, so once the cloud has settled the cost of a fix depends on
+ * the number of particles rather than the size of the survey.
+ *
+ * The particles are held in primitive arrays in metres east and north of the first cell. A
+ * particle is put in a cell by working out the row and column of the GaussianModel's own grid it
+ * lies on, and looking those up in a primitive hash of the cells, so every cell can be reached
+ * and the memory used grows with the number of cells rather than the area they cover. Squares
+ * next to a cell count as that cell, so the cloud can cross the small gaps between training walks.
+ * A particle further from the survey has no weight, and if every particle is off the survey the
+ * cloud is spread over it again. The tracker works in two dimensions, where cells on several
+ * floors overlap the first added is used.
+ *
+ * Between scans the steps from a DeadReckoning may be given to step(), which moves each particle
+ * along the step. The dead reckoning heading is not from north, so each particle also carries its
+ * own guess of how it lines up with the survey; the guesses that walk the particles along the
+ * scans survive resampling, and the cloud learns the user's direction as well as their position.
+ * With steps coming in, the random walk between scans only needs to cover the error of the steps.
+ * The steps of a batched sensor arrive late and in bursts, often after the scan they came before,
+ * so they are held in time order and each scan first makes the steps taken before it. A step
+ * which only arrives once a later scan has been weighed is made straight away, see getLateSteps().
+ *
+ * More particles follow the user more reliably but cost more CPU per scan, see setParticles().
+ * Not thread safe, use it on one thread only.
+ */
+public class ParticleFilter {
+
+    public static final int DEFAULT_PARTICLES = 2000;
+
+    // The fastest the user is expected to walk, in metres per second
+    static final double WALK_SPEED = 1.5;
+    // The least the particles are spread between scans in metres, so the cloud never stops looking
+    static final double MIN_STEP = 0.5;
+    // Gaps between scans longer than this (in ms) are treated as this long
+    static final long MAX_GAP = 10000;
+    // The access points of a scan are not independent, so the log-likelihoods are scaled down to
+    // stop a single scan from deciding where the user is
+    static final double LIKELIHOOD_SCALE = 0.3;
+    // The spread of each dead reckoning step's length, as a fraction of it, and of its heading in
+    // radians, so the particles cover the error of the steps and the drift of the gyroscope. The
+    // Weinberg constant is not fitted to each user, so their step lengths can be well out
+    static final double LENGTH_NOISE = 0.25;
+    static final double HEADING_NOISE = 0.05;
+
+    private static final double CELL_SIZE = GaussianModel.CELL_SIZE;
+    private static final double PER_CELL = 1 / CELL_SIZE;
+    // Set in every square key, so that no key is 0, which the dictionary takes as no key
+    private static final long KEY_FLAG = 1L << 62;
+    private static final double SQRT_3 = Math.sqrt(3);
+
+    private final GaussianModel model;
+    // The state of the xorshift random number generator, never 0
+    private long seed;
+
+    private int particles;
+    // Metres east and north of the origin
+    private double[] x;
+    private double[] y;
+    private double[] nextX;
+    private double[] nextY;
+    // The angle in radians from the dead reckoning heading to the heading on the survey
+    private double[] headings;
+    private double[] nextHeadings;
+    private double[] weights;
+    private int[] particleCells;
+    private int[] chosen;
+    private boolean spread = false;
+    private boolean deadReckoning = false;
+    private long lastTime;
+
+    // The steps given to step() but not made yet, oldest first
+    private long[] stepTimes = new long[16];
+    private double[] stepLengths = new double[16];
+    private double[] stepHeadings = new double[16];
+    private int pendingSteps = 0;
+    private int lateSteps = 0;
+
+    // The squares of the model's grid covered by its cells as it was last packed, with the cell
+    // each counts as: squares[squareIds.get(key)]
+    private int generation = -1;
+    private boolean hasOrigin = false;
+    private double originLatitude;
+    private double originLongitude;
+    private double lonScale;
+    private final BssidDictionary squareIds = new BssidDictionary();
+    private int[] squares = new int[0];
+    // The grid row the origin is on, fractional, and the scale of each row from minRow, one below
+    // the lowest cell, to one above the highest
+    private double originRow;
+    private long minRow;
+    private double[] rowScales = new double[0];
+
+    // The log-likelihood and weight of each cell scored for the current scan
+    private float[] cellScores = new float[0];
+    private double[] cellWeights = new double[0];
+    private int[] cellStamps = new int[0];
+    private int stamp = 0;
+    private int[] scored = new int[0];
+    private int cellsScored;
+
+    /**
+     * @param model     - the cells to track the user over
+     * @param particles - the number of particles, see setParticles()
+     * @param seed      - the seed of the random numbers, the same seed gives the same track
+     */
+    public ParticleFilter(GaussianModel model, int particles, long seed){
+        this.model = model;
+        // Scrambled so that small seeds give unrelated sequences
+        this.seed = (seed ^ 0x5DEECE66DL) * 0x9E3779B97F4A7C15L | 1;
+        setParticles(particles);
+    }
+
+    /**
+     * Change the number of particles, which starts tracking again from the next scan
+     * A few hundred follow a user down a corridor, a few thousand cope better with open spaces
+     * and with losing track
+     */
+    public void setParticles(int particles){
+        this.particles = Math.max(particles, 1);
+        x = new double[this.particles];
+        y = new double[this.particles];
+        nextX = new double[this.particles];
+        nextY = new double[this.particles];
+        headings = new double[this.particles];
+        nextHeadings = new double[this.particles];
+        weights = new double[this.particles];
+        particleCells = new int[this.particles];
+        chosen = new int[this.particles];
+        reset();
+    }
+
+    public int getParticles(){
+        return particles;
+    }
+
+    /**
+     * Forget where the user is, the next scan spreads the particles over the whole survey
+     */
+    public void reset(){
+        spread = false;
+        pendingSteps = 0;
+    }
+
+    /**
+     * Whether the steps of a DeadReckoning are being given to step(). If so, not stepping between
+     * scans means the user is standing still, and the particles are barely spread.
+     */
+    public void setDeadReckoning(boolean deadReckoning){
+        this.deadReckoning = deadReckoning;
+    }
+
+    /**
+     * Give a step of the user, to be made before the first scan after it or by locate()
+     * Steps before the first scan are ignored, as the particles are only placed on it
+     * @param time    - when the step was made, in milliseconds on the same clock as the scans
+     * @param length  - the length of the step in metres
+     * @param heading - its heading in radians clockwise, from any fixed direction
+     */
+    public void step(long time, double length, double heading){
+        if (spread && time <= lastTime){
+            // The scan after it has already been weighed, so it can only be made now
+            lateSteps++;
+            makeStep(length, heading);
+            return;
+        }
+        if (pendingSteps == stepTimes.length){
+            int capacity = pendingSteps * 2;
+            stepTimes = Arrays.copyOf(stepTimes, capacity);
+            stepLengths = Arrays.copyOf(stepLengths, capacity);
+            stepHeadings = Arrays.copyOf(stepHeadings, capacity);
+        }
+        // The steps come in time order, but keep them so should they not
+        int slot = pendingSteps;
+        while (slot > 0 && stepTimes[slot - 1] > time){
+            stepTimes[slot] = stepTimes[slot - 1];
+            stepLengths[slot] = stepLengths[slot - 1];
+            stepHeadings[slot] = stepHeadings[slot - 1];
+            slot--;
+        }
+        stepTimes[slot] = time;
+        stepLengths[slot] = length;
+        stepHeadings[slot] = heading;
+        pendingSteps++;
+    }
+
+    /**
+     * @return the number of steps which arrived after the scan following them had been weighed
+     */
+    public int getLateSteps(){
+        return lateSteps;
+    }
+
+    // Make the held steps taken up to the time (inclusive), or drop them if not, and keep the rest
+    private void makeSteps(long time, boolean make){
+        int made = 0;
+        while (made < pendingSteps && stepTimes[made] <= time){
+            if (make){
+                makeStep(stepLengths[made], stepHeadings[made]);
+            }
+            made++;
+        }
+        if (made > 0){
+            pendingSteps -= made;
+            System.arraycopy(stepTimes, made, stepTimes, 0, pendingSteps);
+            System.arraycopy(stepLengths, made, stepLengths, 0, pendingSteps);
+            System.arraycopy(stepHeadings, made, stepHeadings, 0, pendingSteps);
+        }
+    }
+
+    // Move every particle along a step of the user, by its own guess at the step's heading
+    private void makeStep(double length, double heading){
+        for (int i = 0; i < particles; i++){
+            headings[i] += nextNoise() * HEADING_NOISE;
+            double walked = length * (1 + nextNoise() * LENGTH_NOISE);
+            double direction = heading + headings[i];
+            x[i] += walked * Math.sin(direction);
+            y[i] += walked * Math.cos(direction);
+        }
+    }
+
+    /**
+     * Estimate the user's position without a scan, e.g. after a step, once the steps up to the
+     * time have been made
+     * Only the latitude, longitude and spread of the estimate are filled in
+     * @param time - in milliseconds, no scan before it may still be to come
+     * @return false if there has been no scan to place the particles on yet
+     */
+    public boolean locate(long time, PositionEstimate estimate){
+        if (!spread){
+            return false;
+        }
+        makeSteps(time, true);
+        // The cloud has been resampled, so every particle counts the same
+        double sumX = 0;
+        double sumY = 0;
+        for (int i = 0; i < particles; i++){
+            sumX += x[i];
+            sumY += y[i];
+        }
+        double meanX = sumX / particles;
+        double meanY = sumY / particles;
+        double sumSquares = 0;
+        for (int i = 0; i < particles; i++){
+            double dx = x[i] - meanX;
+            double dy = y[i] - meanY;
+            sumSquares += dx * dx + dy * dy;
+        }
+        estimate.latitude = originLatitude + meanY / PositionEstimate.METRES_PER_DEGREE;
+        estimate.longitude = originLongitude + meanX / (PositionEstimate.METRES_PER_DEGREE * lonScale);
+        estimate.spread = Math.sqrt(sumSquares / particles);
+        return true;
+    }
+
+    /**
+     * @return the number of cells scored for the last scan
+     */
+    public int getCellsScored(){
+        return cellsScored;
+    }
+
+    /**
+     * Move the particles on to a new scan and estimate the user's position
+     * The estimate's spread is how far the particles lie from it in metres, its count the number of
+     * cells scored and its uid and score those of the most likely of them
+     * @param scan     - the live scan, with every access point heard
+     * @param time     - when it was taken, in milliseconds, and no earlier than the last scan
+     * @param estimate - receives the estimated position
+     * @return false if there are no reference points
+     */
+    public boolean update(ScanFrame scan, long time, PositionEstimate estimate){
+        if (!refreshGrid()){
+            return false;
+        }
+        if (!spread){
+            spreadOverSurvey();
+            makeSteps(time, false);
+        }
+        else {
+            makeSteps(time, true);
+            move(time);
+        }
+        lastTime = time;
+
+        model.setScan(scan);
+        int best = weigh();
+        if (best < 0){
+            // Every particle has left the survey, so start again from anywhere on it
+            spreadOverSurvey();
+            best = weigh();
+        }
+
+        double totalWeight = 0;
+        double sumX = 0;
+        double sumY = 0;
+        for (int i = 0; i < particles; i++){
+            totalWeight += weights[i];
+            sumX += weights[i] * x[i];
+            sumY += weights[i] * y[i];
+        }
+        double meanX = sumX / totalWeight;
+        double meanY = sumY / totalWeight;
+        double sumSquares = 0;
+        for (int i = 0; i < particles; i++){
+            double dx = x[i] - meanX;
+            double dy = y[i] - meanY;
+            sumSquares += weights[i] * (dx * dx + dy * dy);
+        }
+        estimate.latitude = originLatitude + meanY / PositionEstimate.METRES_PER_DEGREE;
+        estimate.longitude = originLongitude + meanX / (PositionEstimate.METRES_PER_DEGREE * lonScale);
+        estimate.spread = Math.sqrt(sumSquares / totalWeight);
+        estimate.uid = model.cellUid(best);
+        estimate.score = Math.round(cellScores[best]);
+        estimate.error = 0;
+        estimate.count = cellsScored;
+
+        resample(totalWeight);
+        return true;
+    }
+
+    // A random walk as far as the user could have gone since the last scan, or just to cover the
+    // error of the steps if they have been moved by dead reckoning
+    private void move(long time){
+        long gap = Math.max(0, Math.min(MAX_GAP, time - lastTime));
+        double step = deadReckoning ? MIN_STEP : Math.max(MIN_STEP, WALK_SPEED * gap / 1000.0);
+        for (int i = 0; i < particles; i++){
+            x[i] += nextNoise() * step;
+            y[i] += nextNoise() * step;
+        }
+    }
+
+    /**
+     * @return a random number with a mean of 0 and a standard deviation of 1, close to Gaussian
+     * The sum of four uniform numbers is used, as Random.nextGaussian() would cost more than the
+     * rest of the update put together
+     */
+    private double nextNoise(){
+        return (nextUniform() + nextUniform() + nextUniform() + nextUniform() - 2) * SQRT_3;
+    }
+
+    // A random number in [0, 1) from the xorshift64* generator
+    private double nextUniform(){
+        seed ^= seed >>> 12;
+        seed ^= seed << 25;
+        seed ^= seed >>> 27;
+        return ((seed * 0x2545F4914F6CDD1DL) >>> 11) * 0x1.0p-53;
+    }
+
+    /**
+     * Weight each particle by the likelihood of the scan in its cell, scoring each cell once
+     * @return the most likely cell holding a particle, or -1 if no particle is on the survey
+     */
+    private int weigh(){
+        stamp++;
+        cellsScored = 0;
+        int best = -1;
+        for (int i = 0; i < particles; i++){
+            int cell = cellAt(x[i], y[i]);
+            particleCells[i] = cell;
+            if (cell < 0 || cellStamps[cell] == stamp){
+                continue;
+            }
+            cellStamps[cell] = stamp;
+            cellScores[cell] = model.logLikelihood(cell);
+            scored[cellsScored++] = cell;
+            if (best < 0 || cellScores[cell] > cellScores[best]){
+                best = cell;
+            }
+        }
+        if (best < 0){
+            return -1;
+        }
+        // Relative to the best cell, so the weights cannot all underflow to 0
+        for (int i = 0; i < cellsScored; i++){
+            int cell = scored[i];
+            cellWeights[cell] = Math.exp(LIKELIHOOD_SCALE * (cellScores[cell] - cellScores[best]));
+        }
+        for (int i = 0; i < particles; i++){
+            weights[i] = particleCells[i] < 0 ? 0 : cellWeights[particleCells[i]];
+        }
+        return best;
+    }
+
+    // Draw the next cloud in proportion to the weights
+    private void resample(double totalWeight){
+        systematic(weights, particles, totalWeight, nextUniform(), chosen);
+        for (int i = 0; i < particles; i++){
+            nextX[i] = x[chosen[i]];
+            nextY[i] = y[chosen[i]];
+            nextHeadings[i] = headings[chosen[i]];
+        }
+        double[] swap = x;
+        x = nextX;
+        nextX = swap;
+        swap = y;
+        y = nextY;
+        nextY = swap;
+        swap = headings;
+        headings = nextHeadings;
+        nextHeadings = swap;
+    }
+
+    /**
+     * Low-variance systematic resampling: n evenly spaced pointers, with a single random offset,
+     * are walked once along the cumulative weights, so a particle with weight w is drawn within
+     * one of n * w / total times
+     * @param weights - the weights of the particles, not all 0
+     * @param n       - the number of particles
+     * @param total   - the sum of the weights
+     * @param offset  - a random number in [0, 1)
+     * @param chosen  - receives the particle drawn for each of the n new particles
+     */
+    static void systematic(double[] weights, int n, double total, double offset, int[] chosen){
+        double spacing = total / n;
+        double pointer = offset * spacing;
+        double cumulative = weights[0];
+        int j = 0;
+        for (int i = 0; i < n; i++){
+            while (pointer >= cumulative && j < n - 1){
+                j++;
+                cumulative += weights[j];
+            }
+            chosen[i] = j;
+            pointer += spacing;
+        }
+    }
+
+    // Place the particles at random over the cells
+    private void spreadOverSurvey(){
+        int cells = model.size();
+        for (int i = 0; i < particles; i++){
+            int cell = (int) (nextUniform() * cells);
+            x[i] = east(model.cellLongitude(cell)) + (nextUniform() - 0.5) * CELL_SIZE;
+            y[i] = north(model.cellLatitude(cell)) + (nextUniform() - 0.5) * CELL_SIZE;
+            headings[i] = nextUniform() * 2 * Math.PI;
+        }
+        spread = true;
+    }
+
+    /**
+     * Bring the squares up to date with the model, if it has been packed again
+     * @return false if there are no cells
+     */
+    private boolean refreshGrid(){
+        int current = model.pack();
+        if (model.size() == 0){
+            return false;
+        }
+        if (current != generation){
+            buildGrid();
+            generation = current;
+        }
+        return true;
+    }
+
+    // Find the squares of the grid covered by the cells, as the model has been packed again
+    private void buildGrid(){
+        int cells = model.size();
+        if (!hasOrigin){
+            originLatitude = model.cellLatitude(0);
+            originLongitude = model.cellLongitude(0);
+            lonScale = Math.cos(Math.toRadians(originLatitude));
+            hasOrigin = true;
+        }
+        originRow = originLatitude * PositionEstimate.METRES_PER_DEGREE * PER_CELL;
+
+        long maxRow = Long.MIN_VALUE;
+        minRow = Long.MAX_VALUE;
+        for (int c = 0; c < cells; c++){
+            minRow = Math.min(minRow, model.cellRow(c));
+            maxRow = Math.max(maxRow, model.cellRow(c));
+        }
+        // A row of margin either side for the squares next to the cells
+        minRow--;
+        rowScales = new double[(int) (maxRow + 2 - minRow)];
+        for (int r = 0; r < rowScales.length; r++){
+            rowScales[r] = GaussianModel.rowScale(minRow + r);
+        }
+
+        squareIds.clear();
+        if (squares.length < cells * 9){
+            squares = new int[cells * 9];
+        }
+        // Each cell's own square first, where cells on several floors overlap the first added
+        for (int c = 0; c < cells; c++){
+            long key = squareKey(model.cellRow(c), model.cellColumn(c));
+            if (squareIds.get(key) == BssidDictionary.MISSING){
+                squares[squareIds.add(key)] = c;
+            }
+        }
+        // Then the empty squares next to a cell count as that cell
+        for (int c = 0; c < cells; c++){
+            for (int d = 0; d < 9; d++){
+                long key = squareKey(model.cellRow(c) + d / 3 - 1, model.cellColumn(c) + d % 3 - 1);
+                if (squareIds.get(key) == BssidDictionary.MISSING){
+                    squares[squareIds.add(key)] = c;
+                }
+            }
+        }
+
+        if (cellScores.length < cells){
+            cellScores = new float[cells];
+            cellWeights = new double[cells];
+            scored = new int[cells];
+        }
+        // Cell numbers may have changed, so no stamp can be trusted
+        cellStamps = new int[cellScores.length];
+        stamp = 0;
+    }
+
+    private double east(double longitude){
+        return (longitude - originLongitude) * PositionEstimate.METRES_PER_DEGREE * lonScale;
+    }
+
+    private double north(double latitude){
+        return (latitude - originLatitude) * PositionEstimate.METRES_PER_DEGREE;
+    }
+
+    // The square key of a row and column, never 0 and unique for any row within 2^29 of the
+    // equator (far more than there are) and any 32 bit column
+    private static long squareKey(long row, long column){
+        return (row << 32) | (column & 0xFFFFFFFFL) | KEY_FLAG;
+    }
+
+    // The cell a position is in, or -1 if it is off the survey
+    private int cellAt(double x, double y){
+        long row = (long) Math.floor(originRow + y * PER_CELL);
+        if (row < minRow || row >= minRow + rowScales.length){
+            return -1;
+        }
+        double longitude = originLongitude + x / (PositionEstimate.METRES_PER_DEGREE * lonScale);
+        long column = GaussianModel.column(longitude, rowScales[(int) (row - minRow)]);
+        int id = squareIds.get(squareKey(row, column));
+        return id == BssidDictionary.MISSING ? -1 : squares[id];
+    }
+
+    /**
+     * @return the cell a position is tracked in, or -1 if it is off the survey
+     */
+    int cellOf(double latitude, double longitude){
+        if (!refreshGrid()){
+            return -1;
+        }
+        return cellAt(east(longitude), north(latitude));
+    }
+}
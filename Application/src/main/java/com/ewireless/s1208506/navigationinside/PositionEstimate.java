@@ -0,0 +1,83 @@
+package com.ewireless.s1208506.navigationinside;
+
+/**
+ * Author: Gavin Waite
+ * A position produced by the positioning algorithm from one or more reference points
+ *
+ * In the nearest point mode this is simply the location of the best reference point. In the
+ * k-nearest-neighbour mode it is the score weighted centroid of the k best reference points, and
+ * the spread is how far (in metres) those points lie from it, as a measure of confidence.
+ */
+public class PositionEstimate {
+
+    // Approximate length of a degree of latitude in metres
+    static final double METRES_PER_DEGREE = 111320.0;
+
+    public double latitude;
+    public double longitude;
+
+    // Weighted RMS distance of the contributing points from the estimate, 0 for a single point
+    // (for a GaussianModel match, of the likely cells, see GaussianModel.match())
+    public double spread;
+
+    // The best reference point used, its score and its error in dB
+    public int uid;
+    public int score;
+    public int error;
+
+    // The number of reference points the estimate was made from
+    public int count;
+
+    /**
+     * Fill in the estimate as the score weighted centroid of the rows kept in the heap
+     * Scores below 0 are given no weight, and if no row scored above 0 they are weighted equally
+     * @param heap   - the k best rows
+     * @param matrix - the matrix the rows belong to
+     * @return false if the heap was empty
+     */
+    public boolean setWeightedCentroid(TopKHeap heap, FingerprintMatrix matrix){
+        count = heap.size();
+        if (count == 0){
+            return false;
+        }
+
+        double totalWeight = 0;
+        for (int i = 0; i < count; i++){
+            totalWeight += Math.max(heap.score(i), 0);
+        }
+        boolean equalWeights = totalWeight == 0;
+        if (equalWeights){
+            totalWeight = count;
+        }
+
+        double lat = 0;
+        double lon = 0;
+        int best = 0;
+        for (int i = 0; i < count; i++){
+            double weight = equalWeights ? 1 : Math.max(heap.score(i), 0);
+            lat += weight * matrix.latitude(heap.row(i));
+            lon += weight * matrix.longitude(heap.row(i));
+            if (heap.score(i) > heap.score(best)
+                    || (heap.score(i) == heap.score(best) && heap.row(i) < heap.row(best))){
+                best = i;
+            }
+        }
+        latitude = lat / totalWeight;
+        longitude = lon / totalWeight;
+
+        // Spread in metres, using a flat approximation which is fine at the scale of a building
+        double lonScale = Math.cos(Math.toRadians(latitude));
+        double sumSquares = 0;
+        for (int i = 0; i < count; i++){
+            double weight = equalWeights ? 1 : Math.max(heap.score(i), 0);
+            double dy = (matrix.latitude(heap.row(i)) - latitude) * METRES_PER_DEGREE;
+            double dx = (matrix.longitude(heap.row(i)) - longitude) * METRES_PER_DEGREE * lonScale;
+            sumSquares += weight * (dx * dx + dy * dy);
+        }
+        spread = Math.sqrt(sumSquares / totalWeight);
+
+        uid = matrix.uid(heap.row(best));
+        score = heap.score(best);
+        return true;
+    }
+}
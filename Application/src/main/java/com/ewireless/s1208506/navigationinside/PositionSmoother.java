@@ -0,0 +1,154 @@
+package com.ewireless.s1208506.navigationinside;
+
+/**
+ * Author: Gavin Waite
+ * Smooths the fixes shown on the map, whether they come from the FusedLocationProvider outdoors
+ * or from the WiFi positioning indoors, and fills in the user's position between them
+ *
+ * A constant velocity Kalman filter, run separately for the east-west and north-south axes in
+ * metres from the first fix. Each fix is weighed by its accuracy - Location.getAccuracy()
+ * outdoors, the spread of the PositionEstimate indoors - so a rough fix only nudges the track
+ * while a precise one pulls it close. Between fixes the position is carried on at the estimated
+ * velocity, for at most MAX_PREDICTION, so the marker keeps moving smoothly even when fixes only
+ * arrive every 10 s or so from the low-power location requests.
+ *
+ * All times are in milliseconds from the same clock (e.g. SystemClock.elapsedRealtime()).
+ * Not thread safe, the PositioningFragment only uses it on the main thread.
+ */
+public class PositionSmoother {
+
+    // How quickly a walking user's velocity can change, in m/s^2. Kept low so that a few rough
+    // fixes are smoothed into a steady walk, at the cost of lagging a little round corners
+    static final double ACCELERATION = 0.1;
+    // How unsure the first velocity is, in m/s
+    static final double INITIAL_SPEED = 1.5;
+    // The best accuracy a fix is taken to have, in metres
+    static final double MIN_ACCURACY = 1.0;
+    // Fixes are not carried on further than this (in ms) past the last one
+    static final long MAX_PREDICTION = 5000;
+    // After this long (in ms) without a fix the track is started again from the next one
+    static final long MAX_GAP = 60000;
+
+    private boolean hasFix = false;
+    private long lastTime;
+    private double originLatitude;
+    private double originLongitude;
+    private double lonScale;
+
+    // For each axis (0 east, 1 north) the position in metres and velocity in m/s, and the
+    // covariance of the two
+    private final double[] position = new double[2];
+    private final double[] velocity = new double[2];
+    private final double[] positionVariance = new double[2];
+    private final double[] covariance = new double[2];
+    private final double[] velocityVariance = new double[2];
+
+    /**
+     * Forget the track, e.g. on switching between indoor and outdoor positioning
+     */
+    public void reset(){
+        hasFix = false;
+    }
+
+    public boolean hasFix(){
+        return hasFix;
+    }
+
+    /**
+     * Add a new fix to the track
+     * @param latitude  - the fix
+     * @param longitude - the fix
+     * @param accuracy  - the standard deviation of the fix in metres
+     * @param time      - when it was made
+     */
+    public void update(double latitude, double longitude, double accuracy, long time){
+        double variance = Math.max(accuracy, MIN_ACCURACY);
+        variance *= variance;
+        if (!hasFix || time - lastTime > MAX_GAP){
+            start(latitude, longitude, variance, time);
+            return;
+        }
+        double seconds = Math.max(0, time - lastTime) / 1000.0;
+        lastTime = Math.max(lastTime, time);
+        double[] measured = {east(longitude), north(latitude)};
+        for (int axis = 0; axis < 2; axis++){
+            predictAxis(axis, seconds);
+
+            double innovation = measured[axis] - position[axis];
+            double total = positionVariance[axis] + variance;
+            double positionGain = positionVariance[axis] / total;
+            double velocityGain = covariance[axis] / total;
+            position[axis] += positionGain * innovation;
+            velocity[axis] += velocityGain * innovation;
+            velocityVariance[axis] -= velocityGain * covariance[axis];
+            positionVariance[axis] *= 1 - positionGain;
+            covariance[axis] *= 1 - positionGain;
+        }
+    }
+
+    /**
+     * Fill in where the user is expected to be at a time since the last fix, without changing
+     * the track. The spread of the estimate is its standard deviation in metres.
+     * @return false if there has been no fix yet
+     */
+    public boolean predict(long time, PositionEstimate estimate){
+        if (!hasFix){
+            return false;
+        }
+        double seconds = Math.max(0, Math.min(MAX_PREDICTION, time - lastTime)) / 1000.0;
+        double sq = seconds * seconds;
+        double variance = 0;
+        for (int axis = 0; axis < 2; axis++){
+            variance += positionVariance[axis] + 2 * seconds * covariance[axis]
+                    + sq * velocityVariance[axis] + ACCELERATION * ACCELERATION * sq * sq / 4;
+        }
+        double east = position[0] + velocity[0] * seconds;
+        double north = position[1] + velocity[1] * seconds;
+        estimate.latitude = originLatitude + north / PositionEstimate.METRES_PER_DEGREE;
+        estimate.longitude = originLongitude + east / (PositionEstimate.METRES_PER_DEGREE * lonScale);
+        estimate.spread = Math.sqrt(variance);
+        return true;
+    }
+
+    /**
+     * @return the estimated speed of the user in m/s
+     */
+    public double getSpeed(){
+        return hasFix ? Math.hypot(velocity[0], velocity[1]) : 0;
+    }
+
+    // Start a new track at the fix, standing still but unsure of that
+    private void start(double latitude, double longitude, double variance, long time){
+        originLatitude = latitude;
+        originLongitude = longitude;
+        lonScale = Math.cos(Math.toRadians(latitude));
+        for (int axis = 0; axis < 2; axis++){
+            position[axis] = 0;
+            velocity[axis] = 0;
+            positionVariance[axis] = variance;
+            covariance[axis] = 0;
+            velocityVariance[axis] = INITIAL_SPEED * INITIAL_SPEED;
+        }
+        lastTime = time;
+        hasFix = true;
+    }
+
+    // Carry an axis on by a number of seconds, growing its uncertainty by a random acceleration
+    private void predictAxis(int axis, double seconds){
+        double sq = seconds * seconds;
+        double noise = ACCELERATION * ACCELERATION;
+        position[axis] += velocity[axis] * seconds;
+        positionVariance[axis] += 2 * seconds * covariance[axis] + sq * velocityVariance[axis]
+                + noise * sq * sq / 4;
+        covariance[axis] += seconds * velocityVariance[axis] + noise * sq * seconds / 2;
+        velocityVariance[axis] += noise * sq;
+    }
+
+    private double east(double longitude){
+        return (longitude - originLongitude) * PositionEstimate.METRES_PER_DEGREE * lonScale;
+    }
+
+    private double north(double latitude){
+        return (latitude - originLatitude) * PositionEstimate.METRES_PER_DEGREE;
+    }
+}
@@ -1,15 +1,15 @@
 package com.ewireless.s1208506.navigationinside;
 
-import android.content.Context;
-import android.content.IntentFilter;
 import android.location.Location;
-import android.net.wifi.ScanResult;
-import android.net.wifi.WifiManager;
-import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.support.v4.app.Fragment;
 import android.util.Log;
 import android.view.LayoutInflater;
+import android.view.Menu;
+import android.view.MenuInflater;
+import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.AdapterView;
@@ -33,6 +33,9 @@ import com.google.android.gms.maps.model.LatLng;
 import com.google.android.gms.maps.model.Marker;
 import com.google.android.gms.maps.model.MarkerOptions;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -42,11 +45,13 @@ import java.util.List;
  *
  * This Fragment controls the updating of a GoogleMap (via API) and the determination of the user's
  * current location. Outdoor positioning is done by an instantiated LocationModel which uses
- * the FusedLocationProvider API. The indoor positioning algorithm is custom and uses the Room
- * database API to access the training reference points and the WiFi Manager API to get the current
- * WiFi data.
+ * the FusedLocationProvider API. The indoor positioning algorithm is custom and uses the shared
+ * FingerprintModel to access the training reference points and the WiFi Manager API to get the
+ * current WiFi data. When tracking, the user's steps from the InertialSensors carry the position on
+ * between scans. An IndoorDetector switches between the two as the user goes in and out.
  */
-public class PositioningFragment extends Fragment implements View.OnClickListener, AdapterView.OnItemSelectedListener{
+public class PositioningFragment extends Fragment implements View.OnClickListener, AdapterView.OnItemSelectedListener,
+        ScanSource.Listener, DeadReckoning.Listener {
 
     // Constant hard-coded LatLng for the engineering department in KB
     private LatLng KB = new LatLng(55.922547, -3.172174);
@@ -62,9 +67,7 @@ public class PositioningFragment extends Fragment implements View.OnClickListene
     private Button inoutButton;
 
     private Spinner powerSpin;
-
-    // Local copy of the database
-    private List<LocData> dataB;
+    private Spinner matchSpin;
 
     // Link back to the MainActivity - for use in setting up the FusedLocationProvider
     private MainActivity ma;
@@ -86,7 +89,9 @@ public class PositioningFragment extends Fragment implements View.OnClickListene
         linkInterface(rootView);
         setupLocationServices();
         setupWifi();
+        setupSensors();
         setupMap(rootView, savedInstanceState);
+        setHasOptionsMenu(true);
 
         return rootView;
     }
@@ -141,10 +146,15 @@ public class PositioningFragment extends Fragment implements View.OnClickListene
      * @param location - the latest Location information
      */
     public void updateLocation(Location location){
+        // Large databases load the reference points around the user as they move
+        ma.fingerprintModel.updateRegion(location.getLatitude(), location.getLongitude());
+        if (automatic && location.hasAccuracy() && detector.onLocation(location.getAccuracy())){
+            setInside(detector.isInside());
+        }
         if (!inside) {
             Log.d("Fragment", "Got new location");
-            LatLng new_pos = new LatLng(location.getLatitude(), location.getLongitude());
-            displayPosition(new_pos); // Physically
+            showFix(location.getLatitude(), location.getLongitude(),
+                    location.hasAccuracy() ? location.getAccuracy() : UNKNOWN_ACCURACY);
             infoText.setText("Acquired location with precision ±"+Float.toString(location.getAccuracy()) + " m" );
         }
     }
@@ -163,6 +173,17 @@ public class PositioningFragment extends Fragment implements View.OnClickListene
         inoutButton = (Button) rootView.findViewById(R.id.inoutBut);
         inoutButton.setOnClickListener(this);
         inoutButton.setText("Switch to Inside");
+        // A long press hands the choice back to the IndoorDetector after switching by hand
+        inoutButton.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View view) {
+                automatic = true;
+                detector.setInside(inside);
+                startScans();
+                infoText.setText("Switching inside and outside automatically");
+                return true;
+            }
+        });
 
         // The title text - signifies which mode is actice
         titleText = (TextView) rootView.findViewById(R.id.titleText);
@@ -182,6 +203,19 @@ public class PositioningFragment extends Fragment implements View.OnClickListene
         spinAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
         powerSpin.setAdapter(spinAdapter);
         powerSpin.setOnItemSelectedListener(this);
+
+        // Nearest point vs. k-nearest-neighbour vs. likelihood vs. tracking dropdown - used in
+        // indoor positioning
+        matchSpin = (Spinner) rootView.findViewById(R.id.matchSpinner);
+        List<String> match_opts = new ArrayList<String>();
+        match_opts.add("Nearest point");
+        match_opts.add("Weighted k-NN");
+        match_opts.add("Gaussian likelihood");
+        match_opts.add("Particle filter");
+        ArrayAdapter<String> matchAdapter = new ArrayAdapter<String>(getActivity(), android.R.layout.simple_spinner_item, match_opts);
+        matchAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        matchSpin.setAdapter(matchAdapter);
+        matchSpin.setOnItemSelectedListener(this);
     }
 
     /**
@@ -197,6 +231,18 @@ public class PositioningFragment extends Fragment implements View.OnClickListene
         String selection = (String) parent.getItemAtPosition(position);
         infoText.setText(selection);
 
+        // The indoor matching mode does not affect the LocationModel
+        if (parent.getId() == R.id.matchSpinner){
+            knnMode = selection.equals("Weighted k-NN");
+            gaussianMode = selection.equals("Gaussian likelihood");
+            trackingMode = selection.equals("Particle filter");
+            if (tracker != null){
+                tracker.reset();
+            }
+            updateSensors();
+            return;
+        }
+
         switch (selection){
             case "Low-power":
                 accuracy = LocationRequest.PRIORITY_LOW_POWER;
@@ -225,17 +271,72 @@ public class PositioningFragment extends Fragment implements View.OnClickListene
 
     /**
      * Method to update the UI location marker given a LatLng
-     * The camera also adjusts to focus on this point
+     * The camera also adjusts to focus on this point for a new fix, or if the marker has moved off
+     * the map, but otherwise is left where the user has panned it
+     * @param pos      - the position to show
+     * @param recentre - true for a new fix, false when moving on between fixes
      */
     private Marker locationMarker;
-    private void displayPosition(LatLng pos){
-        if (locationMarker != null){
-            locationMarker.remove();
+    private void displayPosition(LatLng pos, boolean recentre){
+        if (googleMap == null){
+            return;
+        }
+        // Moved rather than replaced, as it is moved every DISPLAY_INTERVAL
+        if (locationMarker == null){
+            locationMarker = googleMap.addMarker(new MarkerOptions().position(pos).title("Current Location"));
+        }
+        else {
+            locationMarker.setPosition(pos);
+        }
+        if (recentre || !googleMap.getProjection().getVisibleRegion().latLngBounds.contains(pos)){
+            googleMap.moveCamera(CameraUpdateFactory.newLatLng(pos));
         }
-        locationMarker = googleMap.addMarker(new MarkerOptions().position(pos).title("Current Location"));
-        googleMap.moveCamera(CameraUpdateFactory.newLatLng(pos));
     }
 
+    /**
+     * Every fix, indoors or out, goes through a PositionSmoother rather than straight to the map,
+     * and between fixes the marker is moved on to where the smoother expects the user to be. So the
+     * track stays smooth even with the low-power location requests. The marker is only moved on
+     * for PositionSmoother.MAX_PREDICTION after a fix, as the smoother holds it still after that,
+     * so the display does not wake the CPU while there are no fixes.
+     */
+    private static final long DISPLAY_INTERVAL = 500;
+    // The accuracy in metres of a fix which gives none, and of an indoor fix with no spread
+    private static final double UNKNOWN_ACCURACY = 50;
+    private static final double INDOOR_ACCURACY = GaussianModel.CELL_SIZE;
+    private final PositionSmoother smoother = new PositionSmoother();
+    private final PositionEstimate smoothed = new PositionEstimate();
+    private final Handler displayHandler = new Handler();
+    private long lastFix;
+    private void showFix(double latitude, double longitude, double accuracy){
+        long now = SystemClock.elapsedRealtime();
+        smoother.update(latitude, longitude, accuracy, now);
+        lastFix = now;
+        if (smoother.predict(now, smoothed)){
+            displayPosition(new LatLng(smoothed.latitude, smoothed.longitude), true);
+        }
+        scheduleDisplay();
+    }
+
+    // Move the marker on again in DISPLAY_INTERVAL, if the last fix is recent enough to need it
+    private void scheduleDisplay(){
+        displayHandler.removeCallbacks(displayRun);
+        if (resumed && smoother.hasFix()
+                && SystemClock.elapsedRealtime() - lastFix < PositionSmoother.MAX_PREDICTION){
+            displayHandler.postDelayed(displayRun, DISPLAY_INTERVAL);
+        }
+    }
+
+    private final Runnable displayRun = new Runnable() {
+        @Override
+        public void run() {
+            if (smoother.predict(SystemClock.elapsedRealtime(), smoothed)){
+                displayPosition(new LatLng(smoothed.latitude, smoothed.longitude), false);
+            }
+            scheduleDisplay();
+        }
+    };
+
 
     /**
      * Ground overlay with the KB map provided
@@ -264,26 +365,56 @@ public class PositioningFragment extends Fragment implements View.OnClickListene
     }
 
     /**
-     * The user can press a button to switch between the inside (wifi) positioning system and the
-     * FusedLocationProvider outdoor positioning. When in Inside mode, the power spinner is hidden
-     * as it only applies to the frequency and accuracy of the outdoor results
+     * The app switches between the inside (wifi) positioning system and the FusedLocationProvider
+     * outdoor positioning as the IndoorDetector decides the user has gone in or out. Only one of
+     * them runs at a time to save battery, though the scans carry on outside for the detector,
+     * just without matching. The user can also press a button to switch by hand, which turns the
+     * automatic switching off until the button is long pressed.
+     * When in Inside mode, the power spinner is hidden as it only applies to the frequency and
+     * accuracy of the outdoor results, and is replaced by the choice of indoor matching mode
      */
     private boolean inside = false;
+    private boolean automatic = true;
+    private final IndoorDetector detector = new IndoorDetector();
     private void toggleInoutMode(){
-        if (inside){
+        automatic = false;
+        detector.setInside(!inside);
+        setInside(!inside);
+        infoText.setText("Automatic switching off, long press to turn back on");
+    }
+
+    private void setInside(boolean goInside){
+        if (goInside == inside){
+            return;
+        }
+        if (!goInside){
             inside = false;
+            // Indoor and outdoor fixes do not agree closely enough to share a track
+            smoother.reset();
             inoutButton.setText("Switch to Inside");
             titleText.setText("Outdoor Positioning");
             locationModel.startLocationUpdates();
+            if (!automatic){
+                stopScans();
+            }
+            updateSensors();
             powerSpin.setVisibility(View.VISIBLE);
+            matchSpin.setVisibility(View.GONE);
         }
         else {
             inside = true;
+            smoother.reset();
             inoutButton.setText("Switch to Outside");
             titleText.setText("Inside Positioning");
             locationModel.stopLocationUpdates();
-            wifiScanner.scanForWifi();
+            // The user may be anywhere by the time they come back inside
+            if (tracker != null){
+                tracker.reset();
+            }
+            startScans();
+            updateSensors();
             powerSpin.setVisibility(View.GONE);
+            matchSpin.setVisibility(View.VISIBLE);
         }
     }
 
@@ -305,70 +436,168 @@ public class PositioningFragment extends Fragment implements View.OnClickListene
     }
 
     /**
-     * The implementation of the Room database task: load
-     * Executes an asynchronous task as required by the Room API
-     *
-     * Queries the database for all LocData entries and then stores them in a local List<>
-     * For a final real-world use-case then only a sub-set of the full database could be loaded
-     * based upon matching any WiFi BSSIDs
+     * Initialisation code to link the Fragment to the app's shared WiFi scans, which will
+     * periodically report back with the nearby WiFi access points and signal strengths
      */
-    private void loadDatabase(){
-        new LoadDatabaseTask().execute();
+    private ScanDispatcher scans;
+    private void setupWifi(){
+        scans = ((MainActivity)getActivity()).scanDispatcher;
     }
-    private class LoadDatabaseTask extends AsyncTask<Void, Void, List<LocData>> {
-        @Override
-        protected List<LocData> doInBackground(Void... params){
-            Log.d("DB","Starting background task");
-            return ((MainActivity)getActivity()).db.locDao().getAll();
+
+    // Scans are handed to the Fragment on the main thread, as it updates the UI with them
+    private void startScans(){
+        if (!resumed){
+            return;
         }
+        scans.subscribe(this, ((MainActivity)getActivity()).mainThread);
+    }
 
-        @Override
-        protected void onPostExecute(List<LocData> locations){
-            Log.d("DB","In post execute");
+    private void stopScans(){
+        scans.unsubscribe(this);
+    }
+
+    /**
+     * The steps of the user, from the accelerometer and gyroscope, are only needed while tracking
+     * the user indoors. They are detected on the InertialSensors' own thread and handed to the
+     * Fragment on the main thread, as the tracker is used there.
+     */
+    private InertialSensors sensors;
+    private boolean resumed = false;
+    private boolean deadReckoning = false;
+    private void setupSensors(){
+        sensors = new InertialSensors(ma, this, ma.mainThread);
+        sensorLog = null;
+    }
+
+    /**
+     * The sensors can be recorded to a SensorLog while tracking, from the options menu, to replay a
+     * real walk through the DeadReckoning in the unit tests
+     */
+    private SensorLog.Writer sensorLog;
+    @Override
+    public void onCreateOptionsMenu(Menu menu, MenuInflater inflater){
+        inflater.inflate(R.menu.positioning_menu, menu);
+        menu.findItem(R.id.action_record_sensors).setChecked(sensorLog != null);
+    }
 
-            if (dataB != null) {
-                dataB.clear();
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item){
+        if (item.getItemId() != R.id.action_record_sensors){
+            return super.onOptionsItemSelected(item);
+        }
+        if (sensorLog == null){
+            File file = ma.newRecording("sensors", "log");
+            try {
+                sensorLog = new SensorLog.Writer(new FileOutputStream(file));
+                sensors.setRecorder(sensorLog);
+                infoText.setText("Recording the sensors to " + file.getName() + " while tracking");
+            } catch (IOException e){
+                Log.e("PDR", "Could not start the sensor log", e);
+                infoText.setText("Could not record the sensors");
             }
-            dataB = locations;
-            String msg = "Found " + dataB.size() + " locations";
-            Log.d("DB_Load",msg);
+        }
+        else {
+            // The InertialSensors close the log
+            sensors.setRecorder(null);
+            sensorLog = null;
+            infoText.setText("Sensor recording stopped");
+        }
+        item.setChecked(sensorLog != null);
+        return true;
+    }
+
+    // Start or stop the step detection to suit the positioning mode
+    private void updateSensors(){
+        deadReckoning = resumed && inside && trackingMode && sensors.start();
+        if (!deadReckoning){
+            sensors.stop();
+        }
+        if (tracker != null){
+            tracker.setDeadReckoning(deadReckoning);
         }
     }
 
     /**
-     * Initialisation code to setup a WiFi Scanner which will periodically report back with the
-     * nearby WiFi network names and signal strengths
+     * The callback method from the InertialSensors for each step of the user
+     * The tracked position is moved on along the step rather than waiting for the next scan, unless
+     * a scan is waiting for the steps before it, which the tracker must make first
      */
-    private WifiManager wifiManager;
-    public WifiScanner wifiScanner;
-    private void setupWifi(){
-        wifiManager = (WifiManager)getActivity().getApplicationContext().getSystemService(Context.WIFI_SERVICE);
-        wifiScanner = new WifiScanner(this, wifiManager);
-        wifiScanner.scanForWifi();
+    @Override
+    public void onStep(long time, double length, double heading){
+        if (!deadReckoning || tracker == null){
+            return;
+        }
+        tracker.step(time, length, heading);
+        if (!scanHeld && tracker.locate(time, estimate)){
+            showFix(estimate.latitude, estimate.longitude, Math.max(estimate.spread, INDOOR_ACCURACY));
+        }
     }
 
     /**
-     * Register the listener for WiFi Scanner results on app resume and unregister on app pause
+     * The steps of a scan's batch are mostly still in the sensors' FIFOs when the scan arrives, so
+     * while stepping the scan is held until they have been flushed through to onStep(). A newer
+     * scan arriving meanwhile takes the held one's place.
+     */
+    private final ScanFrame heldScan = new ScanFrame(ScanFrame.DEFAULT_CAPACITY);
+    private boolean scanHeld = false;
+    private final Runnable flushedRun = new Runnable() {
+        @Override
+        public void run() {
+            if (scanHeld && isAdded() && inside && trackingMode && tracker != null){
+                track(heldScan);
+            }
+            scanHeld = false;
+        }
+    };
+
+    // The time of a scan in milliseconds since boot, the clock the sensor timestamps are on
+    private static long scanTime(ScanFrame scan){
+        return scan.timestamp > 0 ? scan.timestamp / 1000 : SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Restart the scans on app resume if they are needed and stop them on app pause
      */
     @Override
     public void onResume() {
         super.onResume();
-        getActivity().registerReceiver(wifiScanner.getReceiver(), new IntentFilter(wifiManager.SCAN_RESULTS_AVAILABLE_ACTION));
+        resumed = true;
+        scheduleDisplay();
+        if (inside || automatic){
+            startScans();
+        }
+        updateSensors();
     }
     @Override
     public void onPause() {
         super.onPause();
-        getActivity().unregisterReceiver(wifiScanner.getReceiver());
+        resumed = false;
+        displayHandler.removeCallbacks(displayRun);
+        stopScans();
+        updateSensors();
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (sensors != null){
+            sensors.quit();
+        }
     }
 
     /**
-     * The callback method from the WifiScanner. Provides the Fragment with a List<> of the latest
-     * ScanResult objects. These contain the SSID, BSSID and signal level information for all nearby
-     * access points.
+     * The callback method from the ScanSource. Provides the Fragment with a ScanFrame of the latest
+     * results. This contains the BSSID (as a long) and signal level information for all nearby
+     * access points. Every scan is weighed by the IndoorDetector, but only matched inside.
      * @param wifiScanList
      */
-    public void wifiScanReturn(List<ScanResult> wifiScanList){
+    @Override
+    public void onScan(ScanFrame wifiScanList){
         Log.d("WIFI2", "Received returned data");
+        if (automatic && detector.onScan(wifiScanList.size,
+                ma.fingerprintModel.getGaussianModel().countKnown(wifiScanList))){
+            setInside(detector.isInside());
+        }
         if (inside){
             getInsideLocation(wifiScanList);
         }
@@ -378,157 +607,174 @@ public class PositioningFragment extends Fragment implements View.OnClickListene
      * Core method of the indoor positioning algorithm. Takes the current WiFi Scanner data and
      * compares this to the reference points in the loaded database. It then determines which point
      * is most similar and sets the current location to that point. The point i.d. and the 'accuracy'
-     * are output in the info bar.
+     * are output in the info bar. In k-NN mode the location is instead the weighted centroid of
+     * the most similar few points, and in Gaussian mode the location where the whole scan was
+     * most likely to be heard. In particle filter mode the user is instead tracked from scan to
+     * scan, so the location only moves as far as they could have walked.
      * @param wifiScanList
      */
-    private void getInsideLocation(List<ScanResult> wifiScanList){
-        databaseCount();
-        loadDatabase();
-        if (numEntries == 0){
-            infoText.setText("Database is empty or still loading");
-            return;
-        }
-        else {
-            String BSSID_1 = null;
-            String BSSID_2 = null;
-            String BSSID_3 = null;
-            int dB_1 = 0;
-            int dB_2 = 0;
-            int dB_3 = 0;
-
-            // Get the latest information
-            if (wifiScanList.size()>0) {
-                BSSID_1 = wifiScanList.get(0).BSSID;
-                dB_1 = wifiScanList.get(0).level;
-            }
-            if (wifiScanList.size()>1) {
-                BSSID_2 = wifiScanList.get(1).BSSID;
-                dB_2 = wifiScanList.get(1).level;
+    private ParallelMatcher matcher;
+    private boolean knnMode = false;
+    private boolean gaussianMode = false;
+    private boolean trackingMode = false;
+    private ParticleFilter tracker;
+    private static final int KNN_K = 4;
+    private PositionEstimate estimate = new PositionEstimate();
+    // Whether a match read from the database is still to come back, only one is queued at a time
+    private boolean databaseMatchPending = false;
+    private void getInsideLocation(ScanFrame wifiScanList){
+        // The reference points are held in memory by the shared FingerprintModel, so once it has
+        // loaded no database access is needed to produce a fix
+        FingerprintModel model = ma.fingerprintModel;
+        long[] BSSIDs = new long[FingerprintMatcher.WEIGHTS.length];
+        int[] dBs = new int[FingerprintMatcher.WEIGHTS.length];
+
+        // Get the latest information for the strongest access points
+        wifiScanList.top(BSSIDs, dBs);
+
+        if (model.size() == 0){
+            if (model.isLoaded() && !model.isRegional()){
+                infoText.setText("Database is empty");
+                return;
             }
-            if (wifiScanList.size()>2){
-                BSSID_3 = wifiScanList.get(2).BSSID;
-                dB_3 = wifiScanList.get(2).level;
+            // Until the in-memory copy is ready, match against the snapshot from the last run,
+            // which is scored in place from the mapped file
+            FingerprintSnapshot snapshot = model.getSnapshot();
+            if (snapshot != null && snapshot.size() > 0){
+                showMatch(snapshot.match(BSSIDs, dBs));
+                return;
             }
-
-            // The relative importance of the three strongest WiFi networks in the decision algorithm
-            float WIFI_1_WEIGHT = 1.0f;
-            float WIFI_2_WEIGHT = 0.6f;
-            float WIFI_3_WEIGHT = 0.3f;
-
-            // Initial values of the closest point
-            int bestScore = -1000;
-            LocData closestPoint = null;
-            int primaryError = 0;
-
-            // If the database is still loading
-            if (dataB == null){
+            // Without one, match against the reference points sharing an access point with the
+            // scan, read straight from the database. Scans arriving while a match is being read
+            // are skipped rather than queued behind it
+            if (databaseMatchPending){
                 return;
             }
-
-            int i = 0;
-            // Walk through all reference points and look for the closest match
-            for (LocData refPoint : dataB){
-                Log.d("TestNo", Integer.toString(i));
-                i++;
-                int refPoint_score = 0;
-                int difference = 0;
-                int refPointError = 0;
-
-                // First check the strongest access point
-                if (BSSID_1 != null && dB_1 != 0){
-                    if (BSSID_1.equals(refPoint.BSSID_1)){
-                        difference = Math.abs(refPoint.dB_1 - dB_1);
-                        refPoint_score += (int) (WIFI_1_WEIGHT*(100 - difference));
+            databaseMatchPending = true;
+            model.matchFromDatabase(BSSIDs, dBs, new FingerprintModel.MatchCallback() {
+                @Override
+                public void onMatch(FingerprintMatcher.Match match) {
+                    databaseMatchPending = false;
+                    // Drop the match if it has been overtaken: the user has gone outside, or the
+                    // in-memory copy has loaded and given a newer fix in the meantime
+                    if (isAdded() && inside && ma.fingerprintModel.size() == 0){
+                        showMatch(match);
                     }
-                    if (BSSID_1.equals(refPoint.BSSID_2)){
-                        difference = Math.abs(refPoint.dB_2 - dB_1);
-                        refPoint_score += (int) (WIFI_1_WEIGHT*(100 - difference));
-                    }
-                    if (BSSID_1.equals(refPoint.BSSID_3)){
-                        difference = Math.abs(refPoint.dB_3 - dB_1);
-                        refPoint_score += (int) (WIFI_1_WEIGHT*(100 - difference));
-                    }
-                    refPointError += difference;
                 }
+            });
+            return;
+        }
+        else {
+            // Only the reference points sharing an access point with the scan need to be scored
+            // and they are scored from the packed matrix without allocating
+            // Large surveys are scored across all cores, small ones on this thread
+            if (matcher == null){
+                matcher = new ParallelMatcher(model.getMatrix());
+            }
 
-                // Next check the second strongest access point
-                if (BSSID_2 != null && dB_2 != 0){
-                    if (BSSID_2.equals(refPoint.BSSID_1)){
-                        difference = Math.abs(refPoint.dB_1 - dB_2);
-                        refPoint_score += (int) (WIFI_2_WEIGHT*(100 - difference));
-                    }
-                    if (BSSID_2.equals(refPoint.BSSID_2)){
-                        difference = Math.abs(refPoint.dB_2 - dB_2);
-                        refPoint_score += (int) (WIFI_2_WEIGHT*(100 - difference));
-                    }
-                    if (BSSID_2.equals(refPoint.BSSID_3)){
-                        difference = Math.abs(refPoint.dB_3 - dB_2);
-                        refPoint_score += (int) (WIFI_2_WEIGHT*(100 - difference));
-                    }
-                    refPointError += difference;
+            if (trackingMode){
+                if (tracker == null){
+                    tracker = new ParticleFilter(model.getGaussianModel(),
+                            ParticleFilter.DEFAULT_PARTICLES, SystemClock.elapsedRealtime());
+                    tracker.setDeadReckoning(deadReckoning);
                 }
-                // Finally check the third strongest access point
-                if (BSSID_3 != null && dB_3 != 0){
-                    if (BSSID_3.equals(refPoint.BSSID_1)){
-                        difference = Math.abs(refPoint.dB_1 - dB_3);
-                        refPoint_score += (int) WIFI_3_WEIGHT*(100 - difference);
-                    }
-                    if (BSSID_3.equals(refPoint.BSSID_2)){
-                        difference = Math.abs(refPoint.dB_2 - dB_3);
-                        refPoint_score += (int) WIFI_3_WEIGHT*(100 - difference);
-                    }
-                    if (BSSID_3.equals(refPoint.BSSID_3)){
-                        difference = Math.abs(refPoint.dB_3 - dB_3);
-                        refPoint_score += (int) WIFI_3_WEIGHT*(100 - difference);
+                if (deadReckoning){
+                    wifiScanList.copyTo(heldScan);
+                    if (scanHeld || sensors.flush(flushedRun)){
+                        scanHeld = true;
+                        return;
                     }
-                    refPointError += difference;
                 }
+                track(wifiScanList);
+                return;
+            }
 
-                Log.d("TestNo", "Score: " + Integer.toString(refPoint_score));
-
-                // If the point is the new best then save it and continue looking
-                if (refPoint_score > bestScore){
-                    bestScore = refPoint_score;
-                    closestPoint = refPoint;
-                    primaryError = refPointError;
+            // In Gaussian mode every access point of the scan is scored against the signal
+            // statistics of each location, rather than the strongest few against single scans
+            if (gaussianMode){
+                if (model.getGaussianModel().match(wifiScanList, estimate)){
+                    showFix(estimate.latitude, estimate.longitude,
+                            Math.max(estimate.spread, INDOOR_ACCURACY));
+                    model.updateRegion(estimate.latitude, estimate.longitude);
+                    infoText.setText("Location of " + estimate.count + " scans, log-likelihood "
+                            + estimate.score);
+                    judgeMatch(true, estimate.spread);
+                }
+                else {
+                    infoText.setText("No matching reference point found");
+                    judgeMatch(false, 0);
                 }
+                return;
             }
 
-            // If no point was found then notify the user
-            if (closestPoint == null){
-                infoText.setText("No matching reference point found");
+            // In k-NN mode the estimate is the weighted centroid of the best few points
+            if (knnMode){
+                if (FingerprintMatcher.matchKnn(model.getIndex(), matcher, BSSIDs, dBs, KNN_K, estimate)){
+                    showFix(estimate.latitude, estimate.longitude,
+                            Math.max(estimate.spread, INDOOR_ACCURACY));
+                    model.updateRegion(estimate.latitude, estimate.longitude);
+                    infoText.setText("Centroid of " + estimate.count + " points, spread ±"
+                            + Math.round(estimate.spread) + " m");
+                    judgeMatch(true, estimate.spread);
+                }
+                else {
+                    infoText.setText("No matching reference point found");
+                    judgeMatch(false, 0);
+                }
                 return;
             }
-            // Otherwise signal the found point and set the location on the Google Map
-            else {
-                LatLng refPos = new LatLng(closestPoint.latitude, closestPoint.longitude);
-                displayPosition(refPos);
-                infoText.setText("Reference point "+ closestPoint.uid+ " found with err ±" +primaryError +"dB" );
-            }
-
+            showMatch(FingerprintMatcher.matchIndexed(model.getIndex(), matcher, BSSIDs, dBs));
         }
     }
 
-
     /**
-     * Asynchronous task to count the number of entries
+     * Track the user on to a scan, once the steps before it have been given to the tracker
      */
-    private void databaseCount(){
-        new CountEntriesTask().execute();
+    private void track(ScanFrame wifiScanList){
+        if (tracker.update(wifiScanList, scanTime(wifiScanList), estimate)){
+            showFix(estimate.latitude, estimate.longitude,
+                    Math.max(estimate.spread, INDOOR_ACCURACY));
+            ma.fingerprintModel.updateRegion(estimate.latitude, estimate.longitude);
+            infoText.setText("Tracked within ±" + Math.round(estimate.spread) + " m, "
+                    + estimate.count + " locations scored");
+            judgeMatch(true, estimate.spread);
+        }
+        else {
+            infoText.setText("No matching reference point found");
+            judgeMatch(false, 0);
+        }
     }
 
-    private int numEntries = 0;
-    private class CountEntriesTask extends AsyncTask<Void, Void, Integer> {
-        @Override
-        protected Integer doInBackground(Void... params){
-            Log.d("DB","Starting background task");
-            return ((MainActivity)getActivity()).db.locDao().countEntries();
+    /**
+     * Show the reference point found by the positioning algorithm on the map and in the info bar
+     * @param closest - the best matching reference point, or null if there was none
+     */
+    private void showMatch(FingerprintMatcher.Match closest){
+        // If no point was found then notify the user
+        if (closest == null){
+            infoText.setText("No matching reference point found");
+            judgeMatch(false, 0);
+        }
+        // Otherwise signal the found point and set the location on the Google Map
+        else {
+            showFix(closest.point.latitude, closest.point.longitude, INDOOR_ACCURACY);
+            ma.fingerprintModel.updateRegion(closest.point.latitude, closest.point.longitude);
+            infoText.setText("Reference point "+ closest.point.uid+ " found with err ±" +closest.error +"dB, "
+                    + String.format("%.1f", scans.getSource().getScanRate()) + " scans/s"
+                    + (scans.getSource().isThrottled() ? " (throttled)" : ""));
+            judgeMatch(true, IndoorDetector.matchSpread(closest.score, closest.error));
         }
+    }
 
-        @Override
-        protected void onPostExecute(Integer entries){
-            Log.d("DB","In post execute");
-            numEntries = entries;
+    /**
+     * Weigh how closely the scan matched the survey, as the IndoorDetector may decide from it that
+     * the user has left the building
+     * @param found    - false if no reference point matched
+     * @param accuracy - the spread of the match in metres
+     */
+    private void judgeMatch(boolean found, double accuracy){
+        if (automatic && detector.onMatch(found, accuracy)){
+            setInside(detector.isInside());
         }
     }
 
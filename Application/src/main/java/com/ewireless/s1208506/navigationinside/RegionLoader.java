@@ -0,0 +1,144 @@
+package com.ewireless.s1208506.navigationinside;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Author: Gavin Waite
+ * Keeps only the reference points around the user in memory, for databases covering many
+ * buildings
+ *
+ * The map is split into tiles of TILE_DEGREES of latitude and longitude (about 110 m by 60 m in
+ * Edinburgh). The tile the user is in and the ring of tiles around it are loaded, so walking into
+ * a neighbouring tile never waits on the database, and when the user moves only the tiles newly
+ * in range are loaded and those out of range are dropped. Each tile is a single bounding box
+ * query on the latitude/longitude index (see LocDao.getInBox()).
+ *
+ * Not thread safe, the FingerprintModel only uses it on its database thread.
+ */
+public class RegionLoader {
+
+    /**
+     * Loads the reference points, with their fingerprints, from a latitude/longitude box
+     */
+    public interface Source {
+        List<LocData> load(double minLatitude, double maxLatitude, double minLongitude, double maxLongitude);
+    }
+
+    public static final double TILE_DEGREES = 0.001;
+    private static final double EDGE = 1e-7;
+
+    // The number of tiles loaded in each direction around the user's tile
+    private final int ring;
+    private final Source source;
+
+    private final Map<Long, List<LocData>> tiles = new HashMap<>();
+    private long centre;
+    private boolean placed = false;
+
+    /**
+     * @param source - where to load the tiles from
+     * @param ring   - the number of tiles to load in each direction around the user's tile, so
+     *                 (2 * ring + 1)^2 tiles are kept
+     */
+    public RegionLoader(Source source, int ring){
+        this.source = source;
+        this.ring = ring;
+    }
+
+    /**
+     * Move the region to be centred on the tile containing the given position
+     * @return true if any tiles were loaded or dropped
+     */
+    public boolean moveTo(double latitude, double longitude){
+        long tile = tileKey(tileOf(latitude), tileOf(longitude));
+        if (placed && tile == centre){
+            return false;
+        }
+        placed = true;
+        centre = tile;
+
+        int centreRow = tileOf(latitude);
+        int centreColumn = tileOf(longitude);
+        Set<Long> wanted = new HashSet<>();
+        boolean changed = false;
+        for (int row = centreRow - ring; row <= centreRow + ring; row++){
+            for (int column = centreColumn - ring; column <= centreColumn + ring; column++){
+                long key = tileKey(row, column);
+                wanted.add(key);
+                if (!tiles.containsKey(key)){
+                    tiles.put(key, loadTile(row, column));
+                    changed = true;
+                }
+            }
+        }
+        changed |= tiles.keySet().retainAll(wanted);
+        return changed;
+    }
+
+    /**
+     * Add a newly recorded reference point, if its tile is loaded
+     * @return true if the point is in the region
+     */
+    public boolean add(LocData point){
+        List<LocData> tile = tiles.get(tileKey(tileOf(point.latitude), tileOf(point.longitude)));
+        if (tile == null){
+            return false;
+        }
+        tile.add(point);
+        return true;
+    }
+
+    /**
+     * Forget every tile, e.g. after the database has been cleared
+     */
+    public void clear(){
+        tiles.clear();
+        placed = false;
+    }
+
+    /**
+     * @return the reference points in the loaded tiles, ordered by uid as in the database
+     */
+    public List<LocData> getPoints(){
+        List<LocData> points = new ArrayList<>();
+        for (List<LocData> tile : tiles.values()){
+            points.addAll(tile);
+        }
+        Collections.sort(points, new Comparator<LocData>() {
+            @Override
+            public int compare(LocData a, LocData b) {
+                return a.uid < b.uid ? -1 : (a.uid == b.uid ? 0 : 1);
+            }
+        });
+        return points;
+    }
+
+    // The box is widened a little and then trimmed with tileOf(), so that rounding at the edges
+    // can never put a point in two tiles or in none
+    private List<LocData> loadTile(int row, int column){
+        List<LocData> loaded = source.load(row * TILE_DEGREES - EDGE, (row + 1) * TILE_DEGREES + EDGE,
+                column * TILE_DEGREES - EDGE, (column + 1) * TILE_DEGREES + EDGE);
+        List<LocData> tile = new ArrayList<>(loaded.size());
+        for (LocData point : loaded){
+            if (tileOf(point.latitude) == row && tileOf(point.longitude) == column){
+                tile.add(point);
+            }
+        }
+        return tile;
+    }
+
+    static int tileOf(double degrees){
+        return (int) Math.floor(degrees / TILE_DEGREES);
+    }
+
+    private static long tileKey(int row, int column){
+        return ((long) row << 32) | (column & 0xffffffffL);
+    }
+}
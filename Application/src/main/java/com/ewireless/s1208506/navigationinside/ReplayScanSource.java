@@ -0,0 +1,160 @@
+package com.ewireless.s1208506.navigationinside;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Author: Gavin Waite
+ * A ScanSource which plays back a recorded ScanTrace, at the speed it was recorded or faster
+ *
+ * The trace is read on its own thread, a scan at a time, so a trace of any length plays back in
+ * constant memory. Each scan is handed to the Listener with the given Executor, e.g. one posting
+ * to the main thread in the app, or one running it straight away when profiling on a desktop.
+ * Playback stops at the end of the trace or at stop(), and a source plays its trace only once.
+ */
+public class ReplayScanSource implements ScanSource {
+
+    private final File trace;
+    private final double speed;
+    private final Executor deliver;
+    private volatile Listener listener;
+
+    private Thread thread;
+    private volatile boolean finished = false;
+    private volatile IOException failure;
+
+    // The first and latest trace times and the scans played, for the scan rate
+    private volatile long firstTime;
+    private volatile long lastTime;
+    private volatile int played = 0;
+
+    /**
+     * @param trace   - the recorded scans
+     * @param speed   - how many times faster than recorded to play it back, 1 for the original
+     *                  speed, or 0 for as fast as possible
+     * @param deliver - runs the Listener calls
+     */
+    public ReplayScanSource(File trace, double speed, Executor deliver){
+        this.trace = trace;
+        this.speed = speed;
+        this.deliver = deliver;
+    }
+
+    @Override
+    public void setListener(Listener listener){
+        this.listener = listener;
+    }
+
+    @Override
+    public synchronized void start(){
+        if (thread != null){
+            return;
+        }
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                play();
+            }
+        }, "ReplayScanSource");
+        thread.start();
+    }
+
+    @Override
+    public synchronized void stop(){
+        if (thread != null){
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Wait for the playback to reach the end of the trace or be stopped
+     * @return true if it finished within the timeout
+     */
+    public boolean awaitFinished(long timeout, TimeUnit unit) throws InterruptedException {
+        Thread playing;
+        synchronized (this){
+            playing = thread;
+        }
+        if (playing != null){
+            playing.join(unit.toMillis(timeout));
+        }
+        return finished;
+    }
+
+    /**
+     * @return the error which stopped the playback early, or null
+     */
+    public IOException getFailure(){
+        return failure;
+    }
+
+    /**
+     * @return the scans per second of the trace's own time, over the scans played so far
+     */
+    @Override
+    public double getScanRate(){
+        int count = played;
+        long span = lastTime - firstTime;
+        return count < 2 || span <= 0 ? 0 : (count - 1) * 1000.0 / span;
+    }
+
+    @Override
+    public boolean isThrottled(){
+        return false;
+    }
+
+    private void play(){
+        ScanTrace.Reader reader = null;
+        try {
+            reader = new ScanTrace.Reader(new FileInputStream(trace));
+            long startNanos = System.nanoTime();
+            boolean first = true;
+            while (reader.next()){
+                long time = reader.getTime();
+                if (first){
+                    firstTime = time;
+                    first = false;
+                }
+                if (speed > 0){
+                    // Wait until the scan is due, measured from the start so errors do not build up
+                    long dueNanos = startNanos + (long) ((time - firstTime) * 1e6 / speed);
+                    long wait = dueNanos - System.nanoTime();
+                    if (wait > 0){
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                }
+                if (Thread.currentThread().isInterrupted()){
+                    break;
+                }
+                lastTime = time;
+                played++;
+                final ScanFrame frame = reader.getFrame();
+                deliver.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        Listener current = listener;
+                        if (current != null){
+                            current.onScan(frame);
+                        }
+                    }
+                });
+            }
+        } catch (IOException e){
+            failure = e;
+        } catch (InterruptedException e){
+            // Stopped
+        } finally {
+            if (reader != null){
+                try {
+                    reader.close();
+                } catch (IOException e){
+                    // Only reading, nothing is lost
+                }
+            }
+            finished = true;
+        }
+    }
+}
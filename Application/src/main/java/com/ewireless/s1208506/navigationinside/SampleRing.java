@@ -0,0 +1,95 @@
+package com.ewireless.s1208506.navigationinside;
+
+/**
+ * Author: Gavin Waite
+ * A fixed size ring of timestamped three axis sensor samples, held in primitive arrays so that
+ * buffering the 50 or more samples a second of each inertial sensor allocates nothing
+ *
+ * Samples are added at the head and taken from the tail in the order they were added. When the
+ * ring is full the oldest sample is overwritten and counted as dropped, as a late sample is of no
+ * use to the dead reckoning.
+ * Not thread safe, the InertialSensors fill and drain it on its own sensor thread.
+ */
+public class SampleRing {
+
+    private final long[] times;
+    private final float[] xs;
+    private final float[] ys;
+    private final float[] zs;
+    private final int mask;
+    // The total number of samples ever added and taken, the difference is the number held
+    private long head = 0;
+    private long tail = 0;
+    private long dropped = 0;
+
+    /**
+     * @param capacity - the least number of samples to hold, rounded up to a power of two
+     */
+    public SampleRing(int capacity){
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        times = new long[size];
+        xs = new float[size];
+        ys = new float[size];
+        zs = new float[size];
+        mask = size - 1;
+    }
+
+    public void add(long time, float x, float y, float z){
+        if (head - tail == times.length){
+            tail++;
+            dropped++;
+        }
+        int i = (int) head & mask;
+        times[i] = time;
+        xs[i] = x;
+        ys[i] = y;
+        zs[i] = z;
+        head++;
+    }
+
+    public int size(){
+        return (int) (head - tail);
+    }
+
+    public int capacity(){
+        return times.length;
+    }
+
+    /**
+     * @return the number of samples overwritten before they were taken
+     */
+    public long getDropped(){
+        return dropped;
+    }
+
+    public void clear(){
+        tail = head;
+    }
+
+    // The oldest sample, call only when size() > 0
+
+    public long time(){
+        return times[(int) tail & mask];
+    }
+
+    public float x(){
+        return xs[(int) tail & mask];
+    }
+
+    public float y(){
+        return ys[(int) tail & mask];
+    }
+
+    public float z(){
+        return zs[(int) tail & mask];
+    }
+
+    /**
+     * Take the oldest sample, once it has been read
+     */
+    public void remove(){
+        if (head > tail){
+            tail++;
+        }
+    }
+}
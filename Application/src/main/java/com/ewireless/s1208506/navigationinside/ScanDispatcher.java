@@ -0,0 +1,237 @@
+package com.ewireless.s1208506.navigationinside;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Author: Gavin Waite
+ * The single, process-wide, receiver of WiFi scans, which hands each scan to every Fragment or
+ * other consumer subscribed to it
+ *
+ * There is one ScanSource for the whole app (the live WifiScanner, or a ReplayScanSource), so each
+ * scan is received and parsed once however many consumers there are. The source is started when
+ * the first consumer subscribes and stopped when the last unsubscribes.
+ *
+ * Each scan is copied once into a pooled ScanFrame shared by all the consumers. Each consumer has
+ * its own queue, drained on its own Executor - the background thread unless it asks for another,
+ * e.g. the main thread for a Fragment. A consumer which falls behind only ever has the newest
+ * QUEUE_CAPACITY scans waiting, the oldest are dropped, so one slow consumer never holds up the
+ * others or builds up a backlog of stale scans.
+ */
+public class ScanDispatcher implements ScanSource.Listener {
+
+    public static final int QUEUE_CAPACITY = 2;
+
+    private static ScanDispatcher instance;
+
+    /**
+     * @return the single shared dispatcher, with no source until one is set
+     */
+    public static synchronized ScanDispatcher getInstance(){
+        if (instance == null){
+            ExecutorService background = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "ScanDispatcher");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            instance = new ScanDispatcher(background);
+        }
+        return instance;
+    }
+
+    /**
+     * A consumer and its queue of scans waiting to be handed to it
+     */
+    private class Subscription implements Runnable {
+        final ScanSource.Listener listener;
+        final Executor executor;
+        final ArrayDeque<ScanFrame> queue = new ArrayDeque<>(QUEUE_CAPACITY);
+        boolean draining = false;
+        volatile boolean active = true;
+        int dropped = 0;
+
+        Subscription(ScanSource.Listener listener, Executor executor){
+            this.listener = listener;
+            this.executor = executor;
+        }
+
+        // Called by onScan(), with the frame already retained for this queue
+        synchronized void offer(ScanFrame frame){
+            if (queue.size() == QUEUE_CAPACITY){
+                pool.release(queue.pollFirst());
+                dropped++;
+            }
+            queue.addLast(frame);
+            if (!draining){
+                draining = true;
+                executor.execute(this);
+            }
+        }
+
+        // Hand over everything queued, on the consumer's Executor
+        @Override
+        public void run() {
+            while (true){
+                ScanFrame frame;
+                synchronized (this){
+                    frame = queue.pollFirst();
+                    if (frame == null){
+                        draining = false;
+                        return;
+                    }
+                }
+                try {
+                    if (active){
+                        listener.onScan(frame);
+                    }
+                } finally {
+                    pool.release(frame);
+                }
+            }
+        }
+
+        synchronized void cancel(){
+            active = false;
+            while (!queue.isEmpty()){
+                pool.release(queue.pollFirst());
+            }
+        }
+    }
+
+    private final Executor background;
+    private final ScanFramePool pool = new ScanFramePool();
+    private ScanSource source;
+    // Replaced rather than changed, so onScan() can read it without a lock
+    private volatile Subscription[] subscriptions = new Subscription[0];
+
+    /**
+     * @param background - where consumers which do not ask for an Executor are handed their scans
+     */
+    public ScanDispatcher(Executor background){
+        this.background = background;
+    }
+
+    /**
+     * Set where the scans come from, replacing any previous source
+     * The new source is started straight away if there are consumers
+     */
+    public synchronized void setSource(ScanSource source){
+        if (this.source != null){
+            this.source.setListener(null);
+            if (subscriptions.length > 0){
+                this.source.stop();
+            }
+        }
+        this.source = source;
+        source.setListener(this);
+        if (subscriptions.length > 0){
+            source.start();
+        }
+    }
+
+    public synchronized ScanSource getSource(){
+        return source;
+    }
+
+    /**
+     * Hand every new scan to the listener on the background thread, until unsubscribe()
+     */
+    public void subscribe(ScanSource.Listener listener){
+        subscribe(listener, background);
+    }
+
+    /**
+     * Hand every new scan to the listener on the given Executor, until unsubscribe()
+     * Subscribing a listener already subscribed does nothing
+     */
+    public synchronized void subscribe(ScanSource.Listener listener, Executor executor){
+        if (find(listener) >= 0){
+            return;
+        }
+        Subscription[] current = subscriptions;
+        Subscription[] added = Arrays.copyOf(current, current.length + 1);
+        added[current.length] = new Subscription(listener, executor);
+        subscriptions = added;
+        if (current.length == 0 && source != null){
+            source.start();
+        }
+    }
+
+    /**
+     * Stop handing scans to the listener, any still queued for it are dropped
+     */
+    public synchronized void unsubscribe(ScanSource.Listener listener){
+        int index = find(listener);
+        if (index < 0){
+            return;
+        }
+        Subscription[] current = subscriptions;
+        current[index].cancel();
+        Subscription[] removed = new Subscription[current.length - 1];
+        System.arraycopy(current, 0, removed, 0, index);
+        System.arraycopy(current, index + 1, removed, index, current.length - index - 1);
+        subscriptions = removed;
+        if (removed.length == 0 && source != null){
+            source.stop();
+        }
+    }
+
+    /**
+     * @return the number of scans dropped because the listener had not kept up, 0 if it is not
+     * subscribed
+     */
+    public synchronized int getDropped(ScanSource.Listener listener){
+        int index = find(listener);
+        if (index < 0){
+            return 0;
+        }
+        Subscription subscription = subscriptions[index];
+        synchronized (subscription){
+            return subscription.dropped;
+        }
+    }
+
+    /**
+     * @return the number of frames the dispatcher has allocated, which stops growing once the
+     * queues are full
+     */
+    public int getFramesAllocated(){
+        return pool.getAllocated();
+    }
+
+    /**
+     * Called by the source with each new scan, which is only valid until this returns
+     */
+    @Override
+    public void onScan(ScanFrame frame){
+        Subscription[] current = subscriptions;
+        if (current.length == 0){
+            return;
+        }
+        ScanFrame shared = pool.acquire();
+        frame.copyTo(shared);
+        for (Subscription subscription : current){
+            pool.retain(shared);
+            subscription.offer(shared);
+        }
+        // Every queue now holds it, so let go of the reference from acquire()
+        pool.release(shared);
+    }
+
+    private int find(ScanSource.Listener listener){
+        Subscription[] current = subscriptions;
+        for (int i = 0; i < current.length; i++){
+            if (current[i].listener == listener){
+                return i;
+            }
+        }
+        return -1;
+    }
+}
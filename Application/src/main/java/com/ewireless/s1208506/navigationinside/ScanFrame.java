@@ -0,0 +1,167 @@
+package com.ewireless.s1208506.navigationinside;
+
+import java.util.Arrays;
+
+/**
+ * Author: Gavin Waite
+ * A single WiFi scan as handed back from the WifiScanner, through the ScanDispatcher, to the
+ * Fragments
+ *
+ * The BSSIDs are parsed into 48-bit longs (see MacAddress) once as the scan arrives, so nothing
+ * further down the pipeline has to handle them as Strings. A frame from the WifiScanner has been
+ * sorted strongest first, otherwise the access points are kept in the order they were given.
+ *
+ * The WifiScanner fills frames taken from a ScanFramePool rather than allocating a new one for
+ * each scan, so a frame it hands over is only valid until the Listener returns. Use copy() to
+ * keep one.
+ */
+public class ScanFrame {
+
+    // Room for the access points of most scans, a frame grows if it needs more
+    public static final int DEFAULT_CAPACITY = 64;
+
+    public long[] BSSIDs;
+    public int[] levels;
+    // The channel of each access point in MHz, 0 if not known
+    public int[] frequencies;
+    public int size;
+    // The newest ScanResult timestamp in the scan, microseconds since boot, 0 if not known
+    public long timestamp;
+    private boolean sorted;
+    // The number of holders of a pooled frame, guarded by its ScanFramePool
+    int references;
+
+    /**
+     * An empty frame to be filled with add()
+     */
+    public ScanFrame(int capacity){
+        BSSIDs = new long[capacity];
+        levels = new int[capacity];
+        frequencies = new int[capacity];
+    }
+
+    /**
+     * A frame of the given access points, in the given order and without frequencies
+     */
+    public ScanFrame(long[] BSSIDs, int[] levels, int size){
+        this.BSSIDs = BSSIDs;
+        this.levels = levels;
+        this.frequencies = new int[BSSIDs.length];
+        this.size = size;
+    }
+
+    /**
+     * Empty the frame to be filled again
+     */
+    public void clear(){
+        size = 0;
+        timestamp = 0;
+        sorted = false;
+    }
+
+    /**
+     * Append an access point, growing the frame if it is full
+     */
+    public void add(long BSSID, int level, int frequency){
+        if (size == BSSIDs.length){
+            int capacity = Math.max(DEFAULT_CAPACITY, size * 2);
+            BSSIDs = Arrays.copyOf(BSSIDs, capacity);
+            levels = Arrays.copyOf(levels, capacity);
+            frequencies = Arrays.copyOf(frequencies, capacity);
+        }
+        BSSIDs[size] = BSSID;
+        levels[size] = level;
+        frequencies[size] = frequency;
+        size++;
+        sorted = false;
+    }
+
+    /**
+     * Sort the access points strongest first, in place. Equal levels keep their order, so top()
+     * gives the same result before and after.
+     * An insertion sort, as scans are short and it needs no extra space
+     */
+    public void sort(){
+        for (int i = 1; i < size; i++){
+            long BSSID = BSSIDs[i];
+            int level = levels[i];
+            int frequency = frequencies[i];
+            int j = i - 1;
+            while (j >= 0 && levels[j] < level){
+                BSSIDs[j + 1] = BSSIDs[j];
+                levels[j + 1] = levels[j];
+                frequencies[j + 1] = frequencies[j];
+                j--;
+            }
+            BSSIDs[j + 1] = BSSID;
+            levels[j + 1] = level;
+            frequencies[j + 1] = frequency;
+        }
+        sorted = true;
+    }
+
+    public boolean isSorted(){
+        return sorted;
+    }
+
+    /**
+     * @return a separate copy of the frame, sized to fit, to be kept after the frame is reused
+     */
+    public ScanFrame copy(){
+        ScanFrame copy = new ScanFrame(size);
+        copyTo(copy);
+        return copy;
+    }
+
+    /**
+     * Copy the frame into another, growing it if needed
+     */
+    public void copyTo(ScanFrame other){
+        other.clear();
+        for (int i = 0; i < size; i++){
+            other.add(BSSIDs[i], levels[i], frequencies[i]);
+        }
+        other.timestamp = timestamp;
+        other.sorted = sorted;
+    }
+
+    /**
+     * Copies the n strongest access points of the scan, strongest first, into the given arrays
+     * leaving any remaining entries as MacAddress.NONE with a level of 0
+     * Equal levels keep the order the WifiManager returned them in
+     * @param BSSIDs - receives the BSSIDs, its length is n
+     * @param levels - receives the signal levels
+     * @return the number of access points copied
+     */
+    public int top(long[] BSSIDs, int[] levels){
+        int count = Math.min(BSSIDs.length, size);
+        if (sorted){
+            System.arraycopy(this.BSSIDs, 0, BSSIDs, 0, count);
+            System.arraycopy(this.levels, 0, levels, 0, count);
+        }
+        else {
+            int previousLevel = Integer.MAX_VALUE;
+            int previousIndex = -1;
+            for (int k = 0; k < count; k++){
+                // Find the strongest access point that comes after the previous one picked
+                int best = -1;
+                for (int j = 0; j < size; j++){
+                    boolean after = this.levels[j] < previousLevel
+                            || (this.levels[j] == previousLevel && j > previousIndex);
+                    if (after && (best < 0 || this.levels[j] > this.levels[best])){
+                        best = j;
+                    }
+                }
+                BSSIDs[k] = this.BSSIDs[best];
+                levels[k] = this.levels[best];
+                previousLevel = this.levels[best];
+                previousIndex = best;
+            }
+        }
+        for (int k = count; k < BSSIDs.length; k++){
+            BSSIDs[k] = MacAddress.NONE;
+            levels[k] = 0;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,59 @@
+package com.ewireless.s1208506.navigationinside;
+
+import java.util.ArrayDeque;
+
+/**
+ * Author: Gavin Waite
+ * A pool of ScanFrames, so that frames are reused from scan to scan rather than a new one being
+ * allocated for every scan and collected afterwards
+ *
+ * A frame is taken with acquire() and given back with release(). A frame shared between several
+ * holders, e.g. the queues of a ScanDispatcher, is retain()ed once for each extra holder and only
+ * goes back to the pool when each has released it. New frames are only allocated when every frame
+ * is in use, and at most MAX_FREE are kept.
+ * Safe to use from any thread.
+ */
+public class ScanFramePool {
+
+    private static final int MAX_FREE = 8;
+
+    private final ArrayDeque<ScanFrame> free = new ArrayDeque<>(MAX_FREE);
+    private int allocated = 0;
+
+    /**
+     * @return an empty frame, reused if one is free
+     */
+    public synchronized ScanFrame acquire(){
+        ScanFrame frame = free.pollFirst();
+        if (frame == null){
+            frame = new ScanFrame(ScanFrame.DEFAULT_CAPACITY);
+            allocated++;
+        }
+        frame.clear();
+        frame.references = 1;
+        return frame;
+    }
+
+    /**
+     * Add a holder to a frame from this pool, which must release() it in turn
+     */
+    public synchronized void retain(ScanFrame frame){
+        frame.references++;
+    }
+
+    /**
+     * Give a frame back to be reused once every holder has, it must not be used again by the caller
+     */
+    public synchronized void release(ScanFrame frame){
+        if (--frame.references == 0 && free.size() < MAX_FREE){
+            free.addFirst(frame);
+        }
+    }
+
+    /**
+     * @return the number of frames the pool has allocated, which stops growing once it has enough
+     */
+    public synchronized int getAllocated(){
+        return allocated;
+    }
+}
@@ -0,0 +1,162 @@
+package com.ewireless.s1208506.navigationinside;
+
+/**
+ * Author: Gavin Waite
+ * Decides when the WifiScanner should next ask for a WiFi scan
+ *
+ * Scans are asked for every MOVING_INTERVAL while the user is walking. When consecutive scans hear
+ * the same access points at nearly the same levels the user is taken to be standing still, and
+ * scans are asked for less often, as they would give the same fix. Android 9 and later allow an
+ * app only 4 scans in 2 minutes, a scan over the limit is refused (startScan() returns false) or
+ * returns the previous results again. Either way the scheduler backs off to THROTTLED_INTERVAL
+ * until a scan is accepted, and the WifiScanner makes do with the cached results, including any
+ * from scans other apps have asked for.
+ *
+ * Results are told apart as fresh or cached by the newest ScanResult timestamp in them. All times
+ * are in milliseconds from the same clock (e.g. SystemClock.elapsedRealtime()).
+ * Not thread safe, the WifiScanner only uses it on the main thread.
+ */
+public class ScanScheduler {
+
+    public static final long MOVING_INTERVAL = 2000;
+    public static final long STATIONARY_INTERVAL = 8000;
+    public static final long THROTTLED_INTERVAL = 30000;
+
+    // Consecutive scans whose common access points differ by at most STILL_DB on average mean the
+    // user is standing still
+    private static final int STILL_SCANS = 3;
+    private static final int STILL_DB = 3;
+    // The strongest access points compared between scans, and how many must be in both
+    private static final int STILL_ACCESS_POINTS = 8;
+    private static final int STILL_COMMON = 3;
+
+    // The number of fresh scans the achieved rate is measured over
+    private static final int RATE_WINDOW = 8;
+
+    private long lastRequest;
+    private boolean requested = false;
+    private boolean awaitingResults = false;
+    private boolean throttled = false;
+
+    private long newestTimestamp = Long.MIN_VALUE;
+    private final long[] freshTimes = new long[RATE_WINDOW];
+    private int freshCount = 0;
+
+    private int stillScans = 0;
+    private boolean hasPrevious = false;
+    private long[] previousBSSIDs = new long[STILL_ACCESS_POINTS];
+    private int[] previousLevels = new int[STILL_ACCESS_POINTS];
+    private long[] currentBSSIDs = new long[STILL_ACCESS_POINTS];
+    private int[] currentLevels = new int[STILL_ACCESS_POINTS];
+
+    /**
+     * Record a scan request and whether the WifiManager accepted it
+     */
+    public void onScanRequested(long now, boolean accepted){
+        lastRequest = now;
+        requested = true;
+        awaitingResults = accepted;
+        throttled = !accepted;
+    }
+
+    /**
+     * Record a set of scan results
+     * @param now       - when they arrived
+     * @param timestamp - the newest ScanResult.timestamp in them, in any unit that only increases
+     * @param frame     - the scan
+     * @return true if the results are from a new scan, false if they have been seen before
+     */
+    public boolean onResults(long now, long timestamp, ScanFrame frame){
+        if (timestamp <= newestTimestamp){
+            // Our scan was accepted but only the old results came back
+            if (awaitingResults){
+                throttled = true;
+                awaitingResults = false;
+            }
+            return false;
+        }
+        newestTimestamp = timestamp;
+        awaitingResults = false;
+        freshTimes[freshCount % RATE_WINDOW] = now;
+        freshCount++;
+        updateStill(frame);
+        return true;
+    }
+
+    /**
+     * @return how long to wait before asking for the next scan, 0 if one is due now
+     */
+    public long nextScanDelay(long now){
+        if (!requested){
+            return 0;
+        }
+        return Math.max(0, lastRequest + getInterval() - now);
+    }
+
+    /**
+     * @return the time between scans the scheduler is aiming for
+     */
+    public long getInterval(){
+        if (throttled){
+            return THROTTLED_INTERVAL;
+        }
+        return isStationary() ? STATIONARY_INTERVAL : MOVING_INTERVAL;
+    }
+
+    public boolean isThrottled(){
+        return throttled;
+    }
+
+    public boolean isStationary(){
+        return stillScans >= STILL_SCANS;
+    }
+
+    /**
+     * @return the number of fresh scans per second over the last few, or 0 if there have been
+     * fewer than 2 or the last is more than a throttled interval old
+     */
+    public double getScanRate(long now){
+        int count = Math.min(freshCount, RATE_WINDOW);
+        if (count < 2){
+            return 0;
+        }
+        long newest = freshTimes[(freshCount - 1) % RATE_WINDOW];
+        long oldest = freshTimes[(freshCount - count) % RATE_WINDOW];
+        if (now - newest > THROTTLED_INTERVAL || newest == oldest){
+            return 0;
+        }
+        return (count - 1) * 1000.0 / (newest - oldest);
+    }
+
+    // Compare the strongest access points of the scan with those of the one before
+    private void updateStill(ScanFrame frame){
+        frame.top(currentBSSIDs, currentLevels);
+        if (hasPrevious){
+            int common = 0;
+            int difference = 0;
+            for (int i = 0; i < STILL_ACCESS_POINTS && currentBSSIDs[i] != MacAddress.NONE; i++){
+                for (int j = 0; j < STILL_ACCESS_POINTS && previousBSSIDs[j] != MacAddress.NONE; j++){
+                    if (currentBSSIDs[i] == previousBSSIDs[j]){
+                        common++;
+                        difference += Math.abs(currentLevels[i] - previousLevels[j]);
+                        break;
+                    }
+                }
+            }
+            if (common >= STILL_COMMON && difference <= STILL_DB * common){
+                stillScans++;
+            }
+            else {
+                stillScans = 0;
+            }
+        }
+        hasPrevious = true;
+
+        long[] swapBSSIDs = previousBSSIDs;
+        previousBSSIDs = currentBSSIDs;
+        currentBSSIDs = swapBSSIDs;
+        int[] swapLevels = previousLevels;
+        previousLevels = currentLevels;
+        currentLevels = swapLevels;
+    }
+}
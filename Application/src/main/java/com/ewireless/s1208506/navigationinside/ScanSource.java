@@ -0,0 +1,38 @@
+package com.ewireless.s1208506.navigationinside;
+
+/**
+ * Author: Gavin Waite
+ * Anything which produces WiFi scans for the Fragments to use, the live WifiScanner or a
+ * ReplayScanSource playing back a recorded ScanTrace, so that the positioning pipeline can be
+ * driven and profiled without a WiFi radio
+ */
+public interface ScanSource {
+
+    /**
+     * Told of each new scan, on the thread the source delivers on (the main thread in the app)
+     * The frame may be reused once onScan() returns, copy() it to keep it
+     */
+    interface Listener {
+        void onScan(ScanFrame frame);
+    }
+
+    void setListener(Listener listener);
+
+    /**
+     * Start producing scans, until stop()
+     */
+    void start();
+
+    void stop();
+
+    /**
+     * @return the number of new scans produced per second recently, 0 if there have been none
+     */
+    double getScanRate();
+
+    /**
+     * @return true if scans are currently being produced slower than asked for, always false for
+     * sources which cannot be throttled
+     */
+    boolean isThrottled();
+}
@@ -0,0 +1,133 @@
+package com.ewireless.s1208506.navigationinside;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+
+/**
+ * Author: Gavin Waite
+ * A recording of timestamped WiFi scans, one scan per line after a header line:
+ *     time,BSSID,level,BSSID,level,...
+ * The time is in milliseconds from any fixed point, and the access points are in the order the
+ * WifiManager returned them. Written by the WifiScanner when recording, or by a simulation, and
+ * played back by a ReplayScanSource.
+ */
+public class ScanTrace {
+
+    private static final String HEADER = "time,BSSID,level";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private ScanTrace(){
+    }
+
+    /**
+     * Appends scans to a trace, call close() to finish it
+     */
+    public static class Writer implements Closeable {
+        private final BufferedWriter out;
+        private final StringBuilder line = new StringBuilder();
+
+        public Writer(OutputStream out) throws IOException {
+            this.out = new BufferedWriter(new OutputStreamWriter(out, UTF_8));
+            this.out.write(HEADER);
+            this.out.newLine();
+        }
+
+        public void write(long time, ScanFrame frame) throws IOException {
+            line.setLength(0);
+            line.append(time);
+            for (int i = 0; i < frame.size; i++){
+                line.append(',').append(MacAddress.format(frame.BSSIDs[i])).append(',').append(frame.levels[i]);
+            }
+            out.write(line.toString());
+            out.newLine();
+        }
+
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads the scans of a trace in order
+     */
+    public static class Reader implements Closeable {
+        private final BufferedReader in;
+        private int lineNumber = 1;
+        private long time;
+        private ScanFrame frame;
+
+        public Reader(InputStream in) throws IOException {
+            this.in = new BufferedReader(new InputStreamReader(in, UTF_8));
+            String header = this.in.readLine();
+            if (header == null || !header.startsWith(HEADER)){
+                throw new IOException("Not a scan trace");
+            }
+        }
+
+        /**
+         * Move to the next scan
+         * @return false at the end of the trace
+         * @throws IOException if the trace cannot be read or a line is malformed
+         */
+        public boolean next() throws IOException {
+            String line;
+            do {
+                line = in.readLine();
+                lineNumber++;
+                if (line == null){
+                    return false;
+                }
+            } while (line.trim().isEmpty());
+
+            String[] fields = line.split(",", -1);
+            if (fields.length % 2 != 1){
+                throw new IOException("Wrong number of fields on line " + lineNumber);
+            }
+            int size = fields.length / 2;
+            long[] BSSIDs = new long[size];
+            int[] levels = new int[size];
+            try {
+                time = Long.parseLong(fields[0].trim());
+                for (int i = 0; i < size; i++){
+                    BSSIDs[i] = MacAddress.parse(fields[1 + 2 * i].trim());
+                    levels[i] = Integer.parseInt(fields[2 + 2 * i].trim());
+                }
+            } catch (NumberFormatException e){
+                throw new IOException("Bad number on line " + lineNumber, e);
+            }
+            frame = new ScanFrame(BSSIDs, levels, size);
+            return true;
+        }
+
+        /**
+         * @return the time of the current scan
+         */
+        public long getTime(){
+            return time;
+        }
+
+        /**
+         * @return the current scan
+         */
+        public ScanFrame getFrame(){
+            return frame;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.ewireless.s1208506.navigationinside;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+
+/**
+ * Author: Gavin Waite
+ * A recording of inertial sensor samples, one sample per line after a header line:
+ *     time,sensor,x,y,z
+ * The time is the sensor timestamp in nanoseconds, the sensor A for the accelerometer (m/s^2) or
+ * G for the gyroscope (rad/s). Written by the InertialSensors when recording, or by a simulation,
+ * and played back into a DeadReckoning with replay().
+ */
+public class SensorLog {
+
+    public static final char ACCELEROMETER = 'A';
+    public static final char GYROSCOPE = 'G';
+
+    private static final String HEADER = "time,sensor,x,y,z";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private SensorLog(){
+    }
+
+    /**
+     * Feed every sample of a log into the dead reckoning, processing as they would be by the
+     * InertialSensors as batches arrive
+     * @param reader    - the log, read to the end
+     * @param reckoning - receives the samples
+     * @param batch     - the number of samples between each process()
+     */
+    public static void replay(Reader reader, DeadReckoning reckoning, int batch) throws IOException {
+        int count = 0;
+        while (reader.next()){
+            if (reader.getSensor() == ACCELEROMETER){
+                reckoning.addAcceleration(reader.getTime(), reader.getX(), reader.getY(), reader.getZ());
+            }
+            else {
+                reckoning.addRotation(reader.getTime(), reader.getX(), reader.getY(), reader.getZ());
+            }
+            if (++count % batch == 0){
+                reckoning.process();
+            }
+        }
+        reckoning.process();
+    }
+
+    /**
+     * Appends samples to a log, call close() to finish it
+     */
+    public static class Writer implements Closeable {
+        private final BufferedWriter out;
+        private final StringBuilder line = new StringBuilder();
+
+        public Writer(OutputStream out) throws IOException {
+            this.out = new BufferedWriter(new OutputStreamWriter(out, UTF_8));
+            this.out.write(HEADER);
+            this.out.newLine();
+        }
+
+        public void write(long time, char sensor, float x, float y, float z) throws IOException {
+            line.setLength(0);
+            line.append(time).append(',').append(sensor).append(',').append(x).append(',')
+                    .append(y).append(',').append(z);
+            out.write(line.toString());
+            out.newLine();
+        }
+
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads the samples of a log in order
+     */
+    public static class Reader implements Closeable {
+        private final BufferedReader in;
+        private int lineNumber = 1;
+        private long time;
+        private char sensor;
+        private float x;
+        private float y;
+        private float z;
+
+        public Reader(InputStream in) throws IOException {
+            this.in = new BufferedReader(new InputStreamReader(in, UTF_8));
+            String header = this.in.readLine();
+            if (header == null || !header.startsWith(HEADER)){
+                throw new IOException("Not a sensor log");
+            }
+        }
+
+        /**
+         * Move to the next sample
+         * @return false at the end of the log
+         * @throws IOException if the log cannot be read or a line is malformed
+         */
+        public boolean next() throws IOException {
+            String line;
+            do {
+                line = in.readLine();
+                lineNumber++;
+                if (line == null){
+                    return false;
+                }
+            } while (line.trim().isEmpty());
+
+            String[] fields = line.split(",", -1);
+            if (fields.length != 5){
+                throw new IOException("Wrong number of fields on line " + lineNumber);
+            }
+            String name = fields[1].trim();
+            if (name.length() != 1 || (name.charAt(0) != ACCELEROMETER && name.charAt(0) != GYROSCOPE)){
+                throw new IOException("Unknown sensor on line " + lineNumber);
+            }
+            try {
+                time = Long.parseLong(fields[0].trim());
+                x = Float.parseFloat(fields[2].trim());
+                y = Float.parseFloat(fields[3].trim());
+                z = Float.parseFloat(fields[4].trim());
+            } catch (NumberFormatException e){
+                throw new IOException("Bad number on line " + lineNumber, e);
+            }
+            sensor = name.charAt(0);
+            return true;
+        }
+
+        public long getTime(){
+            return time;
+        }
+
+        public char getSensor(){
+            return sensor;
+        }
+
+        public float getX(){
+            return x;
+        }
+
+        public float getY(){
+            return y;
+        }
+
+        public float getZ(){
+            return z;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
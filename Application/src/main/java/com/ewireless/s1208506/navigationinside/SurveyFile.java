@@ -0,0 +1,257 @@
+package com.ewireless.s1208506.navigationinside;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+
+/**
+ * Author: Gavin Waite
+ * Reads and writes a survey of reference points as a file, to move it between devices without
+ * walking the building again
+ *
+ * Points are written and read one at a time, so a survey of any size passes through in constant
+ * memory. The uids are not stored, the database assigns new ones on import.
+ *
+ * CSV - a header line then one line per reference point, readable in a spreadsheet:
+ *     latitude,longitude,building,floor,BSSID,dB,BSSID,dB,...
+ *
+ * BINARY - about a third of the size of the CSV, big endian (as DataOutputStream):
+ *     int MAGIC, int VERSION
+ *     for each point: byte 1, double latitude, double longitude, int building, int floor,
+ *                     short count, count x (6 byte BSSID, byte dB)
+ *     byte 0 to mark the end, so a truncated file is noticed
+ */
+public class SurveyFile {
+
+    public enum Format {
+        CSV, BINARY
+    }
+
+    public static final int MAGIC = 0x4E494653; // "NIFS"
+    public static final int VERSION = 1;
+    private static final String CSV_HEADER = "latitude,longitude,building,floor,BSSID,dB";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Writes reference points to a file, call close() to finish it
+     */
+    public interface Writer extends Closeable {
+        void write(LocData point) throws IOException;
+    }
+
+    /**
+     * Reads reference points from a file, one at a time
+     */
+    public interface Reader extends Closeable {
+        /**
+         * @return the next reference point, with a uid of 0, or null at the end of the file
+         * @throws IOException if the file cannot be read or is not a valid survey
+         */
+        LocData read() throws IOException;
+    }
+
+    private SurveyFile(){
+    }
+
+    public static Writer newWriter(OutputStream out, Format format) throws IOException {
+        if (format == Format.CSV){
+            return new CsvWriter(out);
+        }
+        return new BinaryWriter(out);
+    }
+
+    /**
+     * Open a survey in either format, which is told apart by the first bytes
+     */
+    public static Reader newReader(InputStream in) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(in);
+        buffered.mark(4);
+        int magic = 0;
+        for (int i = 0; i < 4; i++){
+            int b = buffered.read();
+            magic = (magic << 8) | (b < 0 ? 0 : b);
+        }
+        buffered.reset();
+        if (magic == MAGIC){
+            return new BinaryReader(buffered);
+        }
+        return new CsvReader(buffered);
+    }
+
+    private static class CsvWriter implements Writer {
+        private final BufferedWriter out;
+        private final StringBuilder line = new StringBuilder();
+
+        CsvWriter(OutputStream out) throws IOException {
+            this.out = new BufferedWriter(new OutputStreamWriter(out, UTF_8));
+            this.out.write(CSV_HEADER);
+            this.out.newLine();
+        }
+
+        @Override
+        public void write(LocData point) throws IOException {
+            line.setLength(0);
+            line.append(point.latitude).append(',').append(point.longitude).append(',')
+                    .append(point.building).append(',').append(point.floor);
+            for (int i = 0; i < point.BSSIDs.length; i++){
+                line.append(',').append(MacAddress.format(point.BSSIDs[i])).append(',').append(point.dBs[i]);
+            }
+            out.write(line.toString());
+            out.newLine();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    private static class CsvReader implements Reader {
+        private final BufferedReader in;
+        private int lineNumber = 0;
+
+        CsvReader(InputStream in) throws IOException {
+            this.in = new BufferedReader(new InputStreamReader(in, UTF_8));
+            String header = this.in.readLine();
+            lineNumber++;
+            if (header == null || !header.startsWith(CSV_HEADER)){
+                throw new IOException("Not a survey file");
+            }
+        }
+
+        @Override
+        public LocData read() throws IOException {
+            String line;
+            do {
+                line = in.readLine();
+                lineNumber++;
+                if (line == null){
+                    return null;
+                }
+            } while (line.trim().isEmpty());
+
+            String[] fields = line.split(",", -1);
+            if (fields.length < 4 || fields.length % 2 != 0){
+                throw new IOException("Wrong number of fields on line " + lineNumber);
+            }
+            LocData point = new LocData();
+            int count = (fields.length - 4) / 2;
+            point.BSSIDs = new long[count];
+            point.dBs = new int[count];
+            try {
+                point.latitude = Double.parseDouble(fields[0]);
+                point.longitude = Double.parseDouble(fields[1]);
+                point.building = Integer.parseInt(fields[2].trim());
+                point.floor = Integer.parseInt(fields[3].trim());
+                for (int i = 0; i < count; i++){
+                    point.BSSIDs[i] = MacAddress.parse(fields[4 + 2 * i].trim());
+                    point.dBs[i] = Integer.parseInt(fields[5 + 2 * i].trim());
+                    if (point.BSSIDs[i] == MacAddress.NONE){
+                        throw new IOException("Bad BSSID on line " + lineNumber);
+                    }
+                }
+            } catch (NumberFormatException e){
+                throw new IOException("Bad number on line " + lineNumber, e);
+            }
+            return point;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private static class BinaryWriter implements Writer {
+        private final DataOutputStream out;
+
+        BinaryWriter(OutputStream out) throws IOException {
+            this.out = new DataOutputStream(new BufferedOutputStream(out));
+            this.out.writeInt(MAGIC);
+            this.out.writeInt(VERSION);
+        }
+
+        @Override
+        public void write(LocData point) throws IOException {
+            out.writeByte(1);
+            out.writeDouble(point.latitude);
+            out.writeDouble(point.longitude);
+            out.writeInt(point.building);
+            out.writeInt(point.floor);
+            out.writeShort(point.BSSIDs.length);
+            for (int i = 0; i < point.BSSIDs.length; i++){
+                long BSSID = point.BSSIDs[i];
+                out.writeShort((int) (BSSID >>> 32));
+                out.writeInt((int) BSSID);
+                out.writeByte(point.dBs[i]);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.writeByte(0);
+            out.close();
+        }
+    }
+
+    private static class BinaryReader implements Reader {
+        private final DataInputStream in;
+        private boolean finished = false;
+
+        BinaryReader(InputStream in) throws IOException {
+            this.in = new DataInputStream(in);
+            this.in.readInt();
+            if (this.in.readInt() != VERSION){
+                throw new IOException("Unsupported survey file version");
+            }
+        }
+
+        @Override
+        public LocData read() throws IOException {
+            if (finished){
+                return null;
+            }
+            try {
+                int marker = in.readByte();
+                if (marker == 0){
+                    finished = true;
+                    return null;
+                }
+                if (marker != 1){
+                    throw new IOException("Survey file is corrupt");
+                }
+                LocData point = new LocData();
+                point.latitude = in.readDouble();
+                point.longitude = in.readDouble();
+                point.building = in.readInt();
+                point.floor = in.readInt();
+                int count = in.readUnsignedShort();
+                point.BSSIDs = new long[count];
+                point.dBs = new int[count];
+                for (int i = 0; i < count; i++){
+                    point.BSSIDs[i] = ((long) in.readUnsignedShort() << 32) | (in.readInt() & 0xffffffffL);
+                    point.dBs[i] = in.readByte();
+                }
+                return point;
+            } catch (EOFException e){
+                throw new IOException("Survey file is truncated", e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.ewireless.s1208506.navigationinside;
+
+/**
+ * Author: Gavin Waite
+ * A bounded min-heap of the k best scoring rows seen so far, held in primitive arrays
+ *
+ * The root is always the worst of the kept rows, so a new row only has to be compared against it
+ * and, if better, replaces it in O(log k). Nothing is allocated after construction. Between equal
+ * scores the earlier row is preferred, as in the nearest point search.
+ */
+public class TopKHeap {
+
+    private final int[] rows;
+    private final int[] scores;
+    private int size;
+
+    public TopKHeap(int k){
+        rows = new int[Math.max(k, 1)];
+        scores = new int[rows.length];
+    }
+
+    public int capacity(){
+        return rows.length;
+    }
+
+    public int size(){
+        return size;
+    }
+
+    public void clear(){
+        size = 0;
+    }
+
+    /**
+     * @return the row at position i of the heap (in no particular order)
+     */
+    public int row(int i){
+        return rows[i];
+    }
+
+    public int score(int i){
+        return scores[i];
+    }
+
+    /**
+     * Offer a scored row, keeping it if it is among the k best so far
+     */
+    public void offer(int row, int score){
+        if (size < rows.length){
+            int i = size++;
+            rows[i] = row;
+            scores[i] = score;
+            siftUp(i);
+        }
+        else if (better(row, score, rows[0], scores[0])){
+            rows[0] = row;
+            scores[0] = score;
+            siftDown(0);
+        }
+    }
+
+    // Whether row a is a better match than row b
+    private static boolean better(int rowA, int scoreA, int rowB, int scoreB){
+        return scoreA > scoreB || (scoreA == scoreB && rowA < rowB);
+    }
+
+    private void siftUp(int i){
+        while (i > 0){
+            int parent = (i - 1) >>> 1;
+            if (!better(rows[parent], scores[parent], rows[i], scores[i])){
+                break;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i){
+        while (true){
+            int left = 2 * i + 1;
+            if (left >= size){
+                break;
+            }
+            int worst = left;
+            int right = left + 1;
+            if (right < size && better(rows[worst], scores[worst], rows[right], scores[right])){
+                worst = right;
+            }
+            if (!better(rows[i], scores[i], rows[worst], scores[worst])){
+                break;
+            }
+            swap(i, worst);
+            i = worst;
+        }
+    }
+
+    private void swap(int a, int b){
+        int row = rows[a];
+        rows[a] = rows[b];
+        rows[b] = row;
+        int score = scores[a];
+        scores[a] = scores[b];
+        scores[b] = score;
+    }
+}
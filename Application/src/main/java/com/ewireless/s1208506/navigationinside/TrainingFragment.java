@@ -1,11 +1,6 @@
 package com.ewireless.s1208506.navigationinside;
 
-import android.content.Context;
-import android.content.IntentFilter;
 import android.graphics.Color;
-import android.net.wifi.ScanResult;
-import android.net.wifi.WifiManager;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.SystemClock;
@@ -14,6 +9,9 @@ import android.support.v4.app.Fragment;
 import android.util.Log;
 import android.view.GestureDetector;
 import android.view.LayoutInflater;
+import android.view.Menu;
+import android.view.MenuInflater;
+import android.view.MenuItem;
 import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewGroup;
@@ -37,6 +35,9 @@ import com.google.android.gms.maps.model.MarkerOptions;
 import com.google.android.gms.maps.model.Polyline;
 import com.google.android.gms.maps.model.PolylineOptions;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -48,7 +49,8 @@ import java.util.List;
  * Google Map. A line is then drawn on the map connected these points. The user should then walk
  * between these two points at a constant speed.
  */
-public class TrainingFragment extends Fragment implements View.OnClickListener {
+public class TrainingFragment extends Fragment implements View.OnClickListener, FingerprintModel.SessionCallback,
+        ScanSource.Listener {
 
     private LatLng KB = new LatLng(55.922547, -3.172174);
 
@@ -106,25 +108,93 @@ public class TrainingFragment extends Fragment implements View.OnClickListener {
         setupStopWatch();
         setupMap(rootView, savedInstanceState);
 
-        // Start an asynchronous load from the database
-        loadDatabase();
+        // New reference points are written through the shared in-memory model
+        model = ((MainActivity)getActivity()).fingerprintModel;
+        setHasOptionsMenu(true);
 
         return rootView;
     }
 
     /**
-     * Register the listener for WiFi Scanner results on app resume and unregister on app pause
+     * Every scan the app makes, from whichever tab, can be recorded to a ScanTrace from the options
+     * menu, to replay a real walk through the positioning with a ReplayScanSource in the unit tests
+     */
+    private ScanTrace.Writer trace;
+    @Override
+    public void onCreateOptionsMenu(Menu menu, MenuInflater inflater){
+        inflater.inflate(R.menu.training_menu, menu);
+        menu.findItem(R.id.action_record_scans).setChecked(trace != null);
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item){
+        if (item.getItemId() != R.id.action_record_scans){
+            return super.onOptionsItemSelected(item);
+        }
+        if (trace == null){
+            startTrace();
+        }
+        else {
+            stopTrace();
+        }
+        item.setChecked(trace != null);
+        return true;
+    }
+
+    private void startTrace(){
+        ScanSource source = scans.getSource();
+        if (!(source instanceof WifiScanner)){
+            Toast.makeText(getContext(), "Only the device's own scans can be recorded", Toast.LENGTH_LONG).show();
+            return;
+        }
+        File file = ((MainActivity)getActivity()).newRecording("scans", "trace");
+        try {
+            trace = new ScanTrace.Writer(new FileOutputStream(file));
+            ((WifiScanner) source).setRecorder(trace);
+            Toast.makeText(getContext(), "Recording the scans to " + file.getName(), Toast.LENGTH_LONG).show();
+        } catch (IOException e){
+            Log.e("WIFI", "Could not start the scan trace", e);
+            Toast.makeText(getContext(), "Could not record the scans", Toast.LENGTH_LONG).show();
+        }
+    }
+
+    private void stopTrace(){
+        if (trace == null){
+            return;
+        }
+        ScanSource source = scans.getSource();
+        if (source instanceof WifiScanner){
+            ((WifiScanner) source).setRecorder(null);
+        }
+        try {
+            trace.close();
+        } catch (IOException e){
+            Log.e("WIFI", "Could not close the scan trace", e);
+        }
+        trace = null;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        stopTrace();
+    }
+
+    /**
+     * Restart the scans on app resume if they are needed and stop them on app pause
      */
     @Override
     public void onResume() {
         super.onResume();
-        getActivity().registerReceiver(wifiScanner.getReceiver(), new IntentFilter(wifiManager.SCAN_RESULTS_AVAILABLE_ACTION));
+        if (recording){
+            startScans();
+        }
     }
 
     @Override
     public void onPause() {
         super.onPause();
-        getActivity().unregisterReceiver(wifiScanner.getReceiver());
+        stopScans();
     }
 
     /**
@@ -307,9 +377,8 @@ public class TrainingFragment extends Fragment implements View.OnClickListener {
             pointsShown = false;
         }
         else {
-            loadDatabase();
-            if (dataB != null){
-                for (LocData data : dataB){
+            if (model != null){
+                for (LocData data : model.getPoints()){
                     LatLng pos = new LatLng(data.latitude, data.longitude);
                     MarkerOptions markOpt = new MarkerOptions().position(pos);
                     Marker newMark = googleMap.addMarker(markOpt);
@@ -401,7 +470,7 @@ public class TrainingFragment extends Fragment implements View.OnClickListener {
 
     /**
      * Upon starting recording an on-screen stopwatch is started for the user's convenience
-     * The WiFi scanner is also explicitly requested to start scanning
+     * The WiFi scanner is also started, scanning repeatedly until the session ends
      * trainingSession is a List which contains all the readings obtained in the current recording
      * session. These are TrainingReading objects which associate the WiFi Scan data with the time
      * at which the scan was obtained
@@ -409,7 +478,7 @@ public class TrainingFragment extends Fragment implements View.OnClickListener {
     private List<TrainingReading> trainingSession;
     private void beginStopwatch(){
         stopwatchHandler.postDelayed(stopWatchRun, 0);
-        wifiScanner.scanForWifi();
+        startScans();
 
         if (trainingSession == null){
             trainingSession = new ArrayList<>();
@@ -425,27 +494,22 @@ public class TrainingFragment extends Fragment implements View.OnClickListener {
      * The relative time of each reading can be computed given the end time and the time
      * of each reading (normalised to start at 0). This relative time is then used to find the
      * approximate location of the reading by interpolating between the start and end points of the
-     * training path. This requires the user to walk at an approximately constant speed.
-     * These are then added to the database.
+     * training path (see TrainingPath). This requires the user to walk at an approximately
+     * constant speed. These are then added to the database together as one batch.
      */
     private void stopStopwatch(){
 
         endTime = currentTime;
         stopwatchHandler.removeCallbacks(stopWatchRun);
+        stopScans();
         walkingTime.setText("00:00:00");
 
-        for (TrainingReading reading : trainingSession){
-            float relative_time = ((float)reading.timeOfReading / (float)endTime);
-            Log.d("Time", Float.toString(relative_time));
-
-            LatLng posOfReading = new LatLng(
-                    ((1-relative_time)*startPos.latitude + relative_time*endPos.latitude),
-                    ((1-relative_time)*startPos.longitude + relative_time*endPos.longitude));
-
-            addNewTrainingPointToDatabase(posOfReading, reading.wifiScanData);
-        }
+        // The whole session is written in one transaction in the background, the uids are given
+        // out by the model
+        TrainingPath path = new TrainingPath(startPos.latitude, startPos.longitude,
+                endPos.latitude, endPos.longitude);
+        model.insertSession(path.toReferencePoints(trainingSession, endTime, maxAccessPoints), this);
         trainingSession.clear();
-        loadDatabase();
     }
 
     /**
@@ -472,128 +536,67 @@ public class TrainingFragment extends Fragment implements View.OnClickListener {
     };
 
     /**
-     * This sets up the WiFi Scanner needed to collect data fro the reference points
+     * This links the Fragment to the app's shared WiFi scans, needed to collect data fro the
+     * reference points
      */
-    private WifiManager wifiManager;
-    public WifiScanner wifiScanner;
+    private ScanDispatcher scans;
     private void setupWifi(){
-        wifiManager = (WifiManager)getActivity().getApplicationContext().getSystemService(Context.WIFI_SERVICE);
-        wifiScanner = new WifiScanner(this, wifiManager);
+        scans = ((MainActivity)getActivity()).scanDispatcher;
+    }
+
+    // Scans are handed to the Fragment on the main thread, as it updates the UI with them
+    private void startScans(){
+        scans.subscribe(this, ((MainActivity)getActivity()).mainThread);
+    }
+
+    private void stopScans(){
+        scans.unsubscribe(this);
     }
 
     /**
-     * The callback from the WiFi Scanner to indicate that a ScanResult is available
+     * The callback from the ScanSource to indicate that a ScanResult is available
      * If the user is in an active recording session then a new TrainingReading is created to store
      * the result
      */
     private int sensorEntries = 0;
-    public void wifiScanReturn(List<ScanResult> wifiScanList){
+    @Override
+    public void onScan(ScanFrame wifiScanList){
         Log.d("WIFI", "Received returned data");
         // If the user is capturing, then save the current ScanResult
         if (recording){
             sensorEntries++;
             numReadings.setText("Readings: "+ Integer.toString(sensorEntries));
-            trainingSession.add(new TrainingReading(currentTime, wifiScanList));
-        }
-    }
-
-    /**
-     * Sets up a new Reference point to be added to the database
-     * Uses the WiFi BSSIDs as these uniquely identify an access point whereas the SSID can be
-     * the same for multiple and is subject to change
-     * @param pos - The calculated LatLng of the point
-     * @param data - The raw WiFi List<ScanResult>
-     */
-    private void addNewTrainingPointToDatabase(LatLng pos, List<ScanResult> data){
-
-        // Create a new LocData entry for the Room database API
-        LocData newEntry = new LocData();
-
-        // Set the uid to the next unused integer
-        newEntry.uid = num_entries;
-        num_entries++;
-        // Set the latitude and longitude fields
-        newEntry.latitude = pos.latitude;
-        newEntry.longitude = pos.longitude;
-        // Set the BSSID and dB fields, passing in NA if less than 3 WiFi networks were found
-        String[] BSSIDs = new String[3];
-        int[] dBs = new int[3];
-        for (int i=0; i < 3; i++){
-            if (i < data.size()){
-                BSSIDs[i] = data.get(i).BSSID;
-                dBs[i] = data.get(i).level;
-            }
-            else {
-                BSSIDs[i] = "NA";
-                dBs[i] = -200;
-            }
+            // The scanner reuses the frame, so the session keeps its own copy
+            trainingSession.add(new TrainingReading(currentTime, wifiScanList.copy()));
         }
-        newEntry.BSSID_1 = BSSIDs[0];
-        newEntry.dB_1 = dBs[0];
-        newEntry.BSSID_2 = BSSIDs[1];
-        newEntry.dB_2 = dBs[1];
-        newEntry.BSSID_3 = BSSIDs[2];
-        newEntry.dB_3 = dBs[2];
-
-        addToDatabase(newEntry);
     }
 
     // ---------------------------------------------------------------------------------------------
     // Database access -----------------------------------------------------------------------------
 
-    private List<LocData> dataB; // the full database itself
-    private int num_entries = 0;
+    private FingerprintModel model; // the shared in-memory copy of the database
+
+    // The number of access points stored in the fingerprint of each new reference point
+    public int maxAccessPoints = LocData.DEFAULT_MAX_ACCESS_POINTS;
 
     /**
-     * The implementation of the Room database task: load
-     * Executes an asynchronous task as required by the Room API
-     *
-     * Queries the database for all LocData entries and then stores them in a local List<>
-     * For a final real-world use-case then only a sub-set of the full database could be loaded
-     * based upon location
+     * Called by the FingerprintModel on the main thread as a session is written
      */
-    private void loadDatabase(){
-        new AsyncTask<Void, Void, List<LocData>>(){
-            @Override
-            protected List<LocData> doInBackground(Void... params){
-                Log.d("DB","Starting background task");
-                return ((MainActivity)getActivity()).db.locDao().getAll();
-            }
-
-            @Override
-            protected void onPostExecute(List<LocData> locations){
-                Log.d("DB","In post execute");
-
-                if (locations != null) {
-                    dataB = locations;
-                    num_entries = locations.size();
-                }
-                else {
-                    num_entries = 0;
-                }
-
-
-
-            }
-        }.execute();
+    @Override
+    public void onSessionProgress(int written, int total){
+        numReadings.setText("Saving: " + written + "/" + total);
     }
 
-    /**
-     * The implementation of the Room database task: insert
-     * Executes an asynchronous task as required by the Room API
-     *
-     * Adds a new LocData entry into the Room database
-     */
-    private void addToDatabase(LocData entry){
-        new InsertIntoDatabaseTask().execute(entry);
+    @Override
+    public void onSessionCommitted(int count, long millis){
+        numReadings.setText("Saved " + count + " points in " + millis + " ms");
     }
 
-    private class InsertIntoDatabaseTask extends AsyncTask<LocData, Void, Void>{
-        @Override
-        protected Void doInBackground(LocData... new_val){
-            Log.d("DB","Adding to db");
-            ((MainActivity)getActivity()).db.locDao().insertOne(new_val[0]);
-            return null;
+    @Override
+    public void onSessionFailed(Exception e){
+        numReadings.setText("Failed to save the session");
+        if (getContext() != null){
+            Toast.makeText(getContext(), "Could not save the training session", Toast.LENGTH_LONG).show();
         }
     }
     // ---------------------------------------------------------------------------------------------
@@ -0,0 +1,68 @@
+package com.ewireless.s1208506.navigationinside;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Author: Gavin Waite
+ * The straight line walked by the user in a training session, from the start point to the end
+ * point set on the map in the TrainingFragment
+ *
+ * The user is assumed to walk at an approximately constant speed, so a reading taken a fraction t
+ * of the way through the session is placed a fraction t of the way along the path. This is kept
+ * apart from the Fragment (and from the Google Maps LatLng) so that it can be tested and
+ * benchmarked on a plain JVM.
+ */
+public class TrainingPath {
+
+    public final double startLatitude;
+    public final double startLongitude;
+    public final double endLatitude;
+    public final double endLongitude;
+
+    public TrainingPath(double startLatitude, double startLongitude,
+                        double endLatitude, double endLongitude){
+        this.startLatitude = startLatitude;
+        this.startLongitude = startLongitude;
+        this.endLatitude = endLatitude;
+        this.endLongitude = endLongitude;
+    }
+
+    /**
+     * Turn the readings of a training session into new reference points along the path
+     * @param session         - the readings, with times relative to the start of the session
+     * @param endTime         - the time at which the session was stopped
+     * @param maxAccessPoints - the number of strongest access points to keep for each point
+     * @return one reference point per reading, in the order of the readings, with their uids left
+     * to be assigned by the database
+     */
+    public List<LocData> toReferencePoints(List<TrainingReading> session, long endTime,
+                                           int maxAccessPoints){
+        List<LocData> points = new ArrayList<>(session.size());
+        for (TrainingReading reading : session){
+            LocData point = new LocData();
+            place(point, reading.timeOfReading, endTime);
+
+            // Keep the strongest access points of the scan, up to the configured number
+            ScanFrame data = reading.wifiScanData;
+            point.BSSIDs = new long[Math.min(maxAccessPoints, data.size)];
+            point.dBs = new int[point.BSSIDs.length];
+            data.top(point.BSSIDs, point.dBs);
+            points.add(point);
+        }
+        return points;
+    }
+
+    /**
+     * Set the latitude and longitude of a reading taken at the given time
+     * @param point         - receives the position
+     * @param timeOfReading - the time of the reading, relative to the start of the session
+     * @param endTime       - the time at which the session was stopped
+     */
+    public void place(LocData point, long timeOfReading, long endTime){
+        float relative_time = ((float)timeOfReading / (float)endTime);
+
+        point.latitude = (1-relative_time)*startLatitude + relative_time*endLatitude;
+        point.longitude = (1-relative_time)*startLongitude + relative_time*endLongitude;
+    }
+}
@@ -1,9 +1,5 @@
 package com.ewireless.s1208506.navigationinside;
 
-import android.net.wifi.ScanResult;
-
-import java.util.List;
-
 /**
  * Author: Gavin Waite
  * Support class to store information about the training readings taken during a training session
@@ -11,9 +7,9 @@ import java.util.List;
 public class TrainingReading {
 
     public long timeOfReading;
-    public List<ScanResult> wifiScanData;
+    public ScanFrame wifiScanData;
 
-    public TrainingReading(long time, List<ScanResult> data){
+    public TrainingReading(long time, ScanFrame data){
         this.timeOfReading = time;
         this.wifiScanData = data;
     }
@@ -3,56 +3,78 @@ package com.ewireless.s1208506.navigationinside;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.net.wifi.ScanResult;
 import android.net.wifi.WifiManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.io.IOException;
 import java.util.List;
 
 
 /**
  * Author: Gavin Waite
  * Implements a WiFi Scanner which uses the application WifiManager to scan the area for nearby
- * WiFi access points and their signal level. This list is then passed back to the appropriate
- * return Fragment which created the Scanner. The data is then used to either record reference
- * points in the TrainingFragment or to work out the most likely location of the user in the
- * PositioningFragment
+ * WiFi access points and their signal level. This list is then passed back to the Listener, the
+ * ScanDispatcher which shares it between the Fragments. The data is then used to either record
+ * reference points in the TrainingFragment or to work out the most likely location of the user in
+ * the PositioningFragment
+ * It is the live ScanSource, a ReplayScanSource can stand in for it to play back recorded scans.
+ *
+ * While started, scans are asked for at the rate set by a ScanScheduler, which slows down when the
+ * user stands still and when Android throttles the app's scans. Results are only passed back when
+ * they are from a new scan.
  */
 
-public class WifiScanner {
+public class WifiScanner implements ScanSource {
 
-    // Handle to the parent Fragment
-    private TrainingFragment returnFragment;
-    private PositioningFragment returnFragment2;
+    // Handle to the ScanDispatcher
+    private Listener listener;
 
     // Link to the WiFi manager of the device and the internal ScanReceiver
+    private final Context context;
     private WifiManager wm;
     private WifiScanReceiver wsr;
 
-    private String wifi_networks[];
+    // Set to write every new scan to a ScanTrace, for replaying later
+    private ScanTrace.Writer recorder;
+
+    // The frames each scan is parsed into, reused from scan to scan
+    private final ScanFramePool pool = new ScanFramePool();
+
+    // Asks for scans on the main thread at the rate the scheduler decides
+    private final ScanScheduler scheduler = new ScanScheduler();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private boolean started = false;
 
     /**
-     * Constructor for calling from the TrainingFragment - provides a link back to the Fragment
-     * and a reference to the device WifiManager. Calls the initialisation method
+     * Constructor - provides a context to receive the scan broadcasts with and a reference to the
+     * device WifiManager. Calls the initialisation method
      */
-    public WifiScanner(TrainingFragment returnFragment, WifiManager wm){
+    public WifiScanner(Context context, WifiManager wm){
         Log.d("WIFI", "Made a new Wifi Scanner");
-        this.returnFragment = returnFragment;
-        this.returnFragment2 = null;
+        this.context = context.getApplicationContext();
         this.wm = wm;
         init();
     }
 
     /**
-     * Constructor for calling from the PositioningFragment - provides a link back to the Fragment
-     * and a reference to the device WifiManager. Calls the initialisation method
+     * Provides a link back to the Fragment which uses the scans
      */
-    public WifiScanner(PositioningFragment returnFragment, WifiManager wm){
-        Log.d("WIFI2", "Made a new Wifi Scanner");
-        this.returnFragment = null;
-        this.returnFragment2 = returnFragment;
-        this.wm = wm;
-        init();
+    @Override
+    public void setListener(Listener listener){
+        this.listener = listener;
+    }
+
+    /**
+     * Write every new scan to the trace from now on, or stop with null
+     * The caller closes the trace, on the main thread where the scans are written
+     */
+    public void setRecorder(ScanTrace.Writer recorder){
+        this.recorder = recorder;
     }
 
     /**
@@ -69,44 +91,122 @@ public class WifiScanner {
 
     /**
      * Scan the area for wifi and return the list of access points
+     * If Android refuses the scan, the latest cached results are passed back instead if they are
+     * newer than the last ones, e.g. from another app's scan
      */
     public void scanForWifi(){
         Log.d("WIFI", "Started scan");
-        wm.startScan();
+        boolean accepted = wm.startScan();
+        scheduler.onScanRequested(SystemClock.elapsedRealtime(), accepted);
+        if (!accepted){
+            Log.d("WIFI", "Scan throttled, using cached results");
+            deliver(wm.getScanResults());
+        }
+    }
+
+    /**
+     * Start listening for results and scanning repeatedly, immediately and then at the
+     * scheduler's rate until stop()
+     */
+    @Override
+    public void start(){
+        if (started){
+            return;
+        }
+        started = true;
+        context.registerReceiver(wsr, new IntentFilter(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION));
+        handler.post(scanRun);
+    }
+
+    @Override
+    public void stop(){
+        if (!started){
+            return;
+        }
+        started = false;
+        handler.removeCallbacks(scanRun);
+        context.unregisterReceiver(wsr);
     }
 
-    public WifiScanReceiver getReceiver(){
-        return wsr;
+    private final Runnable scanRun = new Runnable() {
+        @Override
+        public void run() {
+            long now = SystemClock.elapsedRealtime();
+            long delay = scheduler.nextScanDelay(now);
+            if (delay == 0){
+                scanForWifi();
+                delay = scheduler.getInterval();
+            }
+            handler.postDelayed(this, delay);
+        }
+    };
+
+    /**
+     * @return the number of new scans received per second recently, 0 if there have been none
+     */
+    @Override
+    public double getScanRate(){
+        return scheduler.getScanRate(SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * @return true if Android is currently refusing to scan as often as asked
+     */
+    @Override
+    public boolean isThrottled(){
+        return scheduler.isThrottled();
     }
 
     /**
      * Internal class
      * Defines a custom BroadcastReceiver which gets the latest Scan results from the Wifi Manager
-     * It stores the information as a String wifi_networks[]
-     * It then also passes it back to the parent Fragment as a List<ScanList> where it can be
-     * decoded and used
+     * It passes it back to the parent Fragment as a ScanFrame, with the BSSIDs already parsed into
+     * longs, where it can be used
      */
     private class WifiScanReceiver extends BroadcastReceiver {
 
         @Override
         public void onReceive(Context context, Intent intent) {
-            List<ScanResult> wifiScanList = wm.getScanResults();
-            wifi_networks = new String[wifiScanList.size()];
+            deliver(wm.getScanResults());
+        }
+    }
 
-            for (int i=0; i<wifiScanList.size(); i++){
-                wifi_networks[i] = wifiScanList.get(i).SSID +
-                        ", " + wifiScanList.get(i).BSSID +
-                        ", " + String.valueOf(wifiScanList.get(i).level);
+    /**
+     * Pass scan results back to the Listener, if they are from a scan not seen before
+     * The newest ScanResult timestamp tells a new scan from the cached results of an old one
+     * The results are parsed into a pooled ScanFrame, sorted strongest first, so that nothing is
+     * allocated here from scan to scan. The frame is reused once the Listener returns.
+     */
+    private void deliver(List<ScanResult> wifiScanList){
+        ScanFrame frame = pool.acquire();
+        try {
+            // Parse the BSSIDs once here so the rest of the app can compare them as longs
+            // An indexed loop, as a for-each would allocate an Iterator
+            for (int i = 0; i < wifiScanList.size(); i++){
+                ScanResult result = wifiScanList.get(i);
+                frame.add(MacAddress.parse(result.BSSID), result.level, result.frequency);
+                frame.timestamp = Math.max(frame.timestamp, result.timestamp);
+            }
+            frame.sort();
+            if (frame.size == 0 || !scheduler.onResults(SystemClock.elapsedRealtime(), frame.timestamp, frame)){
+                Log.d("WIFI", "No new scan results");
+                return;
             }
 
-            if (returnFragment != null) {
-                Log.d("WIFI", "Received data");
-                returnFragment.wifiScanReturn(wifiScanList);
+            if (recorder != null){
+                try {
+                    recorder.write(SystemClock.elapsedRealtime(), frame);
+                } catch (IOException e){
+                    Log.e("WIFI", "Could not record the scan, recording stopped", e);
+                    recorder = null;
+                }
             }
-            if (returnFragment2 != null) {
-                Log.d("WIFI2", "Received data");
-                returnFragment2.wifiScanReturn(wifiScanList);
+            if (listener != null) {
+                Log.d("WIFI", "Received data");
+                listener.onScan(frame);
             }
+        } finally {
+            pool.release(frame);
         }
     }
 
@@ -0,0 +1,148 @@
+package com.ewireless.s1208506.navigationinside;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.net.URL;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Records the accelerometer and gyroscope of a simulated walk as a SensorLog, in the per-sensor
+ * batches a hardware FIFO delivers them in, and replays it through the DeadReckoning. Logs recorded
+ * on a device from the Positioning tab's menu are replayed too, if any have been put in the
+ * sensors folder of the test resources.
+ */
+public class DeadReckoningTest {
+
+    private static final double GRAVITY = 9.80665;
+    private static final long PERIOD = 20000000L;
+    private static final double STEP_RATE = 1.8;
+
+    /**
+     * A walk of 60 s at 50 Hz: 20 s straight on, a 90 degree turn to the right over 2 s, and on
+     * again, then standing still. The phone is tipped 35 degrees back and held a little to one
+     * side, and bounces 3 m/s^2 up and down once a step. Batches of 2 s are written a sensor at a
+     * time, as a batched SensorManager delivers them.
+     */
+    private static byte[] recordWalk() throws Exception {
+        Random random = new Random(1208506);
+        double pitch = Math.toRadians(35);
+        double roll = Math.toRadians(10);
+        double upX = Math.sin(roll) * Math.cos(pitch);
+        double upY = Math.sin(pitch);
+        double upZ = Math.cos(roll) * Math.cos(pitch);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        SensorLog.Writer writer = new SensorLog.Writer(bytes);
+        int samples = 3000;
+        int batch = 100;
+        for (int start = 0; start < samples; start += batch){
+            for (int i = start; i < start + batch; i++){
+                double seconds = i * PERIOD * 1e-9;
+                double bounce = seconds < 50 ? 3 * Math.sin(2 * Math.PI * STEP_RATE * seconds) : 0;
+                double along = GRAVITY + bounce + random.nextGaussian() * 0.3;
+                writer.write(1000000000L + i * PERIOD, SensorLog.ACCELEROMETER,
+                        (float) (along * upX + random.nextGaussian() * 0.3),
+                        (float) (along * upY + random.nextGaussian() * 0.3),
+                        (float) (along * upZ));
+            }
+            for (int i = start; i < start + batch; i++){
+                double seconds = i * PERIOD * 1e-9;
+                // A right turn is clockwise seen from above, a negative rotation about up
+                double rate = seconds >= 20 && seconds < 22 ? -Math.PI / 4 : 0;
+                rate += random.nextGaussian() * 0.02;
+                writer.write(1000000000L + i * PERIOD + PERIOD / 2, SensorLog.GYROSCOPE,
+                        (float) (rate * upX), (float) (rate * upY), (float) (rate * upZ));
+            }
+        }
+        writer.close();
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void replaysRecordedWalk() throws Exception {
+        byte[] log = recordWalk();
+        final double[] headings = new double[2];
+        final int[] counts = new int[2];
+        DeadReckoning reckoning = new DeadReckoning();
+        reckoning.setListener(new DeadReckoning.Listener() {
+            @Override
+            public void onStep(long time, double length, double heading) {
+                // Before and after the turn
+                int leg = time < 21000 ? 0 : 1;
+                if (time < 19000 || time > 24000){
+                    headings[leg] += heading;
+                    counts[leg]++;
+                }
+                assertTrue(length >= DeadReckoning.MIN_LENGTH && length <= DeadReckoning.MAX_LENGTH);
+                assertTrue(time < 52000);
+            }
+        });
+
+        SensorLog.Reader reader = new SensorLog.Reader(new ByteArrayInputStream(log));
+        SensorLog.replay(reader, reckoning, 50);
+        reader.close();
+
+        // One step a bounce, with none while standing still
+        assertEquals(50 * STEP_RATE, reckoning.getSteps(), 2);
+        assertEquals(0, reckoning.getDropped());
+        assertEquals(0, headings[0] / counts[0], 0.1);
+        assertEquals(Math.PI / 2, headings[1] / counts[1], 0.15);
+        double length = reckoning.getDistance() / reckoning.getSteps();
+        assertTrue(length > 0.5 && length < 0.9);
+    }
+
+    @Test
+    public void replaysDeviceLogs() throws Exception {
+        URL folder = DeadReckoningTest.class.getResource("/sensors");
+        Assume.assumeTrue(folder != null);
+        File[] logs = new File(folder.toURI()).listFiles();
+        Assume.assumeTrue(logs != null && logs.length > 0);
+        for (File file : logs){
+            final long[] times = {Long.MAX_VALUE, Long.MIN_VALUE};
+            DeadReckoning reckoning = new DeadReckoning();
+            reckoning.setListener(new DeadReckoning.Listener() {
+                @Override
+                public void onStep(long time, double length, double heading) {
+                    times[0] = Math.min(times[0], time);
+                    times[1] = Math.max(times[1], time);
+                    assertTrue(length >= DeadReckoning.MIN_LENGTH && length <= DeadReckoning.MAX_LENGTH);
+                    assertTrue(Math.abs(heading) <= Math.PI);
+                }
+            });
+            SensorLog.Reader reader = new SensorLog.Reader(new FileInputStream(file));
+            SensorLog.replay(reader, reckoning, 100);
+            reader.close();
+
+            // A walk is recorded, so there are steps, and never more than 4 a second
+            assertTrue(file.getName(), reckoning.getSteps() > 0);
+            assertTrue(file.getName(), reckoning.getSteps() <= 1 + 4 * (times[1] - times[0]) / 1000);
+            assertEquals(file.getName(), 0, reckoning.getDropped());
+        }
+    }
+
+    @Test
+    public void ringKeepsNewestSamples() {
+        SampleRing ring = new SampleRing(5);
+        assertEquals(8, ring.capacity());
+        for (int i = 0; i < 10; i++){
+            ring.add(i, i, -i, 2 * i);
+        }
+        assertEquals(8, ring.size());
+        assertEquals(2, ring.getDropped());
+        for (int i = 2; i < 10; i++){
+            assertEquals(i, ring.time());
+            assertEquals(-i, ring.y(), 0);
+            ring.remove();
+        }
+        assertEquals(0, ring.size());
+        ring.remove();
+        assertEquals(0, ring.size());
+    }
+}
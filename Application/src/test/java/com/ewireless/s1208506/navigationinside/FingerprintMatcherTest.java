@@ -0,0 +1,363 @@
+package com.ewireless.s1208506.navigationinside;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the indexed matcher picks exactly the same reference point as a walk through the
+ * full database, on randomly generated surveys and scans.
+ */
+public class FingerprintMatcherTest {
+
+    private static final int NUM_ACCESS_POINTS = 40;
+
+    private static long bssid(int ap){
+        return MacAddress.parse(String.format("00:11:22:33:%02x:%02x", ap / 256, ap % 256));
+    }
+
+    private static LocData randomPoint(Random random, int uid){
+        LocData point = new LocData();
+        point.uid = uid;
+        point.latitude = 55.92 + random.nextDouble() * 0.01;
+        point.longitude = -3.17 + random.nextDouble() * 0.01;
+        // Fingerprints of varying length, as the number of access points heard varies
+        int count = 1 + random.nextInt(LocData.DEFAULT_MAX_ACCESS_POINTS);
+        point.BSSIDs = new long[count];
+        point.dBs = new int[count];
+        for (int i = 0; i < count; i++){
+            point.BSSIDs[i] = bssid(random.nextInt(NUM_ACCESS_POINTS));
+            point.dBs[i] = -30 - random.nextInt(65);
+        }
+        return point;
+    }
+
+    private static void assertSameMatch(FingerprintMatcher.Match expected, FingerprintMatcher.Match actual){
+        if (expected == null){
+            assertNull(actual);
+            return;
+        }
+        assertNotNull(actual);
+        assertSame(expected.point, actual.point);
+        assertEquals(expected.score, actual.score);
+        assertEquals(expected.error, actual.error);
+    }
+
+    @Test
+    public void indexedMatchesLinearScan() throws Exception {
+        Random random = new Random(1208506);
+        List<LocData> dataB = new ArrayList<>();
+        FingerprintIndex index = new FingerprintIndex();
+        FingerprintMatrix matrix = new FingerprintMatrix();
+        FingerprintMatrix.Scorer scorer = matrix.newScorer();
+
+        for (int uid = 0; uid < 2000; uid++){
+            LocData point = randomPoint(random, uid);
+            dataB.add(point);
+            // Built incrementally, as the FingerprintModel does
+            index.add(point);
+            matrix.add(point);
+
+            if (uid % 50 == 0){
+                for (int scan = 0; scan < 20; scan++){
+                    long[] BSSIDs = new long[FingerprintMatcher.WEIGHTS.length];
+                    int[] dBs = new int[FingerprintMatcher.WEIGHTS.length];
+                    // Include scans that share nothing with the survey, and short scans
+                    int found = random.nextInt(4);
+                    for (int i = 0; i < found; i++){
+                        BSSIDs[i] = bssid(random.nextInt(NUM_ACCESS_POINTS * 2));
+                        dBs[i] = -30 - random.nextInt(65);
+                    }
+                    FingerprintMatcher.Match expected = FingerprintMatcher.matchLinear(dataB, BSSIDs, dBs);
+                    assertSameMatch(expected,
+                            FingerprintMatcher.matchIndexed(index, scorer, BSSIDs, dBs));
+
+                    // A full pass over the packed matrix must agree too
+                    int row = scorer.match(BSSIDs, dBs);
+                    assertEquals(expected.point.uid, matrix.uid(row));
+                    assertEquals(expected.score, scorer.bestScore);
+                    assertEquals(expected.error, scorer.bestError);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void rebuildGivesSameIndex() throws Exception {
+        Random random = new Random(42);
+        List<LocData> dataB = new ArrayList<>();
+        for (int uid = 0; uid < 500; uid++){
+            dataB.add(randomPoint(random, uid));
+        }
+        FingerprintIndex index = new FingerprintIndex();
+        index.rebuild(dataB);
+        assertEquals(dataB.size(), index.size());
+        FingerprintMatrix matrix = FingerprintMatrix.from(dataB);
+        assertEquals(dataB.size(), matrix.size());
+
+        long[] BSSIDs = {bssid(3), bssid(7), bssid(11)};
+        int[] dBs = {-45, -60, -72};
+        assertSameMatch(FingerprintMatcher.matchLinear(dataB, BSSIDs, dBs),
+                FingerprintMatcher.matchIndexed(index, matrix.newScorer(), BSSIDs, dBs));
+    }
+
+    @Test
+    public void paddingNeverMatches() throws Exception {
+        // A point which heard only 2 access points, padded out with NONE as it is stored
+        LocData padded = new LocData();
+        padded.uid = 1;
+        padded.BSSIDs = new long[]{bssid(1), bssid(2), MacAddress.NONE};
+        padded.dBs = new int[]{-50, -60, 0};
+        LocData far = new LocData();
+        far.uid = 2;
+        far.BSSIDs = new long[]{bssid(3), bssid(4), bssid(5)};
+        far.dBs = new int[]{-40, -60, -70};
+        List<LocData> dataB = Arrays.asList(padded, far);
+        FingerprintIndex index = new FingerprintIndex();
+        index.rebuild(dataB);
+        FingerprintMatrix matrix = FingerprintMatrix.from(dataB);
+
+        // A short live scan with an access point which is in no reference point, and padding
+        long[] BSSIDs = {bssid(3), bssid(39), MacAddress.NONE};
+        int[] dBs = {-95, -55, 0};
+        FingerprintMatcher.Match expected = FingerprintMatcher.matchLinear(dataB, BSSIDs, dBs);
+        assertEquals(2, expected.point.uid);
+        assertEquals(45, expected.score);
+        assertSameMatch(expected, FingerprintMatcher.matchIndexed(index, matrix.newScorer(), BSSIDs, dBs));
+
+        FingerprintMatrix.Scorer scorer = matrix.newScorer();
+        assertEquals(1, scorer.match(BSSIDs, dBs));
+        assertEquals(expected.score, scorer.bestScore);
+        scorer.score(0);
+        assertEquals(0, scorer.lastError);
+        assertEquals(0, scorer.score(0));
+    }
+
+    @Test
+    public void emptyDatabaseHasNoMatch() throws Exception {
+        long[] BSSIDs = {bssid(1), MacAddress.NONE, MacAddress.NONE};
+        int[] dBs = {-50, 0, 0};
+        assertNull(FingerprintMatcher.matchLinear(new ArrayList<LocData>(), BSSIDs, dBs));
+        assertNull(FingerprintMatcher.matchIndexed(new FingerprintIndex(),
+                new FingerprintMatrix().newScorer(), BSSIDs, dBs));
+        assertEquals(-1, new FingerprintMatrix().newScorer().match(BSSIDs, dBs));
+    }
+
+    @Test
+    public void scanFrameGivesStrongestFirst() throws Exception {
+        long[] scanBSSIDs = {bssid(1), bssid(2), bssid(3), bssid(4)};
+        int[] scanLevels = {-70, -40, -90, -40};
+        ScanFrame frame = new ScanFrame(scanBSSIDs, scanLevels, 4);
+
+        long[] BSSIDs = new long[3];
+        int[] dBs = new int[3];
+        assertEquals(3, frame.top(BSSIDs, dBs));
+        assertArrayEquals(new long[]{bssid(2), bssid(4), bssid(1)}, BSSIDs);
+        assertArrayEquals(new int[]{-40, -40, -70}, dBs);
+
+        BSSIDs = new long[6];
+        dBs = new int[6];
+        assertEquals(4, frame.top(BSSIDs, dBs));
+        assertEquals(bssid(3), BSSIDs[3]);
+        assertEquals(MacAddress.NONE, BSSIDs[4]);
+        assertEquals(0, dBs[5]);
+    }
+
+    @Test
+    public void accessPointRowsRoundTrip() throws Exception {
+        Random random = new Random(7);
+        List<LocData> stored = new ArrayList<>();
+        List<LocAccessPoint> rows = new ArrayList<>();
+        for (int uid = 0; uid < 50; uid++){
+            LocData point = randomPoint(random, uid);
+            // Points with no access points at all must survive too
+            if (uid % 10 == 0){
+                point.BSSIDs = new long[0];
+                point.dBs = new int[0];
+            }
+            stored.add(point);
+            rows.addAll(point.toAccessPoints());
+        }
+
+        List<LocData> loaded = new ArrayList<>();
+        for (LocData point : stored){
+            LocData copy = new LocData();
+            copy.uid = point.uid;
+            loaded.add(copy);
+        }
+        LocData.attachAccessPoints(loaded, rows);
+
+        for (int i = 0; i < stored.size(); i++){
+            assertArrayEquals(stored.get(i).BSSIDs, loaded.get(i).BSSIDs);
+            assertArrayEquals(stored.get(i).dBs, loaded.get(i).dBs);
+        }
+    }
+
+    @Test
+    public void topKHeapKeepsBestRows() throws Exception {
+        Random random = new Random(3);
+        final int[] scores = new int[500];
+        TopKHeap heap = new TopKHeap(5);
+        for (int row = 0; row < scores.length; row++){
+            scores[row] = random.nextInt(50);
+            heap.offer(row, scores[row]);
+        }
+
+        // Sort the rows best first, earlier rows winning ties, and compare the first 5
+        Integer[] order = new Integer[scores.length];
+        for (int row = 0; row < order.length; row++){
+            order[row] = row;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return scores[a] != scores[b] ? scores[b] - scores[a] : a - b;
+            }
+        });
+        int[] expected = new int[5];
+        int[] actual = new int[5];
+        for (int i = 0; i < 5; i++){
+            expected[i] = order[i];
+            actual[i] = heap.row(i);
+        }
+        Arrays.sort(expected);
+        Arrays.sort(actual);
+        assertArrayEquals(expected, actual);
+    }
+
+    @Test
+    public void knnCentroidOfNeighbours() throws Exception {
+        Random random = new Random(11);
+        List<LocData> dataB = new ArrayList<>();
+        for (int uid = 0; uid < 300; uid++){
+            dataB.add(randomPoint(random, uid));
+        }
+        FingerprintIndex index = new FingerprintIndex();
+        index.rebuild(dataB);
+        FingerprintMatrix matrix = FingerprintMatrix.from(dataB);
+        FingerprintMatrix.Scorer scorer = matrix.newScorer();
+
+        long[] BSSIDs = {bssid(3), bssid(7), bssid(11)};
+        int[] dBs = {-45, -60, -72};
+        FingerprintMatcher.Match nearest = FingerprintMatcher.matchIndexed(index, scorer, BSSIDs, dBs);
+
+        // With k = 1 the estimate is exactly the nearest point
+        PositionEstimate estimate = new PositionEstimate();
+        assertTrue(FingerprintMatcher.matchKnn(index, scorer, BSSIDs, dBs, 1, estimate));
+        assertEquals(nearest.point.uid, estimate.uid);
+        assertEquals(nearest.point.latitude, estimate.latitude, 1e-12);
+        assertEquals(nearest.point.longitude, estimate.longitude, 1e-12);
+        assertEquals(0.0, estimate.spread, 1e-9);
+
+        // With more neighbours the centroid lies within their bounding box
+        assertTrue(FingerprintMatcher.matchKnn(index, scorer, BSSIDs, dBs, 5, estimate));
+        assertEquals(5, estimate.count);
+        assertEquals(nearest.point.uid, estimate.uid);
+        TopKHeap heap = scorer.getTopK();
+        double minLat = 90, maxLat = -90;
+        for (int i = 0; i < heap.size(); i++){
+            minLat = Math.min(minLat, matrix.latitude(heap.row(i)));
+            maxLat = Math.max(maxLat, matrix.latitude(heap.row(i)));
+        }
+        assertTrue(estimate.latitude >= minLat && estimate.latitude <= maxLat);
+        assertTrue(estimate.spread > 0);
+
+        // A scan sharing nothing with the survey gives no estimate
+        long[] unknown = {bssid(999), MacAddress.NONE, MacAddress.NONE};
+        assertFalse(FingerprintMatcher.matchKnn(index, scorer, unknown, dBs, 5, estimate));
+    }
+
+    @Test
+    public void parallelMatchesSequential() throws Exception {
+        Random random = new Random(99);
+        List<LocData> dataB = new ArrayList<>();
+        for (int uid = 0; uid < 3000; uid++){
+            dataB.add(randomPoint(random, uid));
+        }
+        FingerprintIndex index = new FingerprintIndex();
+        index.rebuild(dataB);
+        FingerprintMatrix matrix = FingerprintMatrix.from(dataB);
+        FingerprintMatrix.Scorer scorer = matrix.newScorer();
+
+        // A threshold of 0 forces the parallel path even for a small survey
+        ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            ParallelMatcher matcher = new ParallelMatcher(matrix, pool, 0);
+            PositionEstimate expected = new PositionEstimate();
+            PositionEstimate actual = new PositionEstimate();
+            for (int scan = 0; scan < 50; scan++){
+                long[] BSSIDs = new long[FingerprintMatcher.WEIGHTS.length];
+                int[] dBs = new int[FingerprintMatcher.WEIGHTS.length];
+                int found = random.nextInt(4);
+                for (int i = 0; i < found; i++){
+                    BSSIDs[i] = bssid(random.nextInt(NUM_ACCESS_POINTS * 2));
+                    dBs[i] = -30 - random.nextInt(65);
+                }
+                assertSameMatch(FingerprintMatcher.matchLinear(dataB, BSSIDs, dBs),
+                        FingerprintMatcher.matchIndexed(index, matcher, BSSIDs, dBs));
+
+                assertEquals(scorer.match(BSSIDs, dBs), matcher.match(BSSIDs, dBs, null));
+                assertEquals(scorer.bestScore, matcher.bestScore);
+                assertEquals(scorer.bestError, matcher.bestError);
+
+                boolean matched = FingerprintMatcher.matchKnn(index, scorer, BSSIDs, dBs, 4, expected);
+                assertEquals(matched, FingerprintMatcher.matchKnn(index, matcher, BSSIDs, dBs, 4, actual));
+                if (matched){
+                    assertEquals(expected.uid, actual.uid);
+                    assertEquals(expected.latitude, actual.latitude, 1e-12);
+                    assertEquals(expected.longitude, actual.longitude, 1e-12);
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void candidatesFromDatabaseMatchIndexed() throws Exception {
+        Random random = new Random(13);
+        List<LocData> dataB = new ArrayList<>();
+        for (int uid = 0; uid < 1000; uid++){
+            dataB.add(randomPoint(random, uid));
+        }
+        FingerprintIndex index = new FingerprintIndex();
+        index.rebuild(dataB);
+        FingerprintMatrix.Scorer scorer = FingerprintMatrix.from(dataB).newScorer();
+
+        for (int scan = 0; scan < 100; scan++){
+            long[] BSSIDs = new long[FingerprintMatcher.WEIGHTS.length];
+            int[] dBs = new int[FingerprintMatcher.WEIGHTS.length];
+            for (int i = 0; i < BSSIDs.length; i++){
+                BSSIDs[i] = bssid(random.nextInt(NUM_ACCESS_POINTS * 2));
+                dBs[i] = -30 - random.nextInt(65);
+            }
+            // The rows LocDao.getCandidates() returns: every point that heard one of the BSSIDs
+            List<LocData> candidates = new ArrayList<>();
+            for (LocData point : dataB){
+                boolean heard = false;
+                for (long BSSID : point.BSSIDs){
+                    heard |= BSSID == BSSIDs[0] || BSSID == BSSIDs[1] || BSSID == BSSIDs[2];
+                }
+                if (heard){
+                    candidates.add(point);
+                }
+            }
+
+            FingerprintMatcher.Match expected = FingerprintMatcher.matchIndexed(index, scorer, BSSIDs, dBs);
+            FingerprintMatcher.Match cold = FingerprintMatcher.matchLinear(candidates, BSSIDs, dBs);
+            if (expected.score > 0){
+                assertSameMatch(expected, cold);
+            }
+            else {
+                assertTrue(cold == null || cold.score <= 0);
+            }
+        }
+    }
+}
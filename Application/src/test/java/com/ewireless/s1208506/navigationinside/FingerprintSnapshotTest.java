@@ -0,0 +1,153 @@
+package com.ewireless.s1208506.navigationinside;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that a snapshot scores exactly as the matrix it was written from, and that damaged
+ * snapshots are refused.
+ */
+public class FingerprintSnapshotTest {
+
+    private static FingerprintMatrix randomMatrix(Random random, int points){
+        FingerprintMatrix matrix = new FingerprintMatrix();
+        for (int uid = 1; uid <= points; uid++){
+            LocData point = new LocData();
+            point.uid = uid;
+            point.latitude = 55.92 + random.nextDouble() * 0.01;
+            point.longitude = -3.17 + random.nextDouble() * 0.01;
+            int count = random.nextInt(LocData.DEFAULT_MAX_ACCESS_POINTS + 1);
+            point.BSSIDs = new long[count];
+            point.dBs = new int[count];
+            for (int i = 0; i < count; i++){
+                point.BSSIDs[i] = 0x001122000000L + random.nextInt(60);
+                point.dBs[i] = -30 - random.nextInt(65);
+            }
+            matrix.add(point);
+        }
+        return matrix;
+    }
+
+    private static void assertSameScores(FingerprintMatrix matrix, FingerprintSnapshot snapshot, Random random){
+        assertEquals(matrix.size(), snapshot.size());
+        FingerprintMatrix.Scorer scorer = matrix.newScorer();
+        for (int scan = 0; scan < 50; scan++){
+            long[] BSSIDs = new long[FingerprintMatcher.WEIGHTS.length];
+            int[] dBs = new int[FingerprintMatcher.WEIGHTS.length];
+            int found = random.nextInt(4);
+            for (int i = 0; i < found; i++){
+                BSSIDs[i] = 0x001122000000L + random.nextInt(80);
+                dBs[i] = -30 - random.nextInt(65);
+            }
+            int row = scorer.match(BSSIDs, dBs);
+            FingerprintMatcher.Match match = snapshot.match(BSSIDs, dBs);
+            assertEquals(matrix.uid(row), match.point.uid);
+            assertEquals(matrix.latitude(row), match.point.latitude, 0);
+            assertEquals(scorer.bestScore, match.score);
+            assertEquals(scorer.bestError, match.error);
+        }
+    }
+
+    @Test
+    public void snapshotScoresAsMatrix() throws Exception {
+        Random random = new Random(17);
+        FingerprintMatrix matrix = randomMatrix(random, 1500);
+        assertSameScores(matrix, FingerprintSnapshot.wrap(FingerprintSnapshot.toBytes(matrix)), random);
+    }
+
+    @Test
+    public void mappedFileRoundTrip() throws Exception {
+        Random random = new Random(23);
+        FingerprintMatrix matrix = randomMatrix(random, 300);
+        File file = File.createTempFile("fingerprints", ".snapshot");
+        try {
+            FingerprintSnapshot.write(matrix, file);
+            assertSameScores(matrix, FingerprintSnapshot.open(file), random);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void emptySnapshotHasNoMatch() throws Exception {
+        FingerprintSnapshot snapshot = FingerprintSnapshot.wrap(FingerprintSnapshot.toBytes(new FingerprintMatrix()));
+        assertEquals(0, snapshot.size());
+        assertNull(snapshot.match(new long[]{1L, 0L, 0L}, new int[]{-50, 0, 0}));
+    }
+
+    @Test
+    public void paddingNeverMatches() throws Exception {
+        LocData padded = new LocData();
+        padded.uid = 1;
+        padded.BSSIDs = new long[]{0x001122000001L, 0x001122000002L, MacAddress.NONE};
+        padded.dBs = new int[]{-50, -60, 0};
+        LocData far = new LocData();
+        far.uid = 2;
+        far.BSSIDs = new long[]{0x001122000003L, 0x001122000004L, 0x001122000005L};
+        far.dBs = new int[]{-40, -60, -70};
+        FingerprintMatrix matrix = FingerprintMatrix.from(Arrays.asList(padded, far));
+        long[] BSSIDs = {0x001122000003L, 0x001122000099L, MacAddress.NONE};
+        int[] dBs = {-95, -55, 0};
+
+        FingerprintMatcher.Match expected = FingerprintMatcher.matchLinear(Arrays.asList(padded, far), BSSIDs, dBs);
+        FingerprintMatcher.Match match = FingerprintSnapshot.wrap(FingerprintSnapshot.toBytes(matrix)).match(BSSIDs, dBs);
+        assertEquals(expected.point.uid, match.point.uid);
+        assertEquals(expected.score, match.score);
+
+        // A snapshot written before the padding was dropped holds it as a MISSING entry
+        ByteBuffer buffer = ByteBuffer.allocate(32 + 8 * 5 + 16 * 2 + 4 * 2 + 4 * 3 + 4 * 6 + 6);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(FingerprintSnapshot.MAGIC).putInt(FingerprintSnapshot.VERSION).putInt(2).putInt(5)
+                .putInt(6).putInt(0).putLong(0);
+        for (int ap = 1; ap <= 5; ap++){
+            buffer.putLong(0x001122000000L + ap);
+        }
+        buffer.putDouble(55.92).putDouble(55.93).putDouble(-3.17).putDouble(-3.18);
+        buffer.putInt(1).putInt(2);
+        buffer.putInt(0).putInt(3).putInt(6);
+        buffer.putInt(0).putInt(1).putInt(BssidDictionary.MISSING).putInt(2).putInt(3).putInt(4);
+        buffer.put(new byte[]{-50, -60, 0, -40, -60, -70});
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 32, buffer.capacity() - 32);
+        buffer.putLong(24, crc.getValue());
+        match = FingerprintSnapshot.wrap(buffer.array()).match(BSSIDs, dBs);
+        assertEquals(expected.point.uid, match.point.uid);
+        assertEquals(expected.score, match.score);
+        assertEquals(expected.error, match.error);
+    }
+
+    @Test
+    public void damagedSnapshotRefused() throws Exception {
+        byte[] bytes = FingerprintSnapshot.toBytes(randomMatrix(new Random(29), 100));
+
+        byte[] corrupt = bytes.clone();
+        corrupt[corrupt.length - 5] ^= 1;
+        assertRefused(corrupt);
+
+        byte[] truncated = new byte[bytes.length - 1];
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+        assertRefused(truncated);
+
+        byte[] wrongMagic = bytes.clone();
+        wrongMagic[0] ^= 1;
+        assertRefused(wrongMagic);
+    }
+
+    private static void assertRefused(byte[] bytes){
+        try {
+            FingerprintSnapshot.wrap(bytes);
+            fail("Damaged snapshot was opened");
+        } catch (IOException expected){
+            // Refused as it should be
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.ewireless.s1208506.navigationinside;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the GaussianModel combines repeated scans of a location, so that one noisy scan does
+ * not become a reference point of its own, and that its table lookups give the log-likelihood.
+ */
+public class GaussianModelTest {
+
+    private static final double LATITUDE = 55.92251;
+    private static final double LONGITUDE = -3.17221;
+    private static final long AP1 = 0x001122000001L;
+    private static final long AP2 = 0x001122000002L;
+    private static final long AP3 = 0x001122000003L;
+
+    private static LocData point(int uid, double metresNorth, int level1, int level2){
+        LocData point = new LocData();
+        point.uid = uid;
+        point.latitude = LATITUDE + metresNorth / PositionEstimate.METRES_PER_DEGREE;
+        point.longitude = LONGITUDE;
+        point.BSSIDs = new long[]{AP1, AP2};
+        point.dBs = new int[]{level1, level2};
+        return point;
+    }
+
+    private static ScanFrame scan(long[] BSSIDs, int[] levels){
+        return new ScanFrame(BSSIDs, levels, BSSIDs.length);
+    }
+
+    @Test
+    public void noisyScanDoesNotBecomeLocation() {
+        // Four steady scans and one outlier in one place, four steady scans 10 m north
+        List<LocData> points = new ArrayList<>();
+        points.add(point(1, 0, -50, -60));
+        points.add(point(2, 0, -51, -60));
+        points.add(point(3, 0, -75, -60));
+        points.add(point(4, 0, -49, -60));
+        points.add(point(5, 0, -50, -60));
+        for (int uid = 6; uid <= 9; uid++){
+            points.add(point(uid, 10, -75, -60));
+        }
+        GaussianModel model = new GaussianModel();
+        for (LocData point : points){
+            model.add(point);
+        }
+        assertEquals(2, model.size());
+
+        long[] BSSIDs = {AP1, AP2};
+        int[] levels = {-75, -60};
+        // The nearest point search takes the outlier, which matches exactly
+        assertEquals(3, FingerprintMatcher.matchLinear(points, BSSIDs, levels).point.uid);
+
+        // The Gaussian model knows the southern location is rarely heard at -75
+        PositionEstimate estimate = new PositionEstimate();
+        assertTrue(model.match(scan(BSSIDs, levels), estimate));
+        assertEquals(6, estimate.uid);
+        assertEquals(4, estimate.count);
+        assertEquals(points.get(5).latitude, estimate.latitude, 1e-9);
+
+        assertTrue(model.match(scan(BSSIDs, new int[]{-50, -60}), estimate));
+        assertEquals(1, estimate.uid);
+        assertEquals(5, estimate.count);
+        assertEquals(LATITUDE, estimate.latitude, 1e-9);
+
+        model.clear();
+        assertEquals(0, model.size());
+        assertFalse(model.match(scan(BSSIDs, levels), estimate));
+    }
+
+    @Test
+    public void scoreIsLogLikelihood() {
+        LocData point = new LocData();
+        point.uid = 1;
+        point.latitude = LATITUDE;
+        point.longitude = LONGITUDE;
+        point.BSSIDs = new long[]{AP1};
+        point.dBs = new int[]{-50};
+        GaussianModel model = new GaussianModel();
+        model.add(point);
+
+        // AP1 3 dB from its mean, and AP3 which the location has never heard
+        PositionEstimate estimate = new PositionEstimate();
+        assertTrue(model.match(scan(new long[]{AP3, AP1}, new int[]{-70, -53}), estimate));
+
+        // One scan heard AP1, smoothed to 2 in 3, with the spread of the prior alone
+        double present = 2.0 / 3;
+        double sigma = GaussianModel.PRIOR_SIGMA;
+        double expected = Math.log(present)
+                - 0.5 * (3 / sigma) * (3 / sigma) - Math.log(sigma) - 0.5 * Math.log(2 * Math.PI)
+                + GaussianModel.LOG_UNHEARD;
+        assertEquals(Math.round(expected), estimate.score);
+    }
+}
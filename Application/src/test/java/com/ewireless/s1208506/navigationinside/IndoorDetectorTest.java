@@ -0,0 +1,131 @@
+package com.ewireless.s1208506.navigationinside;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Walks into a surveyed building and out again, checking the IndoorDetector switches mode soon
+ * after each doorway but not back and forth while standing in one.
+ */
+public class IndoorDetectorTest {
+
+    @Test
+    public void switchesWithHysteresis() {
+        IndoorDetector detector = new IndoorDetector();
+        assertFalse(detector.isInside());
+
+        // Outside: tight GPS fixes and scans hearing a couple of the building's access points
+        for (int i = 0; i < 20; i++){
+            assertFalse(detector.onLocation(6));
+            assertFalse(detector.onScan(12, i % 3));
+        }
+        assertEquals(-IndoorDetector.LIMIT, detector.getEvidence(), 1e-9);
+
+        // In the doorway the evidence goes both ways, and the mode stays put
+        for (int i = 0; i < 20; i++){
+            detector.onScan(15, 4);
+            detector.onLocation(15);
+            assertFalse(detector.isInside());
+        }
+
+        // Inside: the fixes fall apart and the scans are all of the survey
+        int changed = -1;
+        for (int i = 0; i < 20 && changed < 0; i++){
+            detector.onLocation(60);
+            detector.onScan(20, 18);
+            if (detector.isInside()){
+                changed = i;
+            }
+        }
+        assertTrue(detector.isInside());
+        assertTrue(changed >= 3 && changed <= 8);
+
+        // Confident matches keep it inside, even with a scan hearing little
+        for (int i = 0; i < 20; i++){
+            assertFalse(detector.onScan(20, 16));
+            assertFalse(detector.onMatch(true, 4));
+        }
+        assertFalse(detector.onScan(3, 1));
+        assertTrue(detector.isInside());
+
+        // Out of the door the matches go and the scans stop hearing the survey
+        changed = -1;
+        for (int i = 0; i < 20 && changed < 0; i++){
+            detector.onScan(10, 1);
+            detector.onMatch(false, 0);
+            if (!detector.isInside()){
+                changed = i;
+            }
+        }
+        assertFalse(detector.isInside());
+        assertTrue(changed >= 2 && changed <= 6);
+
+        // Nothing heard says nothing, and setting the mode by hand holds it
+        assertFalse(detector.onScan(0, 0));
+        detector.setInside(true);
+        assertTrue(detector.isInside());
+        assertFalse(detector.onMatch(true, 30));
+        assertTrue(detector.isInside());
+    }
+
+    @Test
+    public void weighsPointMatchesByTheirError() {
+        // A close match is confident, a loose one or one sharing no access point counts against
+        assertTrue(IndoorDetector.matchSpread(180, 4) <= IndoorDetector.GOOD_MATCH);
+        assertTrue(IndoorDetector.matchSpread(120, 60) > IndoorDetector.POOR_MATCH);
+        assertTrue(IndoorDetector.matchSpread(0, 0) > IndoorDetector.POOR_MATCH);
+
+        IndoorDetector detector = new IndoorDetector();
+        detector.setInside(true);
+        for (int i = 0; i < 20; i++){
+            detector.onMatch(true, IndoorDetector.matchSpread(40, 70));
+        }
+        assertFalse(detector.isInside());
+    }
+
+    @Test
+    public void weighsGaussianMatchesByTheirFit() {
+        SyntheticBuilding building = new SyntheticBuilding(60, 30, 20, 8, 4.0, 7);
+        GaussianModel model = new GaussianModel();
+        for (LocData point : building.survey(20, 1.3, 1500)){
+            model.add(point);
+        }
+        PositionEstimate estimate = new PositionEstimate();
+        assertTrue(model.match(building.scan(30, 15), estimate));
+        assertTrue(estimate.spread <= IndoorDetector.GOOD_MATCH);
+
+        // Out beyond the walls every cell fits the scan badly, so the best is no confident match
+        IndoorDetector detector = new IndoorDetector();
+        detector.setInside(true);
+        double[][] outside = {{-40, 15}, {30, -30}, {90, 15}};
+        for (int i = 0; i < 12; i++){
+            double[] at = outside[i % outside.length];
+            assertTrue(model.match(building.scan(at[0], at[1]), estimate));
+            assertTrue(estimate.spread > IndoorDetector.POOR_MATCH);
+            detector.onMatch(true, estimate.spread);
+        }
+        assertFalse(detector.isInside());
+    }
+
+    @Test
+    public void countsKnownAccessPoints() {
+        SyntheticBuilding building = new SyntheticBuilding(60, 30, 20, 8, 4.0, 7);
+        List<LocData> points = building.survey(20, 1.3, 1500);
+        GaussianModel model = new GaussianModel();
+        ScanFrame scan = building.scan(30, 15);
+        assertEquals(0, model.countKnown(scan));
+        for (LocData point : points){
+            model.add(point);
+        }
+        assertTrue(scan.size > 0);
+        assertEquals(scan.size, model.countKnown(scan));
+
+        ScanFrame outside = new ScanFrame(new long[]{MacAddress.parse("02:00:00:00:00:01"),
+                SyntheticBuilding.bssid(0), MacAddress.parse("02:00:00:00:00:02")},
+                new int[]{-50, -80, -60}, 3);
+        assertEquals(1, model.countKnown(outside));
+    }
+}
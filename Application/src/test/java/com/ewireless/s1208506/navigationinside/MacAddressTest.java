@@ -0,0 +1,29 @@
+package com.ewireless.s1208506.navigationinside;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the conversion of BSSIDs between their String and 48-bit long forms
+ */
+public class MacAddressTest {
+
+    @Test
+    public void parseAndFormatRoundTrip() throws Exception {
+        long value = MacAddress.parse("00:1A:2b:3C:4d:FF");
+        assertEquals(0x001A2B3C4DFFL, value);
+        assertEquals("00:1a:2b:3c:4d:ff", MacAddress.format(value));
+        assertEquals(0xFFFFFFFFFFFFL, MacAddress.parse("ff-ff-ff-ff-ff-ff"));
+    }
+
+    @Test
+    public void missingOrMalformedIsNone() throws Exception {
+        assertEquals(MacAddress.NONE, MacAddress.parse(null));
+        assertEquals(MacAddress.NONE, MacAddress.parse("NA"));
+        assertEquals(MacAddress.NONE, MacAddress.parse("00:11:22:33:44"));
+        assertEquals(MacAddress.NONE, MacAddress.parse("00:11:22:33:44:zz"));
+        assertEquals(MacAddress.NONE, MacAddress.parse("00.11.22.33.44.55"));
+        assertEquals("NA", MacAddress.format(MacAddress.NONE));
+    }
+}
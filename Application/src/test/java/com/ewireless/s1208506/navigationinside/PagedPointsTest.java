@@ -0,0 +1,107 @@
+package com.ewireless.s1208506.navigationinside;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.ewireless.s1208506.navigationinside.TestFixtures.DIRECT;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the Database tab's pages are read on demand, by keyset where possible, and that
+ * pages read before a refresh are never shown.
+ */
+public class PagedPointsTest {
+
+    // Stands in for the LocDao page queries, counting them
+    private static class ListSource implements PagedPoints.Source {
+        final List<LocData> all = new ArrayList<>();
+        int keysetReads = 0;
+        int offsetReads = 0;
+
+        @Override
+        public int count() {
+            return all.size();
+        }
+
+        @Override
+        public List<LocData> loadAfter(int afterUid, int limit) {
+            keysetReads++;
+            List<LocData> page = new ArrayList<>();
+            for (LocData point : all){
+                if (point.uid > afterUid && page.size() < limit){
+                    page.add(point);
+                }
+            }
+            return page;
+        }
+
+        @Override
+        public List<LocData> loadAt(int offset, int limit) {
+            offsetReads++;
+            return new ArrayList<>(all.subList(Math.min(offset, all.size()), Math.min(offset + limit, all.size())));
+        }
+    }
+
+    private static final PagedPoints.Listener IGNORED = new PagedPoints.Listener() {
+        @Override
+        public void onPagesChanged() {
+        }
+    };
+
+    private static ListSource source(int points){
+        ListSource source = new ListSource();
+        // Deleted rows leave gaps in the uids
+        for (int i = 0; i < points; i++){
+            LocData point = new LocData();
+            point.uid = 3 * i + 1;
+            source.all.add(point);
+        }
+        return source;
+    }
+
+    @Test
+    public void pagesReadOnDemandByKeyset() throws Exception {
+        ListSource source = source(100000);
+        PagedPoints pages = new PagedPoints(source, DIRECT, DIRECT, IGNORED);
+        pages.refresh();
+        assertEquals(100000, pages.getCount());
+
+        // Scrolling down the list reads each page once, following on from the one before
+        for (int position = 0; position < 10 * PagedPoints.PAGE_SIZE; position++){
+            if (pages.get(position) == null){
+                assertEquals(source.all.get(position).uid, pages.get(position).uid);
+            }
+            assertSame(source.all.get(position), pages.get(position));
+        }
+        assertEquals(1, source.offsetReads);
+        assertEquals(9, source.keysetReads);
+        assertEquals(PagedPoints.MAX_PAGES, pages.getPagesHeld());
+
+        // Jumping far down reads that page by its offset
+        assertNull(pages.get(77777));
+        assertSame(source.all.get(77777), pages.get(77777));
+        assertEquals(2, source.offsetReads);
+    }
+
+    @Test
+    public void pagesFromBeforeRefreshDropped() throws Exception {
+        ListSource source = source(500);
+        TestFixtures.QueuedExecutor background = new TestFixtures.QueuedExecutor();
+        PagedPoints pages = new PagedPoints(source, background, DIRECT, IGNORED);
+        pages.refresh();
+        background.run();
+        assertNull(pages.get(0));
+        // Asking again while the page is being read does not read it twice
+        assertNull(pages.get(1));
+        assertEquals(1, background.queued.size());
+
+        // The table is cleared before the page arrives
+        source.all.clear();
+        pages.refresh();
+        background.run();
+        assertEquals(0, pages.getCount());
+        assertEquals(0, pages.getPagesHeld());
+    }
+}
@@ -0,0 +1,235 @@
+package com.ewireless.s1208506.navigationinside;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the systematic resampler and that the ParticleFilter follows a simulated walk while
+ * scoring only the part of the survey around the user, more closely still when given the steps of
+ * the user between scans.
+ */
+public class ParticleFilterTest {
+
+    @Test
+    public void systematicResamplingFollowsWeights() {
+        double[] weights = {0, 1, 0, 3};
+        int[] chosen = new int[4];
+        for (double offset : new double[]{0, 0.25, 0.5, 0.999}){
+            ParticleFilter.systematic(weights, 4, 4, offset, chosen);
+            assertArrayEquals(new int[]{1, 3, 3, 3}, chosen);
+        }
+
+        // Every particle within one draw of its share
+        weights = new double[]{0.1, 0.7, 0.2, 1.5, 0.5};
+        chosen = new int[5];
+        ParticleFilter.systematic(weights, 5, 3.0, 0.37, chosen);
+        int[] counts = new int[5];
+        for (int j : chosen){
+            counts[j]++;
+        }
+        for (int j = 0; j < 5; j++){
+            assertTrue(Math.abs(counts[j] - 5 * weights[j] / 3.0) < 1);
+        }
+    }
+
+    @Test
+    public void tracksWalkScoringNearbyCells() {
+        SyntheticBuilding building = new SyntheticBuilding(80, 40, 25, 12, 4.0, 99);
+        List<LocData> points = building.survey(60, 1.3, 1500);
+        List<SyntheticBuilding.TraceScan> trace = building.trace(6, 1.3, 1500);
+        GaussianModel model = new GaussianModel();
+        for (LocData point : points){
+            model.add(point);
+        }
+
+        ParticleFilter tracker = new ParticleFilter(model, 500, 1);
+        PositionEstimate estimate = new PositionEstimate();
+        double totalError = 0;
+        int settled = 0;
+        int firstScored = 0;
+        for (int i = 0; i < trace.size(); i++){
+            SyntheticBuilding.TraceScan scan = trace.get(i);
+            assertTrue(tracker.update(scan.scan, scan.time, estimate));
+            if (i == 0){
+                // The first scan scores cells all over the survey
+                firstScored = tracker.getCellsScored();
+            }
+            else if (i >= 5){
+                totalError += building.distance(scan.x, scan.y, estimate.latitude, estimate.longitude);
+                settled++;
+                assertTrue(tracker.getCellsScored() < firstScored / 2);
+            }
+        }
+        assertTrue(totalError / settled < 10);
+
+        // Changing the number of particles starts again from the whole survey
+        int settledScored = tracker.getCellsScored();
+        tracker.setParticles(2000);
+        assertEquals(2000, tracker.getParticles());
+        SyntheticBuilding.TraceScan last = trace.get(trace.size() - 1);
+        assertTrue(tracker.update(last.scan, last.time, estimate));
+        assertTrue(tracker.getCellsScored() > settledScored);
+    }
+
+    @Test
+    public void everyCellCanBeReached() {
+        // A survey every 0.8 m, so the cells' centroids do not sit on a grid of their own
+        GaussianModel model = new GaussianModel();
+        double lonScale = Math.cos(Math.toRadians(55.9225));
+        for (int i = 0; i < 40; i++){
+            for (int j = 0; j < 40; j++){
+                LocData point = new LocData();
+                point.uid = i * 40 + j;
+                point.latitude = 55.9225 + i * 0.8 / PositionEstimate.METRES_PER_DEGREE;
+                point.longitude = -3.1722 + j * 0.8 / (PositionEstimate.METRES_PER_DEGREE * lonScale);
+                point.BSSIDs = new long[]{SyntheticBuilding.bssid(0)};
+                point.dBs = new int[]{-60};
+                model.add(point);
+            }
+        }
+        ParticleFilter tracker = new ParticleFilter(model, 10, 1);
+        model.pack();
+        for (int cell = 0; cell < model.size(); cell++){
+            assertEquals(cell, tracker.cellOf(model.cellLatitude(cell), model.cellLongitude(cell)));
+        }
+        // Next to the survey counts as on it, further away does not
+        assertTrue(tracker.cellOf(55.9225 - 2 / PositionEstimate.METRES_PER_DEGREE, -3.1722) >= 0);
+        assertEquals(-1, tracker.cellOf(55.9225 - 10 / PositionEstimate.METRES_PER_DEGREE, -3.1722));
+    }
+
+    // A new one for each test, as it draws its surveys and walks from its own random numbers
+    private static SyntheticBuilding building(){
+        return new SyntheticBuilding(80, 40, 25, 12, 4.0, 3);
+    }
+
+    private static GaussianModel survey(SyntheticBuilding building){
+        GaussianModel model = new GaussianModel();
+        for (LocData point : building.survey(60, 1.3, 1500)){
+            model.add(point);
+        }
+        return model;
+    }
+
+    // A walk with throttled scans every 4 s
+    private static List<SyntheticBuilding.TraceScan> walk(SyntheticBuilding building){
+        return building.trace(6, 1.3, 4000);
+    }
+
+    /**
+     * Steps of about 0.7 m along the walk with a little error, spread evenly between the scans,
+     * their heading a radian off the survey's as it is measured from wherever the phone faced at
+     * the start
+     * @return the time, length and heading of each step
+     */
+    private static List<double[]> steps(List<SyntheticBuilding.TraceScan> trace){
+        Random random = new Random(1208506);
+        List<double[]> steps = new ArrayList<>();
+        for (int i = 1; i < trace.size(); i++){
+            SyntheticBuilding.TraceScan last = trace.get(i - 1);
+            SyntheticBuilding.TraceScan scan = trace.get(i);
+            double dx = scan.x - last.x;
+            double dy = scan.y - last.y;
+            double walked = Math.hypot(dx, dy);
+            int count = (int) Math.round(walked / 0.7);
+            for (int k = 0; k < count; k++){
+                steps.add(new double[]{last.time + (scan.time - last.time) * (k + 0.5) / count,
+                        walked / count * (1 + random.nextGaussian() * 0.1),
+                        Math.atan2(dx, dy) - 1 + random.nextGaussian() * 0.05});
+            }
+        }
+        return steps;
+    }
+
+    // Give the tracker the steps from next on taken up to the time, returning the next not given
+    private static int giveSteps(ParticleFilter tracker, List<double[]> steps, int next, long time){
+        while (next < steps.size() && steps.get(next)[0] <= time){
+            double[] step = steps.get(next++);
+            tracker.step((long) step[0], step[1], step[2]);
+        }
+        return next;
+    }
+
+    // The mean error of tracking the walk, with or without being given the steps between scans
+    private static double trackError(boolean deadReckoning){
+        SyntheticBuilding building = building();
+        GaussianModel model = survey(building);
+        List<SyntheticBuilding.TraceScan> trace = walk(building);
+        List<double[]> steps = steps(trace);
+
+        ParticleFilter tracker = new ParticleFilter(model, 500, 1);
+        tracker.setDeadReckoning(deadReckoning);
+        PositionEstimate estimate = new PositionEstimate();
+        double totalError = 0;
+        int settled = 0;
+        int next = 0;
+        for (int i = 0; i < trace.size(); i++){
+            SyntheticBuilding.TraceScan scan = trace.get(i);
+            if (deadReckoning){
+                next = giveSteps(tracker, steps, next, scan.time);
+            }
+            assertTrue(tracker.update(scan.scan, scan.time, estimate));
+            if (i >= 5){
+                totalError += building.distance(scan.x, scan.y, estimate.latitude, estimate.longitude);
+                settled++;
+            }
+        }
+        assertEquals(0, tracker.getLateSteps());
+        return totalError / settled;
+    }
+
+    @Test
+    public void stepsCarryTrackBetweenScans() {
+        double scansOnly = trackError(false);
+        double withSteps = trackError(true);
+        assertTrue(withSteps < 0.8 * scansOnly);
+        assertTrue(withSteps < 4);
+    }
+
+    @Test
+    public void batchedStepsMadeBeforeTheirScan() {
+        SyntheticBuilding building = building();
+        GaussianModel model = survey(building);
+        List<SyntheticBuilding.TraceScan> trace = walk(building);
+        List<double[]> steps = steps(trace);
+
+        // One tracker is given each step as it is taken, the other the steps of a 3 s batch
+        // at a time, which hands over steps taken after the scan as well as before it
+        ParticleFilter onTime = new ParticleFilter(model, 500, 1);
+        ParticleFilter batched = new ParticleFilter(model, 500, 1);
+        onTime.setDeadReckoning(true);
+        batched.setDeadReckoning(true);
+        PositionEstimate expected = new PositionEstimate();
+        PositionEstimate estimate = new PositionEstimate();
+        int nextOnTime = 0;
+        int nextBatched = 0;
+        for (SyntheticBuilding.TraceScan scan : trace){
+            nextOnTime = giveSteps(onTime, steps, nextOnTime, scan.time);
+            nextBatched = giveSteps(batched, steps, nextBatched, (scan.time / 3000 + 1) * 3000);
+
+            assertTrue(onTime.update(scan.scan, scan.time, expected));
+            assertTrue(batched.update(scan.scan, scan.time, estimate));
+            assertEquals(expected.latitude, estimate.latitude, 0);
+            assertEquals(expected.longitude, estimate.longitude, 0);
+            assertEquals(expected.spread, estimate.spread, 0);
+        }
+        assertEquals(0, batched.getLateSteps());
+
+        // Steps which only come in after their scan has been weighed are still made
+        ParticleFilter late = new ParticleFilter(model, 500, 1);
+        late.setDeadReckoning(true);
+        int next = 0;
+        double totalError = 0;
+        for (SyntheticBuilding.TraceScan scan : trace){
+            assertTrue(late.update(scan.scan, scan.time, estimate));
+            totalError += building.distance(scan.x, scan.y, estimate.latitude, estimate.longitude);
+            next = giveSteps(late, steps, next, scan.time);
+        }
+        assertEquals(steps.size(), late.getLateSteps());
+        assertTrue(totalError / trace.size() < 8);
+    }
+}
@@ -0,0 +1,101 @@
+package com.ewireless.s1208506.navigationinside;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Walks a straight line at a steady pace with noisy fixes every 10 s, as the low-power location
+ * requests give, and checks the PositionSmoother both smooths the fixes and fills in between them.
+ */
+public class PositionSmootherTest {
+
+    private static final double LATITUDE = 55.9225;
+    private static final double LONGITUDE = -3.1722;
+    private static final double SPEED = 1.3;
+
+    private static double latitude(double north){
+        return LATITUDE + north / PositionEstimate.METRES_PER_DEGREE;
+    }
+
+    private static double longitude(double east){
+        return LONGITUDE + east / (PositionEstimate.METRES_PER_DEGREE * Math.cos(Math.toRadians(LATITUDE)));
+    }
+
+    // Distance in metres from the true position after walking north east for a time
+    private static double error(double latitude, double longitude, long time){
+        double walked = SPEED * time / 1000.0 / Math.sqrt(2);
+        double north = (latitude - LATITUDE) * PositionEstimate.METRES_PER_DEGREE - walked;
+        double east = (longitude - LONGITUDE) * PositionEstimate.METRES_PER_DEGREE
+                * Math.cos(Math.toRadians(LATITUDE)) - walked;
+        return Math.hypot(east, north);
+    }
+
+    @Test
+    public void smoothsAndPredictsWalk() {
+        Random random = new Random(1208506);
+        PositionSmoother smoother = new PositionSmoother();
+        PositionEstimate estimate = new PositionEstimate();
+        assertFalse(smoother.predict(0, estimate));
+
+        double rawError = 0;
+        double smoothedError = 0;
+        double predictedError = 0;
+        double heldError = 0;
+        double lastLatitude = 0;
+        double lastLongitude = 0;
+        for (long time = 0; time <= 300000; time += 10000){
+            double walked = SPEED * time / 1000.0 / Math.sqrt(2);
+            double fixLatitude = latitude(walked + random.nextGaussian() * 6);
+            double fixLongitude = longitude(walked + random.nextGaussian() * 6);
+
+            if (time >= 60000){
+                // Halfway to this fix, carrying on from the last beats staying where it was
+                assertTrue(smoother.predict(time - 5000, estimate));
+                predictedError += error(estimate.latitude, estimate.longitude, time - 5000);
+                heldError += error(lastLatitude, lastLongitude, time - 5000);
+            }
+
+            smoother.update(fixLatitude, fixLongitude, 8.5, time);
+            assertTrue(smoother.predict(time, estimate));
+            lastLatitude = estimate.latitude;
+            lastLongitude = estimate.longitude;
+            if (time >= 60000){
+                rawError += error(fixLatitude, fixLongitude, time);
+                smoothedError += error(estimate.latitude, estimate.longitude, time);
+            }
+        }
+        assertTrue(smoothedError < 0.9 * rawError);
+        assertTrue(predictedError < heldError);
+        assertEquals(SPEED, smoother.getSpeed(), 0.7);
+        // Surer than a single fix
+        assertTrue(estimate.spread > 0 && estimate.spread < 8.5 * Math.sqrt(2));
+    }
+
+    @Test
+    public void weighsFixesByAccuracy() {
+        PositionSmoother smoother = new PositionSmoother();
+        PositionEstimate estimate = new PositionEstimate();
+        smoother.update(LATITUDE, LONGITUDE, 3, 0);
+        assertTrue(smoother.predict(0, estimate));
+        assertEquals(LATITUDE, estimate.latitude, 1e-12);
+        assertEquals(LONGITUDE, estimate.longitude, 1e-12);
+
+        // A rough fix 50 m away barely moves the track, a precise one moves it most of the way
+        smoother.update(latitude(50), LONGITUDE, 200, 1000);
+        smoother.predict(1000, estimate);
+        assertTrue(error(estimate.latitude, estimate.longitude, 0) < 5);
+        smoother.update(latitude(50), LONGITUDE, 1, 2000);
+        smoother.predict(2000, estimate);
+        assertTrue(error(estimate.latitude, estimate.longitude, 0) > 40);
+
+        // After a long gap, or a reset, the next fix starts a new track
+        smoother.update(latitude(500), LONGITUDE, 20, 2000 + PositionSmoother.MAX_GAP + 1);
+        smoother.predict(2000 + PositionSmoother.MAX_GAP + 1, estimate);
+        assertEquals(latitude(500), estimate.latitude, 1e-12);
+        smoother.reset();
+        assertFalse(smoother.hasFix());
+    }
+}
@@ -0,0 +1,122 @@
+package com.ewireless.s1208506.navigationinside;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the RegionLoader holds exactly the reference points in the tiles around the user,
+ * and only queries the tiles it does not already hold as the user moves.
+ */
+public class RegionLoaderTest {
+
+    // Stands in for LocDao.getInBox(), counting the queries
+    private static class ListSource implements RegionLoader.Source {
+        final List<LocData> all = new ArrayList<>();
+        int queries = 0;
+
+        @Override
+        public List<LocData> load(double minLatitude, double maxLatitude, double minLongitude, double maxLongitude) {
+            queries++;
+            List<LocData> found = new ArrayList<>();
+            for (LocData point : all){
+                if (point.latitude >= minLatitude && point.latitude <= maxLatitude
+                        && point.longitude >= minLongitude && point.longitude <= maxLongitude){
+                    found.add(point);
+                }
+            }
+            return found;
+        }
+    }
+
+    private static LocData point(int uid, double latitude, double longitude){
+        LocData point = new LocData();
+        point.uid = uid;
+        point.latitude = latitude;
+        point.longitude = longitude;
+        return point;
+    }
+
+    private static Set<Integer> uids(List<LocData> points){
+        Set<Integer> uids = new HashSet<>();
+        for (LocData point : points){
+            uids.add(point.uid);
+        }
+        return uids;
+    }
+
+    @Test
+    public void holdsPointsAroundUser() throws Exception {
+        Random random = new Random(5);
+        ListSource source = new ListSource();
+        // A site about 1 km across
+        for (int uid = 1; uid <= 5000; uid++){
+            source.all.add(point(uid, 55.92 + random.nextDouble() * 0.01, -3.18 + random.nextDouble() * 0.01));
+        }
+        RegionLoader region = new RegionLoader(source, 1);
+
+        double latitude = 55.9251;
+        double longitude = -3.1749;
+        assertTrue(region.moveTo(latitude, longitude));
+        assertEquals(9, source.queries);
+
+        Set<Integer> expected = new HashSet<>();
+        int row = RegionLoader.tileOf(latitude);
+        int column = RegionLoader.tileOf(longitude);
+        for (LocData point : source.all){
+            if (Math.abs(RegionLoader.tileOf(point.latitude) - row) <= 1
+                    && Math.abs(RegionLoader.tileOf(point.longitude) - column) <= 1){
+                expected.add(point.uid);
+            }
+        }
+        List<LocData> held = region.getPoints();
+        assertEquals(expected, uids(held));
+        assertEquals(expected.size(), held.size());
+        // Held in database order
+        for (int i = 1; i < held.size(); i++){
+            assertTrue(held.get(i - 1).uid < held.get(i).uid);
+        }
+
+        // Moving within the tile changes nothing
+        assertFalse(region.moveTo(latitude + 0.0003, longitude));
+        assertEquals(9, source.queries);
+
+        // Moving one tile north only loads the new row of 3 tiles
+        assertTrue(region.moveTo(latitude + RegionLoader.TILE_DEGREES, longitude));
+        assertEquals(12, source.queries);
+    }
+
+    @Test
+    public void pointsOnTileEdgesHeldOnce() throws Exception {
+        ListSource source = new ListSource();
+        for (int i = 0; i <= 10; i++){
+            source.all.add(point(i + 1, 55.92 + i * RegionLoader.TILE_DEGREES, -3.18 + i * RegionLoader.TILE_DEGREES));
+        }
+        RegionLoader region = new RegionLoader(source, 20);
+        region.moveTo(55.925, -3.175);
+        assertEquals(source.all.size(), region.getPoints().size());
+        assertEquals(source.all.size(), uids(region.getPoints()).size());
+    }
+
+    @Test
+    public void newPointsAddedOnlyInsideRegion() throws Exception {
+        RegionLoader region = new RegionLoader(new ListSource(), 1);
+        assertFalse(region.add(point(1, 55.92, -3.18)));
+        region.moveTo(55.92, -3.18);
+        assertTrue(region.add(point(2, 55.9201, -3.1801)));
+        assertFalse(region.add(point(3, 55.93, -3.18)));
+        assertEquals(1, region.getPoints().size());
+
+        // Once cleared the same tile is loaded again, without the point added before
+        region.clear();
+        assertTrue(region.getPoints().isEmpty());
+        assertTrue(region.moveTo(55.92, -3.18));
+        assertTrue(region.getPoints().isEmpty());
+    }
+}
@@ -0,0 +1,149 @@
+package com.ewireless.s1208506.navigationinside;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Author: Gavin Waite
+ * Feeds recorded scan traces through the positioning algorithm, as the PositioningFragment would,
+ * and measures how far each fix is from the true position and how much CPU time it took
+ *
+ * Run main() by hand to print the numbers of each mode on the ReplayTest's walk, for comparing
+ * between changes. The ReplayTest itself only checks them against loose bounds.
+ */
+public class ReplayRunner {
+
+    /**
+     * Print the report of each positioning mode for the simulated walk of the ReplayTest
+     */
+    public static void main(String[] args){
+        SyntheticBuilding building = ReplayTest.building();
+        List<LocData> points = ReplayTest.survey(building);
+        List<SyntheticBuilding.TraceScan> trace = ReplayTest.walk(building);
+        ReplayRunner runner = new ReplayRunner(building, points);
+        System.out.println("Replay of " + points.size() + " reference points");
+        System.out.println("  nearest point: " + runner.replay(trace, 0));
+        System.out.println("  weighted k-NN: " + runner.replay(trace, 4));
+        System.out.println("  Gaussian:      " + runner.replay(trace, GAUSSIAN));
+        System.out.println("  particles:     " + runner.replay(trace, PARTICLES));
+    }
+
+    /**
+     * The accuracy and cost of the fixes over a trace
+     */
+    public static class Report {
+        public int fixes;
+        // Scans for which no position could be given
+        public int missed;
+        public double meanError;
+        public double p95Error;
+        public double meanCpuMicros;
+        public double p95CpuMicros;
+
+        @Override
+        public String toString(){
+            return String.format("%d fixes (%d missed), error mean %.1f m p95 %.1f m, "
+                    + "CPU mean %.1f us p95 %.1f us",
+                    fixes, missed, meanError, p95Error, meanCpuMicros, p95CpuMicros);
+        }
+    }
+
+    // Pass as k to replay() with the GaussianModel rather than the nearest point or k-NN
+    public static final int GAUSSIAN = -1;
+    // Pass as k to replay() to track the user with a ParticleFilter over the GaussianModel
+    public static final int PARTICLES = -2;
+
+    private final SyntheticBuilding building;
+    private final FingerprintIndex index = new FingerprintIndex();
+    private final FingerprintMatrix.Scorer scorer;
+    private final GaussianModel gaussian = new GaussianModel();
+
+    /**
+     * @param building - the building the reference points and traces were made in
+     * @param points   - the reference points, e.g. from SyntheticBuilding.survey()
+     */
+    public ReplayRunner(SyntheticBuilding building, List<LocData> points){
+        this.building = building;
+        index.rebuild(points);
+        scorer = FingerprintMatrix.from(points).newScorer();
+        for (LocData point : points){
+            gaussian.add(point);
+        }
+    }
+
+    /**
+     * Replay a trace
+     * @param trace - the scans, with their true positions
+     * @param k     - the number of neighbours for the k-NN mode, 0 for the nearest point or
+     *                GAUSSIAN for the GaussianModel or PARTICLES for the ParticleFilter
+     */
+    public Report replay(List<SyntheticBuilding.TraceScan> trace, int k){
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long[] BSSIDs = new long[FingerprintMatcher.WEIGHTS.length];
+        int[] dBs = new int[FingerprintMatcher.WEIGHTS.length];
+        PositionEstimate estimate = new PositionEstimate();
+        ParticleFilter tracker = new ParticleFilter(gaussian, ParticleFilter.DEFAULT_PARTICLES, 1208506);
+
+        double[] errors = new double[trace.size()];
+        double[] cpuMicros = new double[trace.size()];
+        Report report = new Report();
+        for (SyntheticBuilding.TraceScan scan : trace){
+            long start = threads.getCurrentThreadCpuTime();
+            scan.scan.top(BSSIDs, dBs);
+            boolean found;
+            if (k == PARTICLES){
+                found = tracker.update(scan.scan, scan.time, estimate);
+            }
+            else if (k == GAUSSIAN){
+                found = gaussian.match(scan.scan, estimate);
+            }
+            else if (k > 0){
+                found = FingerprintMatcher.matchKnn(index, scorer, BSSIDs, dBs, k, estimate);
+            }
+            else {
+                FingerprintMatcher.Match closest = FingerprintMatcher.matchIndexed(index, scorer, BSSIDs, dBs);
+                found = closest != null;
+                if (found){
+                    estimate.latitude = closest.point.latitude;
+                    estimate.longitude = closest.point.longitude;
+                }
+            }
+            long end = threads.getCurrentThreadCpuTime();
+
+            if (!found){
+                report.missed++;
+                continue;
+            }
+            errors[report.fixes] = building.distance(scan.x, scan.y, estimate.latitude, estimate.longitude);
+            cpuMicros[report.fixes] = (end - start) / 1000.0;
+            report.fixes++;
+        }
+
+        report.meanError = mean(errors, report.fixes);
+        report.p95Error = percentile(errors, report.fixes, 0.95);
+        report.meanCpuMicros = mean(cpuMicros, report.fixes);
+        report.p95CpuMicros = percentile(cpuMicros, report.fixes, 0.95);
+        return report;
+    }
+
+    private static double mean(double[] values, int count){
+        double total = 0;
+        for (int i = 0; i < count; i++){
+            total += values[i];
+        }
+        return count == 0 ? 0 : total / count;
+    }
+
+    // Nearest rank percentile of the first count values
+    private static double percentile(double[] values, int count, double fraction){
+        if (count == 0){
+            return 0;
+        }
+        double[] sorted = Arrays.copyOf(values, count);
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(fraction * count);
+        return sorted[Math.max(rank, 1) - 1];
+    }
+}
@@ -0,0 +1,95 @@
+package com.ewireless.s1208506.navigationinside;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.ewireless.s1208506.navigationinside.TestFixtures.DIRECT;
+import static org.junit.Assert.*;
+
+/**
+ * Records a simulated walk as a ScanTrace and plays it back through a ReplayScanSource into the
+ * positioning algorithm, as the PositioningFragment would be driven on a device.
+ */
+public class ReplayScanSourceTest {
+
+    private static File record(List<SyntheticBuilding.TraceScan> trace) throws Exception {
+        File file = File.createTempFile("walk", ".trace");
+        ScanTrace.Writer writer = new ScanTrace.Writer(new FileOutputStream(file));
+        for (SyntheticBuilding.TraceScan scan : trace){
+            writer.write(scan.time, scan.scan);
+        }
+        writer.close();
+        return file;
+    }
+
+    @Test
+    public void replaysTraceIntoMatcher() throws Exception {
+        SyntheticBuilding building = new SyntheticBuilding(60, 30, 20, 8, 4.0, 7);
+        final List<LocData> points = building.survey(20, 1.3, 1500);
+        List<SyntheticBuilding.TraceScan> trace = building.trace(10, 1.3, 1500);
+        File file = record(trace);
+        try {
+            final FingerprintIndex index = new FingerprintIndex();
+            index.rebuild(points);
+            final FingerprintMatrix.Scorer scorer = FingerprintMatrix.from(points).newScorer();
+            final List<ScanFrame> played = new ArrayList<>();
+            final List<FingerprintMatcher.Match> fixes = new ArrayList<>();
+
+            ReplayScanSource source = new ReplayScanSource(file, 0, DIRECT);
+            source.setListener(new ScanSource.Listener() {
+                @Override
+                public void onScan(ScanFrame frame) {
+                    long[] BSSIDs = new long[FingerprintMatcher.WEIGHTS.length];
+                    int[] dBs = new int[FingerprintMatcher.WEIGHTS.length];
+                    frame.top(BSSIDs, dBs);
+                    played.add(frame);
+                    fixes.add(FingerprintMatcher.matchIndexed(index, scorer, BSSIDs, dBs));
+                }
+            });
+            source.start();
+            assertTrue(source.awaitFinished(10, TimeUnit.SECONDS));
+            assertNull(source.getFailure());
+
+            // Every scan arrives unchanged and in order
+            assertEquals(trace.size(), played.size());
+            for (int i = 0; i < trace.size(); i++){
+                ScanFrame expected = trace.get(i).scan;
+                assertEquals(expected.size, played.get(i).size);
+                for (int j = 0; j < expected.size; j++){
+                    assertEquals(expected.BSSIDs[j], played.get(i).BSSIDs[j]);
+                    assertEquals(expected.levels[j], played.get(i).levels[j]);
+                }
+                assertNotNull(fixes.get(i));
+            }
+            double span = trace.get(trace.size() - 1).time - trace.get(0).time;
+            assertEquals((trace.size() - 1) * 1000.0 / span, source.getScanRate(), 1e-9);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void keepsRecordedTiming() throws Exception {
+        List<SyntheticBuilding.TraceScan> trace = new ArrayList<>();
+        SyntheticBuilding building = new SyntheticBuilding(20, 20, 5, 0, 2.0, 3);
+        for (int i = 0; i < 5; i++){
+            trace.add(new SyntheticBuilding.TraceScan(i * 1000, 0, 0, building.scan(10, 10)));
+        }
+        File file = record(trace);
+        try {
+            // 4 seconds of scans played 50 times faster take at least 80 ms
+            ReplayScanSource source = new ReplayScanSource(file, 50, DIRECT);
+            long start = System.nanoTime();
+            source.start();
+            assertTrue(source.awaitFinished(10, TimeUnit.SECONDS));
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(80));
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.ewireless.s1208506.navigationinside;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Surveys a simulated floor, walks it again and replays the scans through the positioning
+ * algorithm in each mode, checking the error and CPU time of the fixes. The bounds are loose - this
+ * is here to catch a broken pipeline, not to tune against. ReplayRunner.main() prints the numbers
+ * of the same walk to compare between changes.
+ */
+public class ReplayTest {
+
+    static SyntheticBuilding building(){
+        return new SyntheticBuilding(80, 40, 25, 12, 4.0, 1208506);
+    }
+
+    static List<LocData> survey(SyntheticBuilding building){
+        return building.survey(40, 1.3, 1500);
+    }
+
+    static List<SyntheticBuilding.TraceScan> walk(SyntheticBuilding building){
+        return building.trace(20, 1.3, 1500);
+    }
+
+    @Test
+    public void replaySimulatedWalk() throws Exception {
+        SyntheticBuilding building = building();
+        List<LocData> points = survey(building);
+        List<SyntheticBuilding.TraceScan> trace = walk(building);
+        assertFalse(points.isEmpty());
+        assertFalse(trace.isEmpty());
+
+        ReplayRunner runner = new ReplayRunner(building, points);
+        int[] modes = {0, 4, ReplayRunner.GAUSSIAN, ReplayRunner.PARTICLES};
+        for (int mode : modes){
+            ReplayRunner.Report report = runner.replay(trace, mode);
+            String name = "mode " + mode + ": " + report;
+            assertEquals(name, trace.size(), report.fixes + report.missed);
+            assertEquals(name, 0, report.missed);
+            // Much better than guessing anywhere on an 80 x 40 m floor
+            assertTrue(name, report.meanError < 15);
+            assertTrue(name, report.p95Error >= report.meanError / 2);
+            assertTrue(name, report.meanCpuMicros >= 0 && report.p95CpuMicros >= 0);
+        }
+    }
+
+    @Test
+    public void sameSeedSameBuilding() throws Exception {
+        List<LocData> a = new SyntheticBuilding(50, 50, 10, 5, 3.0, 42).survey(3, 1.3, 1500);
+        List<LocData> b = new SyntheticBuilding(50, 50, 10, 5, 3.0, 42).survey(3, 1.3, 1500);
+        assertEquals(a.size(), b.size());
+        for (int i = 0; i < a.size(); i++){
+            assertEquals(a.get(i).latitude, b.get(i).latitude, 0);
+            assertArrayEquals(a.get(i).BSSIDs, b.get(i).BSSIDs);
+            assertArrayEquals(a.get(i).dBs, b.get(i).dBs);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.ewireless.s1208506.navigationinside;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.ewireless.s1208506.navigationinside.TestFixtures.DIRECT;
+import static org.junit.Assert.*;
+
+/**
+ * Feeds scans through a ScanDispatcher to a consumer which keeps up and one which falls behind,
+ * as the Fragments and a slower background consumer would share the WifiScanner on a device.
+ */
+public class ScanDispatcherTest {
+
+    private static class FakeSource implements ScanSource {
+        Listener listener;
+        int starts = 0;
+        int stops = 0;
+
+        @Override
+        public void setListener(Listener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void start() {
+            starts++;
+        }
+
+        @Override
+        public void stop() {
+            stops++;
+        }
+
+        @Override
+        public double getScanRate() {
+            return 0;
+        }
+
+        @Override
+        public boolean isThrottled() {
+            return false;
+        }
+
+        // A scan the source reuses straight after, as the WifiScanner does
+        final ScanFrame frame = new ScanFrame(ScanFrame.DEFAULT_CAPACITY);
+        void scan(int n){
+            frame.clear();
+            frame.add(n, -40 - n, 2412);
+            frame.timestamp = n;
+            listener.onScan(frame);
+            frame.clear();
+        }
+    }
+
+    private static class Recorder implements ScanSource.Listener {
+        final List<Long> timestamps = new ArrayList<>();
+        final List<Long> BSSIDs = new ArrayList<>();
+
+        @Override
+        public void onScan(ScanFrame frame) {
+            timestamps.add(frame.timestamp);
+            BSSIDs.add(frame.size > 0 ? frame.BSSIDs[0] : MacAddress.NONE);
+        }
+    }
+
+    @Test
+    public void slowSubscriberOnlyGetsNewestScans() {
+        FakeSource source = new FakeSource();
+        ScanDispatcher dispatcher = new ScanDispatcher(DIRECT);
+        dispatcher.setSource(source);
+        assertEquals(0, source.starts);
+
+        Recorder fast = new Recorder();
+        Recorder slow = new Recorder();
+        TestFixtures.QueuedExecutor held = new TestFixtures.QueuedExecutor();
+        dispatcher.subscribe(fast);
+        dispatcher.subscribe(slow, held);
+        assertEquals(1, source.starts);
+
+        for (int n = 1; n <= 10; n++){
+            source.scan(n);
+        }
+
+        // The fast subscriber saw every scan, as it was, after the source had reused its frame
+        assertEquals(10, fast.timestamps.size());
+        for (int n = 1; n <= 10; n++){
+            assertEquals(n, (long) fast.timestamps.get(n - 1));
+            assertEquals(n, (long) fast.BSSIDs.get(n - 1));
+        }
+        assertEquals(0, dispatcher.getDropped(fast));
+
+        // The slow one only has the newest scans waiting, and never held up the fast one
+        held.runAll();
+        assertEquals(ScanDispatcher.QUEUE_CAPACITY, slow.timestamps.size());
+        assertEquals(9, (long) slow.timestamps.get(0));
+        assertEquals(10, (long) slow.timestamps.get(1));
+        assertEquals(10 - ScanDispatcher.QUEUE_CAPACITY, dispatcher.getDropped(slow));
+
+        // The frames are reused, only enough for a full queue and the one being handed out
+        assertTrue(dispatcher.getFramesAllocated() <= ScanDispatcher.QUEUE_CAPACITY + 1);
+        for (int n = 11; n <= 100; n++){
+            source.scan(n);
+            if (n % 3 == 0){
+                held.runAll();
+            }
+        }
+        assertTrue(dispatcher.getFramesAllocated() <= ScanDispatcher.QUEUE_CAPACITY + 1);
+
+        // The source runs only while someone is subscribed
+        dispatcher.unsubscribe(fast);
+        assertEquals(0, source.stops);
+        dispatcher.unsubscribe(slow);
+        assertEquals(1, source.stops);
+    }
+
+    @Test
+    public void unsubscribedListenerGetsNothingQueued() {
+        FakeSource source = new FakeSource();
+        ScanDispatcher dispatcher = new ScanDispatcher(DIRECT);
+        dispatcher.setSource(source);
+        Recorder recorder = new Recorder();
+        TestFixtures.QueuedExecutor held = new TestFixtures.QueuedExecutor();
+        dispatcher.subscribe(recorder, held);
+        dispatcher.subscribe(recorder, held);
+
+        source.scan(1);
+        dispatcher.unsubscribe(recorder);
+        held.runAll();
+        assertTrue(recorder.timestamps.isEmpty());
+        assertEquals(1, source.starts);
+        assertEquals(1, source.stops);
+
+        // A source set while subscribed is started straight away, and the old one stopped
+        dispatcher.subscribe(recorder, DIRECT);
+        FakeSource replacement = new FakeSource();
+        dispatcher.setSource(replacement);
+        assertEquals(2, source.stops);
+        assertEquals(1, replacement.starts);
+        replacement.scan(2);
+        assertEquals(1, recorder.timestamps.size());
+        assertNull(source.listener);
+    }
+}
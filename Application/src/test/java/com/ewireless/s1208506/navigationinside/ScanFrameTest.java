@@ -0,0 +1,135 @@
+package com.ewireless.s1208506.navigationinside;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that a pooled, sorted ScanFrame gives the same strongest access points as an unsorted
+ * one, and that filling frames from the pool allocates nothing once warmed up.
+ */
+public class ScanFrameTest {
+
+    private static final int SCAN_SIZE = 40;
+
+    // A scan as the WifiManager would give it, with the BSSIDs as Strings
+    private static String[] randomBSSIDs(Random random){
+        String[] BSSIDs = new String[SCAN_SIZE];
+        for (int i = 0; i < SCAN_SIZE; i++){
+            BSSIDs[i] = MacAddress.format(0x001122000000L + random.nextInt(100000));
+        }
+        return BSSIDs;
+    }
+
+    private static int[] randomLevels(Random random){
+        int[] levels = new int[SCAN_SIZE];
+        for (int i = 0; i < SCAN_SIZE; i++){
+            // Only a few distinct levels, so there are plenty of ties
+            levels[i] = -40 - 5 * random.nextInt(8);
+        }
+        return levels;
+    }
+
+    // The ingest loop of WifiScanner.deliver()
+    private static void fill(ScanFrame frame, String[] BSSIDs, int[] levels){
+        for (int i = 0; i < BSSIDs.length; i++){
+            frame.add(MacAddress.parse(BSSIDs[i]), levels[i], 2412 + 5 * (i % 13));
+            frame.timestamp = Math.max(frame.timestamp, 1000L + i);
+        }
+        frame.sort();
+    }
+
+    @Test
+    public void sortedFrameGivesSameTop() throws Exception {
+        Random random = new Random(19);
+        ScanFramePool pool = new ScanFramePool();
+        for (int scan = 0; scan < 200; scan++){
+            String[] BSSIDs = randomBSSIDs(random);
+            int[] levels = randomLevels(random);
+            long[] parsed = new long[SCAN_SIZE];
+            for (int i = 0; i < SCAN_SIZE; i++){
+                parsed[i] = MacAddress.parse(BSSIDs[i]);
+            }
+            ScanFrame unsorted = new ScanFrame(parsed, levels.clone(), SCAN_SIZE);
+            ScanFrame sorted = pool.acquire();
+            fill(sorted, BSSIDs, levels);
+            assertTrue(sorted.isSorted());
+            assertEquals(SCAN_SIZE - 1 + 1000L, sorted.timestamp);
+            for (int i = 1; i < sorted.size; i++){
+                assertTrue(sorted.levels[i - 1] >= sorted.levels[i]);
+            }
+
+            for (int n : new int[]{3, 10, 50}){
+                long[] expectedBSSIDs = new long[n];
+                int[] expectedLevels = new int[n];
+                long[] actualBSSIDs = new long[n];
+                int[] actualLevels = new int[n];
+                assertEquals(unsorted.top(expectedBSSIDs, expectedLevels), sorted.top(actualBSSIDs, actualLevels));
+                assertArrayEquals(expectedBSSIDs, actualBSSIDs);
+                assertArrayEquals(expectedLevels, actualLevels);
+            }
+
+            // A copy is kept when the frame is reused
+            ScanFrame copy = sorted.copy();
+            pool.release(sorted);
+            assertEquals(SCAN_SIZE, copy.size);
+            assertEquals(sorted.frequencies[5], copy.frequencies[5]);
+        }
+        assertEquals(1, pool.getAllocated());
+    }
+
+    @Test
+    public void frameGrowsBeyondCapacity() throws Exception {
+        ScanFrame frame = new ScanFrame(2);
+        for (int i = 0; i < 100; i++){
+            frame.add(i + 1, -90 + i % 50, 5180);
+        }
+        assertEquals(100, frame.size);
+        frame.sort();
+        assertEquals(-41, frame.levels[0]);
+        assertEquals(-90, frame.levels[99]);
+    }
+
+    @Test
+    public void steadyStateIngestAllocatesNothing() throws Exception {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+
+        Random random = new Random(20);
+        String[][] BSSIDs = new String[16][];
+        int[][] levels = new int[16][];
+        for (int i = 0; i < BSSIDs.length; i++){
+            BSSIDs[i] = randomBSSIDs(random);
+            levels[i] = randomLevels(random);
+        }
+        ScanFramePool pool = new ScanFramePool();
+        long[] topBSSIDs = new long[FingerprintMatcher.WEIGHTS.length];
+        int[] topLevels = new int[FingerprintMatcher.WEIGHTS.length];
+
+        // Warm up, so the pool is full and the JIT has compiled the loop
+        for (int scan = 0; scan < 20000; scan++){
+            ScanFrame frame = pool.acquire();
+            fill(frame, BSSIDs[scan % 16], levels[scan % 16]);
+            frame.top(topBSSIDs, topLevels);
+            pool.release(frame);
+        }
+
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int scan = 0; scan < 10000; scan++){
+            ScanFrame frame = pool.acquire();
+            fill(frame, BSSIDs[scan % 16], levels[scan % 16]);
+            frame.top(topBSSIDs, topLevels);
+            pool.release(frame);
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+        // Allow for the measurement itself, but far less than a byte per scan
+        assertTrue("Allocated " + allocated + " bytes over 10000 scans", allocated < 10000);
+    }
+}
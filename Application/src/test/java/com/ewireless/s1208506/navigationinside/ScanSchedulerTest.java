@@ -0,0 +1,71 @@
+package com.ewireless.s1208506.navigationinside;
+
+import org.junit.Test;
+
+import static com.ewireless.s1208506.navigationinside.TestFixtures.scan;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the ScanScheduler scans at the walking rate, backs off when the user stands still
+ * or Android throttles the scans, and measures the rate achieved.
+ */
+public class ScanSchedulerTest {
+
+    @Test
+    public void backsOffWhenStill() throws Exception {
+        ScanScheduler scheduler = new ScanScheduler();
+        assertEquals(0, scheduler.nextScanDelay(0));
+
+        long now = 0;
+        for (int i = 0; i < 3; i++){
+            scheduler.onScanRequested(now, true);
+            // Walking, so the levels change between scans
+            assertTrue(scheduler.onResults(now + 500, now + 500, scan(-40 - 10 * i, -60 + 8 * i, -70, -80)));
+            assertEquals(ScanScheduler.MOVING_INTERVAL, scheduler.getInterval());
+            now += ScanScheduler.MOVING_INTERVAL;
+        }
+        assertEquals(0.5, scheduler.getScanRate(now), 1e-9);
+
+        for (int i = 0; i < 3; i++){
+            scheduler.onScanRequested(now, true);
+            scheduler.onResults(now + 500, now + 500, scan(-60, -44, -70 + (i % 2), -80));
+            now += ScanScheduler.MOVING_INTERVAL;
+        }
+        assertTrue(scheduler.isStationary());
+        assertEquals(ScanScheduler.STATIONARY_INTERVAL, scheduler.getInterval());
+        assertEquals(ScanScheduler.STATIONARY_INTERVAL - 1000, scheduler.nextScanDelay(now - ScanScheduler.MOVING_INTERVAL + 1000));
+
+        // Moving again returns to the walking rate at the next scan
+        scheduler.onScanRequested(now, true);
+        scheduler.onResults(now + 500, now + 500, scan(-80, -50, -40, -90));
+        assertFalse(scheduler.isStationary());
+        assertEquals(ScanScheduler.MOVING_INTERVAL, scheduler.getInterval());
+    }
+
+    @Test
+    public void backsOffWhenThrottled() throws Exception {
+        ScanScheduler scheduler = new ScanScheduler();
+        scheduler.onScanRequested(0, true);
+        assertTrue(scheduler.onResults(400, 400, scan(-50, -60)));
+
+        // A refused scan
+        scheduler.onScanRequested(2000, false);
+        assertTrue(scheduler.isThrottled());
+        assertEquals(ScanScheduler.THROTTLED_INTERVAL, scheduler.getInterval());
+        // Another app's scan still counts as new results
+        assertTrue(scheduler.onResults(3000, 3000, scan(-52, -61)));
+        assertTrue(scheduler.isThrottled());
+
+        // An accepted scan which only brings back the old results
+        scheduler.onScanRequested(40000, true);
+        assertFalse(scheduler.isThrottled());
+        assertFalse(scheduler.onResults(40500, 3000, scan(-52, -61)));
+        assertTrue(scheduler.isThrottled());
+
+        // Scanning properly again
+        scheduler.onScanRequested(80000, true);
+        assertTrue(scheduler.onResults(80500, 80500, scan(-52, -61)));
+        assertFalse(scheduler.isThrottled());
+        assertEquals(0, scheduler.getScanRate(80500 + ScanScheduler.THROTTLED_INTERVAL + 1), 0);
+    }
+}
@@ -0,0 +1,101 @@
+package com.ewireless.s1208506.navigationinside;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that a survey comes back unchanged from both file formats, and that damaged files are
+ * refused rather than partly read.
+ */
+public class SurveyFileTest {
+
+    private static List<LocData> survey(){
+        List<LocData> points = new SyntheticBuilding(60, 30, 20, 10, 4.0, 41).survey(5, 1.2, 1000);
+        // A point with no access points heard must survive too
+        LocData silent = new LocData();
+        silent.latitude = 55.9;
+        silent.longitude = -3.1;
+        silent.building = 2;
+        silent.floor = -1;
+        points.add(silent);
+        return points;
+    }
+
+    private static byte[] write(List<LocData> points, SurveyFile.Format format) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SurveyFile.Writer writer = SurveyFile.newWriter(out, format);
+        for (LocData point : points){
+            writer.write(point);
+        }
+        writer.close();
+        return out.toByteArray();
+    }
+
+    private static List<LocData> read(byte[] bytes) throws IOException {
+        SurveyFile.Reader reader = SurveyFile.newReader(new ByteArrayInputStream(bytes));
+        List<LocData> points = new ArrayList<>();
+        LocData point;
+        while ((point = reader.read()) != null){
+            points.add(point);
+        }
+        reader.close();
+        return points;
+    }
+
+    private static void assertSameSurvey(List<LocData> expected, List<LocData> actual){
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++){
+            LocData a = expected.get(i);
+            LocData b = actual.get(i);
+            assertEquals(0, b.uid);
+            assertEquals(a.latitude, b.latitude, 0);
+            assertEquals(a.longitude, b.longitude, 0);
+            assertEquals(a.building, b.building);
+            assertEquals(a.floor, b.floor);
+            assertArrayEquals(a.BSSIDs, b.BSSIDs);
+            assertArrayEquals(a.dBs, b.dBs);
+        }
+    }
+
+    @Test
+    public void csvRoundTrip() throws Exception {
+        List<LocData> points = survey();
+        assertSameSurvey(points, read(write(points, SurveyFile.Format.CSV)));
+    }
+
+    @Test
+    public void binaryRoundTrip() throws Exception {
+        List<LocData> points = survey();
+        byte[] binary = write(points, SurveyFile.Format.BINARY);
+        assertSameSurvey(points, read(binary));
+        assertTrue(binary.length < write(points, SurveyFile.Format.CSV).length / 2);
+    }
+
+    @Test
+    public void damagedFilesRefused() throws Exception {
+        byte[] binary = write(survey(), SurveyFile.Format.BINARY);
+        byte[] truncated = new byte[binary.length - 1];
+        System.arraycopy(binary, 0, truncated, 0, truncated.length);
+        assertRefused(truncated);
+
+        assertRefused("latitude,longitude,building,floor,BSSID,dB\n55.9,-3.1,0,0,00:11:22:33:44:55\n".getBytes("UTF-8"));
+        assertRefused("latitude,longitude,building,floor,BSSID,dB\n55.9,-3.1,0,0,not a mac,-50\n".getBytes("UTF-8"));
+        assertRefused("uid,something else\n".getBytes("UTF-8"));
+    }
+
+    private static void assertRefused(byte[] bytes){
+        try {
+            read(bytes);
+            fail("Damaged survey was read");
+        } catch (IOException expected){
+            // Refused as it should be
+        }
+    }
+}
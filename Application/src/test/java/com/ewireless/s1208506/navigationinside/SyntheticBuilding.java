@@ -0,0 +1,227 @@
+package com.ewireless.s1208506.navigationinside;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Author: Gavin Waite
+ * A simulated floor plan with WiFi access points, for evaluating the positioning algorithm
+ * without walking around a real building
+ *
+ * The floor is a width x height metre rectangle with randomly placed access points and interior
+ * walls. Signal levels follow the log-distance path loss model
+ *     level = TX_LEVEL - 10 * PATH_LOSS_EXPONENT * log10(d / 1m) - WALL_LOSS * (walls crossed)
+ * plus Gaussian noise, and an access point weaker than SENSITIVITY is not heard at all.
+ *
+ * survey() walks the floor as a user of the Training tab would and returns the reference points
+ * the TrainingPath would store. trace() walks a route and returns timestamped scans with the true
+ * position of each, for the ReplayRunner.
+ */
+public class SyntheticBuilding {
+
+    private static final double TX_LEVEL = -35.0;
+    private static final double PATH_LOSS_EXPONENT = 3.0;
+    private static final double WALL_LOSS = 5.0;
+    private static final int SENSITIVITY = -95;
+
+    // South west corner of the floor
+    private static final double ORIGIN_LATITUDE = 55.9225;
+    private static final double ORIGIN_LONGITUDE = -3.1722;
+
+    public final double width;
+    public final double height;
+    private final double[] apX;
+    private final double[] apY;
+    private final double[][] walls;
+    private final double noise;
+    private final Random random;
+
+    /**
+     * A timestamped scan taken at a known position on a walk
+     */
+    public static class TraceScan {
+        public final long time;
+        public final double x;
+        public final double y;
+        public final ScanFrame scan;
+
+        public TraceScan(long time, double x, double y, ScanFrame scan){
+            this.time = time;
+            this.x = x;
+            this.y = y;
+            this.scan = scan;
+        }
+    }
+
+    /**
+     * @param width        - the size of the floor in metres
+     * @param height       - the size of the floor in metres
+     * @param accessPoints - the number of access points
+     * @param walls        - the number of interior walls
+     * @param noise        - the standard deviation of the signal level noise in dB
+     * @param seed         - the seed of the random numbers, the same seed gives the same building
+     */
+    public SyntheticBuilding(double width, double height, int accessPoints, int walls, double noise, long seed){
+        this.width = width;
+        this.height = height;
+        this.noise = noise;
+        random = new Random(seed);
+        apX = new double[accessPoints];
+        apY = new double[accessPoints];
+        for (int ap = 0; ap < accessPoints; ap++){
+            apX[ap] = random.nextDouble() * width;
+            apY[ap] = random.nextDouble() * height;
+        }
+        // Walls run either north-south or east-west, as in most buildings
+        this.walls = new double[walls][];
+        for (int w = 0; w < walls; w++){
+            double length = 5 + random.nextDouble() * 15;
+            double x = random.nextDouble() * width;
+            double y = random.nextDouble() * height;
+            this.walls[w] = random.nextBoolean()
+                    ? new double[]{x, y, Math.min(width, x + length), y}
+                    : new double[]{x, y, x, Math.min(height, y + length)};
+        }
+    }
+
+    public static long bssid(int ap){
+        return 0x001122000000L + ap;
+    }
+
+    public double latitude(double y){
+        return ORIGIN_LATITUDE + y / PositionEstimate.METRES_PER_DEGREE;
+    }
+
+    public double longitude(double x){
+        return ORIGIN_LONGITUDE + x / (PositionEstimate.METRES_PER_DEGREE * Math.cos(Math.toRadians(ORIGIN_LATITUDE)));
+    }
+
+    /**
+     * @return the distance in metres between a point on the floor and a latitude/longitude
+     */
+    public double distance(double x, double y, double latitude, double longitude){
+        double dy = (latitude - ORIGIN_LATITUDE) * PositionEstimate.METRES_PER_DEGREE - y;
+        double dx = (longitude - ORIGIN_LONGITUDE) * PositionEstimate.METRES_PER_DEGREE
+                * Math.cos(Math.toRadians(ORIGIN_LATITUDE)) - x;
+        return Math.hypot(dx, dy);
+    }
+
+    /**
+     * A WiFi scan at a point on the floor, in the unsorted order a WifiManager would return it
+     */
+    public ScanFrame scan(double x, double y){
+        long[] BSSIDs = new long[apX.length];
+        int[] levels = new int[apX.length];
+        int size = 0;
+        for (int ap = 0; ap < apX.length; ap++){
+            double distance = Math.max(1.0, Math.hypot(apX[ap] - x, apY[ap] - y));
+            double level = TX_LEVEL - 10 * PATH_LOSS_EXPONENT * Math.log10(distance)
+                    - WALL_LOSS * wallsBetween(apX[ap], apY[ap], x, y)
+                    + random.nextGaussian() * noise;
+            int rounded = (int) Math.round(level);
+            if (rounded >= SENSITIVITY){
+                BSSIDs[size] = bssid(ap);
+                levels[size] = Math.min(-1, rounded);
+                size++;
+            }
+        }
+        return new ScanFrame(BSSIDs, levels, size);
+    }
+
+    /**
+     * Record training sessions along random straight walks, as the Training tab would
+     * @param walks        - the number of training sessions
+     * @param speed        - the walking speed in metres per second
+     * @param scanInterval - the average time between WiFi scans in milliseconds
+     * @return the reference points, with uids from 1
+     */
+    public List<LocData> survey(int walks, double speed, long scanInterval){
+        List<LocData> points = new ArrayList<>();
+        for (int walk = 0; walk < walks; walk++){
+            double startX = random.nextDouble() * width;
+            double startY = random.nextDouble() * height;
+            double endX = random.nextDouble() * width;
+            double endY = random.nextDouble() * height;
+            List<TraceScan> scans = walk(startX, startY, endX, endY, 0, speed, scanInterval);
+            long endTime = (long) (Math.hypot(endX - startX, endY - startY) / speed * 1000);
+
+            List<TrainingReading> session = new ArrayList<>();
+            for (TraceScan scan : scans){
+                session.add(new TrainingReading(scan.time, scan.scan));
+            }
+            TrainingPath path = new TrainingPath(latitude(startY), longitude(startX),
+                    latitude(endY), longitude(endX));
+            // Number the points as the database would
+            for (LocData point : path.toReferencePoints(session, Math.max(endTime, 1),
+                    LocData.DEFAULT_MAX_ACCESS_POINTS)){
+                point.uid = points.size() + 1;
+                points.add(point);
+            }
+        }
+        return points;
+    }
+
+    /**
+     * A walk through a number of random waypoints with a scan at every interval
+     * @param legs         - the number of straight legs
+     * @param speed        - the walking speed in metres per second
+     * @param scanInterval - the average time between WiFi scans in milliseconds
+     * @return the scans, with their true positions
+     */
+    public List<TraceScan> trace(int legs, double speed, long scanInterval){
+        List<TraceScan> scans = new ArrayList<>();
+        double x = random.nextDouble() * width;
+        double y = random.nextDouble() * height;
+        long time = 0;
+        for (int leg = 0; leg < legs; leg++){
+            double nextX = random.nextDouble() * width;
+            double nextY = random.nextDouble() * height;
+            scans.addAll(walk(x, y, nextX, nextY, time, speed, scanInterval));
+            time += (long) (Math.hypot(nextX - x, nextY - y) / speed * 1000);
+            x = nextX;
+            y = nextY;
+        }
+        return scans;
+    }
+
+    // Scans along a straight line at constant speed, timed from startTime
+    private List<TraceScan> walk(double startX, double startY, double endX, double endY,
+                                 long startTime, double speed, long scanInterval){
+        List<TraceScan> scans = new ArrayList<>();
+        long duration = (long) (Math.hypot(endX - startX, endY - startY) / speed * 1000);
+        // The WifiManager does not scan at exact intervals
+        for (long t = random.nextInt((int) scanInterval); t <= duration;
+             t += scanInterval / 2 + random.nextInt((int) scanInterval)){
+            double fraction = duration == 0 ? 0 : (double) t / duration;
+            double x = startX + fraction * (endX - startX);
+            double y = startY + fraction * (endY - startY);
+            scans.add(new TraceScan(startTime + t, x, y, scan(x, y)));
+        }
+        return scans;
+    }
+
+    private int wallsBetween(double x1, double y1, double x2, double y2){
+        int count = 0;
+        for (double[] wall : walls){
+            if (crosses(x1, y1, x2, y2, wall[0], wall[1], wall[2], wall[3])){
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // Whether the segments (x1,y1)-(x2,y2) and (x3,y3)-(x4,y4) intersect
+    private static boolean crosses(double x1, double y1, double x2, double y2,
+                                   double x3, double y3, double x4, double y4){
+        double d1 = cross(x3, y3, x4, y4, x1, y1);
+        double d2 = cross(x3, y3, x4, y4, x2, y2);
+        double d3 = cross(x1, y1, x2, y2, x3, y3);
+        double d4 = cross(x1, y1, x2, y2, x4, y4);
+        return ((d1 > 0) != (d2 > 0)) && ((d3 > 0) != (d4 > 0));
+    }
+
+    private static double cross(double ax, double ay, double bx, double by, double px, double py){
+        return (bx - ax) * (py - ay) - (by - ay) * (px - ax);
+    }
+}
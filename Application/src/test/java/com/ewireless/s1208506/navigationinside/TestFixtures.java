@@ -0,0 +1,68 @@
+package com.ewireless.s1208506.navigationinside;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Author: Gavin Waite
+ * Small stand-ins shared by the tests: Executors which run work straight away or only when told
+ * to, and scans made up from a list of signal levels
+ */
+public class TestFixtures {
+
+    /**
+     * Runs each task on the calling thread as it is handed over, like the main thread of a test
+     */
+    public static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    /**
+     * Holds the work handed to it until it is told to run it, as a busy thread or a slow database
+     * would
+     */
+    public static class QueuedExecutor implements Executor {
+        public final List<Runnable> queued = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable command) {
+            queued.add(command);
+        }
+
+        /**
+         * Run the tasks queued so far, any they queue in turn wait for the next call
+         */
+        public void run(){
+            List<Runnable> tasks = new ArrayList<>(queued);
+            queued.clear();
+            for (Runnable task : tasks){
+                task.run();
+            }
+        }
+
+        /**
+         * Run tasks until none are left, including those queued while running
+         */
+        public void runAll(){
+            while (!queued.isEmpty()){
+                queued.remove(0).run();
+            }
+        }
+    }
+
+    /**
+     * @param levels - the signal levels in dBm, one per access point
+     * @return a scan hearing access points 00:11:22:33:00:00, :01, ... at the levels
+     */
+    public static ScanFrame scan(int... levels){
+        long[] BSSIDs = new long[levels.length];
+        for (int i = 0; i < levels.length; i++){
+            BSSIDs[i] = 0x001122330000L + i;
+        }
+        return new ScanFrame(BSSIDs, levels, levels.length);
+    }
+}
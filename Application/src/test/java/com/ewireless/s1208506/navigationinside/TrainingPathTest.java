@@ -0,0 +1,52 @@
+package com.ewireless.s1208506.navigationinside;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.ewireless.s1208506.navigationinside.TestFixtures.scan;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the readings of a training session are placed along the path by time, as the
+ * TrainingFragment used to do inline.
+ */
+public class TrainingPathTest {
+
+    @Test
+    public void readingsPlacedByTime() throws Exception {
+        TrainingPath path = new TrainingPath(55.0, -3.0, 56.0, -2.0);
+        List<TrainingReading> session = new ArrayList<>();
+        session.add(new TrainingReading(0, scan(-50)));
+        session.add(new TrainingReading(2500, scan(-60)));
+        session.add(new TrainingReading(10000, scan(-70)));
+
+        List<LocData> points = path.toReferencePoints(session, 10000, LocData.DEFAULT_MAX_ACCESS_POINTS);
+        assertEquals(3, points.size());
+        assertEquals(55.0, points.get(0).latitude, 1e-9);
+        assertEquals(-3.0, points.get(0).longitude, 1e-9);
+        assertEquals(55.25, points.get(1).latitude, 1e-6);
+        assertEquals(-2.75, points.get(1).longitude, 1e-6);
+        assertEquals(56.0, points.get(2).latitude, 1e-9);
+        assertEquals(-2.0, points.get(2).longitude, 1e-9);
+
+        // The uids are left for the database to assign
+        assertEquals(0, points.get(0).uid);
+        assertEquals(0, points.get(2).uid);
+    }
+
+    @Test
+    public void keepsStrongestAccessPoints() throws Exception {
+        TrainingPath path = new TrainingPath(55.0, -3.0, 56.0, -2.0);
+        List<TrainingReading> session = new ArrayList<>();
+        session.add(new TrainingReading(500, scan(-80, -40, -90, -60)));
+        session.add(new TrainingReading(1000, scan(-45)));
+
+        List<LocData> points = path.toReferencePoints(session, 1000, 2);
+        assertArrayEquals(new int[]{-40, -60}, points.get(0).dBs);
+        assertEquals(0x001122330001L, points.get(0).BSSIDs[0]);
+        // A scan with fewer access points than the limit keeps them all
+        assertArrayEquals(new int[]{-45}, points.get(1).dBs);
+    }
+}